@@ -0,0 +1,290 @@
+/*
+ * Copyright (C) 2021 University Hospital Bonn - All Rights Reserved You may use, distribute and
+ * modify this code under the GPL 3 license. THERE IS NO WARRANTY FOR THE PROGRAM, TO THE EXTENT
+ * PERMITTED BY APPLICABLE LAW. EXCEPT WHEN OTHERWISE STATED IN WRITING THE COPYRIGHT HOLDERS AND/OR
+ * OTHER PARTIES PROVIDE THE PROGRAM “AS IS” WITHOUT WARRANTY OF ANY KIND, EITHER EXPRESSED OR
+ * IMPLIED, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE. THE ENTIRE RISK AS TO THE QUALITY AND PERFORMANCE OF THE PROGRAM IS WITH
+ * YOU. SHOULD THE PROGRAM PROVE DEFECTIVE, YOU ASSUME THE COST OF ALL NECESSARY SERVICING, REPAIR
+ * OR CORRECTION. IN NO EVENT UNLESS REQUIRED BY APPLICABLE LAW OR AGREED TO IN WRITING WILL ANY
+ * COPYRIGHT HOLDER, OR ANY OTHER PARTY WHO MODIFIES AND/OR CONVEYS THE PROGRAM AS PERMITTED ABOVE,
+ * BE LIABLE TO YOU FOR DAMAGES, INCLUDING ANY GENERAL, SPECIAL, INCIDENTAL OR CONSEQUENTIAL DAMAGES
+ * ARISING OUT OF THE USE OR INABILITY TO USE THE PROGRAM (INCLUDING BUT NOT LIMITED TO LOSS OF DATA
+ * OR DATA BEING RENDERED INACCURATE OR LOSSES SUSTAINED BY YOU OR THIRD PARTIES OR A FAILURE OF THE
+ * PROGRAM TO OPERATE WITH ANY OTHER PROGRAMS), EVEN IF SUCH HOLDER OR OTHER PARTY HAS BEEN ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGES. You should have received a copy of the GPL 3 license with *
+ * this file. If not, visit http://www.gnu.de/documents/gpl-3.0.en.html
+ */
+package de.ukbonn.mwtek.utilities.fhir.analysis;
+
+import static de.ukbonn.mwtek.utilities.enums.TerminologySystems.OPS;
+
+import de.ukbonn.mwtek.utilities.ExceptionTools;
+import de.ukbonn.mwtek.utilities.enums.EncounterContactLevel;
+import de.ukbonn.mwtek.utilities.fhir.index.ConditionIndex;
+import de.ukbonn.mwtek.utilities.fhir.index.ProcedureIndex;
+import de.ukbonn.mwtek.utilities.fhir.misc.FhirConditionTools;
+import de.ukbonn.mwtek.utilities.fhir.misc.FhirProcedureTools;
+import de.ukbonn.mwtek.utilities.fhir.resources.MiiCondition;
+import de.ukbonn.mwtek.utilities.fhir.resources.MiiConsent;
+import de.ukbonn.mwtek.utilities.fhir.resources.MiiEncounter;
+import de.ukbonn.mwtek.utilities.fhir.resources.MiiProcedure;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.EnumSet;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.function.Predicate;
+import java.util.function.Supplier;
+
+/**
+ * Definition of an encounter cohort as a conjunction of criteria, e.g. "inpatient facility contacts
+ * with a U07.1 diagnosis, an ICU stay and a valid consent in 2024".
+ *
+ * <p>The definition is only a description. {@link #compile(Collection)} resolves the criteria that
+ * need other resources (diagnoses, procedures, consents) into id sets, preferring the {@link
+ * ConditionIndex} or {@link ProcedureIndex} if one was given, and orders all criteria by their
+ * measured cost and selectivity. The resulting {@link CohortPredicate} then checks every encounter
+ * in a single pass and stops at the first failing criterion.
+ *
+ * <pre>{@code
+ * List<MiiEncounter> cohort =
+ *     new CohortDefinition()
+ *         .withIcdCodesIndexed(conditionIndex, List.of("U07.1"))
+ *         .withCaseClasses(CaseClass.INPATIENT)
+ *         .withIcuStay(icuLocationIds)
+ *         .withPeriodOverlapping(from, to)
+ *         .compile(encounters)
+ *         .filter(encounters);
+ * }</pre>
+ */
+public class CohortDefinition {
+
+  /** The encounter classes a cohort can be restricted to. */
+  public enum CaseClass {
+    /** See {@link MiiEncounter#isCaseClassInpatient()}. */
+    INPATIENT,
+    /** See {@link MiiEncounter#isCaseClassShortStay()}. */
+    SHORT_STAY,
+    /** See {@link MiiEncounter#isCaseClassOutpatient()}. */
+    OUTPATIENT
+  }
+
+  private final List<Criterion> criteria = new ArrayList<>();
+
+  /**
+   * Only encounters with a diagnosis that uses one of the ICD codes.
+   *
+   * @param conditionIndex the index over the conditions of the dataset
+   * @param icdCodes the ICD codes
+   * @return this definition
+   */
+  public CohortDefinition withIcdCodesIndexed(
+      ConditionIndex conditionIndex, Collection<String> icdCodes) {
+    ExceptionTools.checkNull("conditionIndex", conditionIndex);
+    ExceptionTools.checkNull("icdCodes", icdCodes);
+    return add("icdCodes", () -> byCaseId(conditionIndex.getCaseIds(icdCodes)));
+  }
+
+  /**
+   * Only encounters with a diagnosis that uses one of the ICD codes, determined by a scan over the
+   * conditions. Prefer {@link #withIcdCodesIndexed(ConditionIndex, Collection)} if an index exists.
+   *
+   * @param conditions the conditions of the dataset
+   * @param icdCodes the ICD codes
+   * @return this definition
+   */
+  public CohortDefinition withIcdCodes(
+      Collection<MiiCondition> conditions, Collection<String> icdCodes) {
+    ExceptionTools.checkNull("icdCodes", icdCodes);
+    return add(
+        "icdCodes",
+        () -> byCaseId(FhirConditionTools.getEncounterIdsByIcdCodes(conditions, icdCodes)));
+  }
+
+  /**
+   * Only encounters with a procedure whose OPS code starts with one of the prefixes.
+   *
+   * @param procedureIndex the index over the procedures of the dataset
+   * @param opsCodePrefixes the OPS code prefixes
+   * @return this definition
+   */
+  public CohortDefinition withOpsCodePrefixesIndexed(
+      ProcedureIndex procedureIndex, Collection<String> opsCodePrefixes) {
+    ExceptionTools.checkNull("procedureIndex", procedureIndex);
+    ExceptionTools.checkNull("opsCodePrefixes", opsCodePrefixes);
+    return add(
+        "opsCodePrefixes",
+        () -> byCaseId(caseIdsOf(procedureIndex.getProceduresByPrefixes(OPS, opsCodePrefixes))));
+  }
+
+  /**
+   * Only encounters with a procedure whose OPS code starts with one of the prefixes, determined by
+   * a scan over the procedures. Prefer {@link #withOpsCodePrefixesIndexed(ProcedureIndex,
+   * Collection)} if an index exists.
+   *
+   * @param procedures the procedures of the dataset
+   * @param opsCodePrefixes the OPS code prefixes
+   * @return this definition
+   */
+  public CohortDefinition withOpsCodePrefixes(
+      Collection<MiiProcedure> procedures, Collection<String> opsCodePrefixes) {
+    ExceptionTools.checkNull("opsCodePrefixes", opsCodePrefixes);
+    return add(
+        "opsCodePrefixes",
+        () ->
+            byCaseId(
+                caseIdsOf(
+                    FhirProcedureTools.getProceduresByAnyOpsCodePrefix(
+                        procedures, opsCodePrefixes))));
+  }
+
+  /**
+   * Only encounters of one of the given classes.
+   *
+   * @param caseClasses the accepted classes
+   * @return this definition
+   */
+  public CohortDefinition withCaseClasses(CaseClass... caseClasses) {
+    EnumSet<CaseClass> accepted = EnumSet.noneOf(CaseClass.class);
+    accepted.addAll(List.of(caseClasses));
+    return add(
+        "caseClasses",
+        () ->
+            encounter ->
+                (accepted.contains(CaseClass.INPATIENT) && encounter.isCaseClassInpatient())
+                    || (accepted.contains(CaseClass.SHORT_STAY) && encounter.isCaseClassShortStay())
+                    || (accepted.contains(CaseClass.OUTPATIENT)
+                        && encounter.isCaseClassOutpatient()));
+  }
+
+  /**
+   * Only encounters of the given contact level ("Kontaktebene"). Encounters without type count as
+   * every level, see {@link MiiEncounter#isContactType(MiiEncounter, String)}.
+   *
+   * @param contactLevel the contact level
+   * @return this definition
+   */
+  public CohortDefinition withContactLevel(EncounterContactLevel contactLevel) {
+    ExceptionTools.checkNull("contactLevel", contactLevel);
+    return add(
+        "contactLevel",
+        () -> encounter -> MiiEncounter.isContactType(encounter, contactLevel.getCode()));
+  }
+
+  /**
+   * Only encounters with at least one stay on one of the given ICU locations.
+   *
+   * @param icuLocationIds the ids of the ICU locations
+   * @return this definition
+   */
+  public CohortDefinition withIcuStay(Collection<String> icuLocationIds) {
+    ExceptionTools.checkNull("icuLocationIds", icuLocationIds);
+    Set<String> icuIds = new HashSet<>(icuLocationIds);
+    return add("icuStay", () -> encounter -> encounter.isIcuCase(icuIds, false));
+  }
+
+  /**
+   * Only encounters of patients whose consent allows the usage of patient data (see {@link
+   * MiiConsent#isPatDataUsageAllowed(Date)}).
+   *
+   * @param consents the consents of the dataset
+   * @param validationDate the date the consent has to be valid at; {@code null} skips the check of
+   *     the validity period
+   * @return this definition
+   */
+  public CohortDefinition withPatDataUsageConsent(
+      Collection<MiiConsent> consents, Date validationDate) {
+    ExceptionTools.checkNull("consents", consents);
+    return add(
+        "consent",
+        () -> {
+          Set<String> patientIds = new HashSet<>();
+          for (MiiConsent consent : consents) {
+            if (consent.isPatDataUsageAllowed(validationDate)) {
+              patientIds.add(consent.getPatientId());
+            }
+          }
+          return encounter -> patientIds.contains(encounter.getPatientId());
+        });
+  }
+
+  /**
+   * Only encounters whose period overlaps the given window. Encounters without period start are
+   * excluded, a missing period end counts as still ongoing.
+   *
+   * @param from the inclusive start of the window; {@code null} means unbounded
+   * @param to the inclusive end of the window; {@code null} means unbounded
+   * @return this definition
+   */
+  public CohortDefinition withPeriodOverlapping(Date from, Date to) {
+    long lower = from != null ? from.getTime() : Long.MIN_VALUE;
+    long upper = to != null ? to.getTime() : Long.MAX_VALUE;
+    return add(
+        "period",
+        () ->
+            encounter -> {
+              if (!encounter.isPeriodStartExistent()
+                  || encounter.getPeriod().getStart().getTime() > upper) {
+                return false;
+              }
+              Date end = encounter.getPeriod().getEnd();
+              return end == null || end.getTime() >= lower;
+            });
+  }
+
+  /**
+   * Adds a custom criterion.
+   *
+   * @param name a name for {@link CohortPredicate#getCriterionNames()}
+   * @param predicate the criterion
+   * @return this definition
+   */
+  public CohortDefinition with(String name, Predicate<MiiEncounter> predicate) {
+    ExceptionTools.checkNull("predicate", predicate);
+    return add(name, () -> predicate);
+  }
+
+  /**
+   * Resolves all criteria and orders them by cost and selectivity, measured on a sample of the
+   * given encounters.
+   *
+   * @param encounters the encounters the cohort will be applied to (or a representative part); may
+   *     be empty, which keeps the order of definition
+   * @return the compiled cohort
+   */
+  public CohortPredicate compile(Collection<MiiEncounter> encounters) {
+    List<CohortPredicate.CompiledCriterion> compiled = new ArrayList<>(criteria.size());
+    for (Criterion criterion : criteria) {
+      compiled.add(
+          new CohortPredicate.CompiledCriterion(criterion.name(), criterion.resolver().get()));
+    }
+    return new CohortPredicate(compiled, encounters);
+  }
+
+  private CohortDefinition add(String name, Supplier<Predicate<MiiEncounter>> resolver) {
+    criteria.add(new Criterion(name, resolver));
+    return this;
+  }
+
+  private static Predicate<MiiEncounter> byCaseId(Set<String> caseIds) {
+    return encounter -> caseIds.contains(encounter.getId());
+  }
+
+  private static Set<String> caseIdsOf(Collection<MiiProcedure> procedures) {
+    Set<String> caseIds = new HashSet<>();
+    for (MiiProcedure procedure : procedures) {
+      if (procedure.getCaseId() != null) {
+        caseIds.add(procedure.getCaseId());
+      }
+    }
+    return caseIds;
+  }
+
+  /**
+   * @param resolver creates the predicate; runs at compile time, so id sets are built once
+   */
+  private record Criterion(String name, Supplier<Predicate<MiiEncounter>> resolver) {}
+}
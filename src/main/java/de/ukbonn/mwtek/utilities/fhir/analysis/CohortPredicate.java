@@ -0,0 +1,152 @@
+/*
+ * Copyright (C) 2021 University Hospital Bonn - All Rights Reserved You may use, distribute and
+ * modify this code under the GPL 3 license. THERE IS NO WARRANTY FOR THE PROGRAM, TO THE EXTENT
+ * PERMITTED BY APPLICABLE LAW. EXCEPT WHEN OTHERWISE STATED IN WRITING THE COPYRIGHT HOLDERS AND/OR
+ * OTHER PARTIES PROVIDE THE PROGRAM “AS IS” WITHOUT WARRANTY OF ANY KIND, EITHER EXPRESSED OR
+ * IMPLIED, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE. THE ENTIRE RISK AS TO THE QUALITY AND PERFORMANCE OF THE PROGRAM IS WITH
+ * YOU. SHOULD THE PROGRAM PROVE DEFECTIVE, YOU ASSUME THE COST OF ALL NECESSARY SERVICING, REPAIR
+ * OR CORRECTION. IN NO EVENT UNLESS REQUIRED BY APPLICABLE LAW OR AGREED TO IN WRITING WILL ANY
+ * COPYRIGHT HOLDER, OR ANY OTHER PARTY WHO MODIFIES AND/OR CONVEYS THE PROGRAM AS PERMITTED ABOVE,
+ * BE LIABLE TO YOU FOR DAMAGES, INCLUDING ANY GENERAL, SPECIAL, INCIDENTAL OR CONSEQUENTIAL DAMAGES
+ * ARISING OUT OF THE USE OR INABILITY TO USE THE PROGRAM (INCLUDING BUT NOT LIMITED TO LOSS OF DATA
+ * OR DATA BEING RENDERED INACCURATE OR LOSSES SUSTAINED BY YOU OR THIRD PARTIES OR A FAILURE OF THE
+ * PROGRAM TO OPERATE WITH ANY OTHER PROGRAMS), EVEN IF SUCH HOLDER OR OTHER PARTY HAS BEEN ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGES. You should have received a copy of the GPL 3 license with *
+ * this file. If not, visit http://www.gnu.de/documents/gpl-3.0.en.html
+ */
+package de.ukbonn.mwtek.utilities.fhir.analysis;
+
+import de.ukbonn.mwtek.utilities.fhir.resources.MiiEncounter;
+import de.ukbonn.mwtek.utilities.generic.concurrent.ParallelismPolicy;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Set;
+import java.util.function.Predicate;
+import java.util.stream.Collectors;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * A compiled {@link CohortDefinition}: all criteria as one predicate, ordered so that the criteria
+ * with the best ratio of cost to rejection rate are evaluated first.
+ *
+ * <p>The order is determined once, on an evenly spaced sample of up to {@link #SAMPLE_SIZE}
+ * encounters: a criterion that rejects a share {@code r} of the sample and costs {@code c} per
+ * evaluation gets the rank {@code c / r}, and criteria are evaluated by ascending rank. Instances
+ * are immutable and can be shared between threads.
+ */
+@Slf4j
+public class CohortPredicate implements Predicate<MiiEncounter> {
+
+  /** Maximal number of encounters that are used to measure the criteria. */
+  public static final int SAMPLE_SIZE = 512;
+
+  private final CompiledCriterion[] criteria;
+
+  CohortPredicate(List<CompiledCriterion> criteria, Collection<MiiEncounter> encounters) {
+    List<MiiEncounter> sample = sample(encounters);
+    if (!sample.isEmpty()) {
+      criteria.forEach(criterion -> criterion.measure(sample));
+      criteria = new ArrayList<>(criteria);
+      criteria.sort(Comparator.comparingDouble(CompiledCriterion::rank));
+      log.debug(
+          "Cohort criteria order: {}",
+          criteria.stream()
+              .map(c -> c.name + " (pass rate " + c.passRate + ")")
+              .collect(Collectors.joining(", ")));
+    }
+    this.criteria = criteria.toArray(CompiledCriterion[]::new);
+  }
+
+  @Override
+  public boolean test(MiiEncounter encounter) {
+    for (CompiledCriterion criterion : criteria) {
+      if (!criterion.predicate.test(encounter)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Applies the cohort to the encounters in one (parallel) pass.
+   *
+   * @param encounters the encounters
+   * @return the encounters of the cohort, in input order
+   */
+  public List<MiiEncounter> filter(Collection<MiiEncounter> encounters) {
+    return ParallelismPolicy.getDefault().filterToList(encounters, this);
+  }
+
+  /**
+   * Applies the cohort to the encounters in one (parallel) pass.
+   *
+   * @param encounters the encounters
+   * @return the ids of the encounters of the cohort
+   */
+  public Set<String> getCaseIds(Collection<MiiEncounter> encounters) {
+    return ParallelismPolicy.getDefault()
+        .apply(
+            encounters,
+            stream -> stream.filter(this).map(MiiEncounter::getId).collect(Collectors.toSet()),
+            (left, right) -> {
+              left.addAll(right);
+              return left;
+            });
+  }
+
+  /** The names of the criteria in evaluation order. */
+  public List<String> getCriterionNames() {
+    List<String> names = new ArrayList<>(criteria.length);
+    for (CompiledCriterion criterion : criteria) {
+      names.add(criterion.name);
+    }
+    return names;
+  }
+
+  private static List<MiiEncounter> sample(Collection<MiiEncounter> encounters) {
+    if (encounters == null || encounters.isEmpty()) {
+      return List.of();
+    }
+    List<MiiEncounter> all =
+        encounters instanceof List<MiiEncounter> list ? list : new ArrayList<>(encounters);
+    int step = Math.max(1, all.size() / SAMPLE_SIZE);
+    List<MiiEncounter> sample = new ArrayList<>(Math.min(all.size(), SAMPLE_SIZE));
+    for (int i = 0; i < all.size() && sample.size() < SAMPLE_SIZE; i += step) {
+      sample.add(all.get(i));
+    }
+    return sample;
+  }
+
+  static final class CompiledCriterion {
+
+    private final String name;
+    private final Predicate<MiiEncounter> predicate;
+    private double passRate = 1;
+    private double nanosPerTest;
+
+    CompiledCriterion(String name, Predicate<MiiEncounter> predicate) {
+      this.name = name;
+      this.predicate = predicate;
+    }
+
+    private void measure(List<MiiEncounter> sample) {
+      int passed = 0;
+      long start = System.nanoTime();
+      for (MiiEncounter encounter : sample) {
+        if (predicate.test(encounter)) {
+          passed++;
+        }
+      }
+      this.nanosPerTest = (double) (System.nanoTime() - start) / sample.size();
+      this.passRate = (double) passed / sample.size();
+    }
+
+    private double rank() {
+      // A criterion that (almost) never rejects goes to the end, ordered by cost
+      return nanosPerTest / Math.max(1 - passRate, 1e-6);
+    }
+  }
+}
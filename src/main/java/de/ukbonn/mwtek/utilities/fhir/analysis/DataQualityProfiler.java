@@ -0,0 +1,270 @@
+/*
+ * Copyright (C) 2021 University Hospital Bonn - All Rights Reserved You may use, distribute and
+ * modify this code under the GPL 3 license. THERE IS NO WARRANTY FOR THE PROGRAM, TO THE EXTENT
+ * PERMITTED BY APPLICABLE LAW. EXCEPT WHEN OTHERWISE STATED IN WRITING THE COPYRIGHT HOLDERS AND/OR
+ * OTHER PARTIES PROVIDE THE PROGRAM “AS IS” WITHOUT WARRANTY OF ANY KIND, EITHER EXPRESSED OR
+ * IMPLIED, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE. THE ENTIRE RISK AS TO THE QUALITY AND PERFORMANCE OF THE PROGRAM IS WITH
+ * YOU. SHOULD THE PROGRAM PROVE DEFECTIVE, YOU ASSUME THE COST OF ALL NECESSARY SERVICING, REPAIR
+ * OR CORRECTION. IN NO EVENT UNLESS REQUIRED BY APPLICABLE LAW OR AGREED TO IN WRITING WILL ANY
+ * COPYRIGHT HOLDER, OR ANY OTHER PARTY WHO MODIFIES AND/OR CONVEYS THE PROGRAM AS PERMITTED ABOVE,
+ * BE LIABLE TO YOU FOR DAMAGES, INCLUDING ANY GENERAL, SPECIAL, INCIDENTAL OR CONSEQUENTIAL DAMAGES
+ * ARISING OUT OF THE USE OR INABILITY TO USE THE PROGRAM (INCLUDING BUT NOT LIMITED TO LOSS OF DATA
+ * OR DATA BEING RENDERED INACCURATE OR LOSSES SUSTAINED BY YOU OR THIRD PARTIES OR A FAILURE OF THE
+ * PROGRAM TO OPERATE WITH ANY OTHER PROGRAMS), EVEN IF SUCH HOLDER OR OTHER PARTY HAS BEEN ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGES. You should have received a copy of the GPL 3 license with *
+ * this file. If not, visit http://www.gnu.de/documents/gpl-3.0.en.html
+ */
+
+package de.ukbonn.mwtek.utilities.fhir.analysis;
+
+import de.ukbonn.mwtek.utilities.ExceptionTools;
+import de.ukbonn.mwtek.utilities.fhir.misc.MandatoryFieldChecks;
+import de.ukbonn.mwtek.utilities.fhir.misc.MandatoryFieldChecks.FieldCheck;
+import de.ukbonn.mwtek.utilities.fhir.resources.MiiCondition;
+import de.ukbonn.mwtek.utilities.fhir.resources.MiiConsent;
+import de.ukbonn.mwtek.utilities.fhir.resources.MiiEncounter;
+import de.ukbonn.mwtek.utilities.fhir.resources.MiiLocation;
+import de.ukbonn.mwtek.utilities.fhir.resources.MiiObservation;
+import de.ukbonn.mwtek.utilities.fhir.resources.MiiPatient;
+import de.ukbonn.mwtek.utilities.fhir.resources.MiiProcedure;
+import de.ukbonn.mwtek.utilities.generic.concurrent.ParallelismPolicy;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Predicate;
+import java.util.function.ToIntFunction;
+import org.hl7.fhir.r4.model.Condition;
+import org.hl7.fhir.r4.model.Consent;
+import org.hl7.fhir.r4.model.Encounter;
+import org.hl7.fhir.r4.model.Location;
+import org.hl7.fhir.r4.model.Observation;
+import org.hl7.fhir.r4.model.Patient;
+import org.hl7.fhir.r4.model.Procedure;
+
+/**
+ * Single pass completeness profiling of one resource type.
+ *
+ * <p>A profiler consists of named presence checks (is a field filled), named cardinality checks
+ * (how many entries does a list field have) and optionally the {@link MandatoryFieldChecks} of the
+ * resource type. {@link #profile(Collection)} evaluates all of them in one (parallel, see {@link
+ * ParallelismPolicy}) pass over the resources; the counters are {@link LongAdder}s, so the worker
+ * threads do not contend on them. The predefined profilers (e.g. {@link #forEncounters()}) cover
+ * the fields that are typically needed in the analyses and can be extended with further checks.
+ *
+ * <p>A profiler is not meant to be modified while {@link #profile(Collection)} is running.
+ *
+ * @param <T> the resource type
+ */
+public class DataQualityProfiler<T> {
+
+  private final String resourceType;
+  private final List<Presence<T>> presences = new ArrayList<>();
+  private final List<Cardinality<T>> cardinalities = new ArrayList<>();
+  private final List<FieldCheck<? super T>> mandatoryChecks = new ArrayList<>();
+
+  private record Presence<T>(String name, Predicate<? super T> isPresent) {}
+
+  private record Cardinality<T>(String name, ToIntFunction<? super T> count) {}
+
+  /**
+   * @param resourceType the name of the resource type, used in the report
+   */
+  public DataQualityProfiler(String resourceType) {
+    this.resourceType = ExceptionTools.checkNull("resourceType", resourceType);
+  }
+
+  /** Adds a check whether the named field is filled. */
+  public DataQualityProfiler<T> withPresence(String name, Predicate<? super T> isPresent) {
+    presences.add(
+        new Presence<>(
+            ExceptionTools.checkNull("name", name), ExceptionTools.checkNull("check", isPresent)));
+    return this;
+  }
+
+  /** Adds a check of the number of entries of the named (list) field. */
+  public DataQualityProfiler<T> withCardinality(String name, ToIntFunction<? super T> count) {
+    cardinalities.add(
+        new Cardinality<>(
+            ExceptionTools.checkNull("name", name), ExceptionTools.checkNull("count", count)));
+    return this;
+  }
+
+  /**
+   * Adds mandatory field checks; a resource that fails any of them is counted as {@link
+   * DataQualityReport#getIncompleteCount() incomplete}. Each check is reported as presence, too.
+   */
+  public DataQualityProfiler<T> withMandatoryChecks(List<? extends FieldCheck<? super T>> checks) {
+    for (FieldCheck<? super T> check : checks) {
+      mandatoryChecks.add(check);
+      presences.add(new Presence<>(check.name(), check.isPresent()));
+    }
+    return this;
+  }
+
+  /**
+   * Profiles the given resources in one pass.
+   *
+   * @param resources the resources; {@code null} entries are skipped
+   * @return the quality report
+   */
+  public DataQualityReport profile(Collection<? extends T> resources) {
+    ExceptionTools.checkNull("resources", resources);
+    Counters counters = new Counters();
+    ParallelismPolicy.getDefault().forEach(resources, counters::record);
+    return counters.toReport();
+  }
+
+  /** The counters of one profiling run; shared by all worker threads. */
+  private class Counters {
+    private final LongAdder total = new LongAdder();
+    private final LongAdder incomplete = new LongAdder();
+    private final LongAdder[] present = newAdders(presences.size());
+    private final LongAdder[] entries = newAdders(cardinalities.size());
+    private final LongAdder[] nonEmpty = newAdders(cardinalities.size());
+    private final LongAccumulator[] maxEntries = new LongAccumulator[cardinalities.size()];
+
+    Counters() {
+      for (int i = 0; i < maxEntries.length; i++) {
+        maxEntries[i] = new LongAccumulator(Math::max, 0);
+      }
+    }
+
+    void record(T resource) {
+      if (resource == null) {
+        return;
+      }
+      total.increment();
+      for (int i = 0; i < present.length; i++) {
+        if (presences.get(i).isPresent().test(resource)) {
+          present[i].increment();
+        }
+      }
+      for (int i = 0; i < entries.length; i++) {
+        int count = cardinalities.get(i).count().applyAsInt(resource);
+        if (count > 0) {
+          entries[i].add(count);
+          nonEmpty[i].increment();
+          maxEntries[i].accumulate(count);
+        }
+      }
+      for (FieldCheck<? super T> check : mandatoryChecks) {
+        if (!check.isPresent().test(resource)) {
+          incomplete.increment();
+          break;
+        }
+      }
+    }
+
+    DataQualityReport toReport() {
+      Map<String, Long> presentCounts = new LinkedHashMap<>();
+      for (int i = 0; i < present.length; i++) {
+        presentCounts.put(presences.get(i).name(), present[i].sum());
+      }
+      Map<String, DataQualityReport.CardinalityStats> cardinalityStats = new LinkedHashMap<>();
+      for (int i = 0; i < entries.length; i++) {
+        cardinalityStats.put(
+            cardinalities.get(i).name(),
+            new DataQualityReport.CardinalityStats(
+                nonEmpty[i].sum(), entries[i].sum(), maxEntries[i].get()));
+      }
+      return new DataQualityReport(
+          resourceType, total.sum(), incomplete.sum(), presentCounts, cardinalityStats);
+    }
+
+    private static LongAdder[] newAdders(int size) {
+      LongAdder[] adders = new LongAdder[size];
+      for (int i = 0; i < size; i++) {
+        adders[i] = new LongAdder();
+      }
+      return adders;
+    }
+  }
+
+  /** Profiler of the encounter fields used in the case analyses. */
+  public static DataQualityProfiler<MiiEncounter> forEncounters() {
+    return new DataQualityProfiler<MiiEncounter>("Encounter")
+        .withMandatoryChecks(MandatoryFieldChecks.ENCOUNTER)
+        .withPresence("period.end", e -> e.hasPeriod() && e.getPeriod().hasEnd())
+        .withPresence("patientId", e -> e.getPatientId() != null)
+        .withPresence("status", Encounter::hasStatus)
+        .withPresence("partOf", e -> e.hasPartOf() && e.getPartOf().hasReference())
+        .withPresence(
+            "hospitalization.admitSource",
+            e -> e.hasHospitalization() && e.getHospitalization().hasAdmitSource())
+        .withCardinality("identifier", e -> e.hasIdentifier() ? e.getIdentifier().size() : 0)
+        .withCardinality("type", e -> e.hasType() ? e.getType().size() : 0)
+        .withCardinality("location", e -> e.hasLocation() ? e.getLocation().size() : 0)
+        .withCardinality("diagnosis", e -> e.hasDiagnosis() ? e.getDiagnosis().size() : 0);
+  }
+
+  /** Profiler of the patient fields used in the analyses. */
+  public static DataQualityProfiler<MiiPatient> forPatients() {
+    return new DataQualityProfiler<MiiPatient>("Patient")
+        .withMandatoryChecks(MandatoryFieldChecks.PATIENT)
+        .withPresence("deceased", Patient::hasDeceased)
+        .withPresence("address", Patient::hasAddress)
+        .withCardinality("identifier", p -> p.hasIdentifier() ? p.getIdentifier().size() : 0);
+  }
+
+  /** Profiler of the condition fields used in the analyses. */
+  public static DataQualityProfiler<MiiCondition> forConditions() {
+    return new DataQualityProfiler<MiiCondition>("Condition")
+        .withMandatoryChecks(MandatoryFieldChecks.CONDITION)
+        .withPresence("caseId", c -> c.getCaseId() != null)
+        .withPresence("patientId", c -> c.getPatientId() != null)
+        .withPresence("code", Condition::hasCode)
+        .withPresence("clinicalStatus", Condition::hasClinicalStatus)
+        .withPresence("onset", Condition::hasOnset)
+        .withCardinality(
+            "code.coding",
+            c -> c.hasCode() && c.getCode().hasCoding() ? c.getCode().getCoding().size() : 0);
+  }
+
+  /** Profiler of the observation fields used in the analyses. */
+  public static DataQualityProfiler<MiiObservation> forObservations() {
+    return new DataQualityProfiler<MiiObservation>("Observation")
+        .withMandatoryChecks(MandatoryFieldChecks.OBSERVATION)
+        .withPresence("caseId", o -> o.getCaseId() != null)
+        .withPresence("value", Observation::hasValue)
+        .withPresence("effective", Observation::hasEffective)
+        .withPresence("status", Observation::hasStatus)
+        .withPresence("code", Observation::hasCode)
+        .withCardinality("component", o -> o.hasComponent() ? o.getComponent().size() : 0);
+  }
+
+  /** Profiler of the procedure fields used in the analyses. */
+  public static DataQualityProfiler<MiiProcedure> forProcedures() {
+    return new DataQualityProfiler<MiiProcedure>("Procedure")
+        .withMandatoryChecks(MandatoryFieldChecks.PROCEDURE)
+        .withPresence("caseId", p -> p.getCaseId() != null)
+        .withPresence("code", Procedure::hasCode)
+        .withCardinality(
+            "code.coding",
+            p -> p.hasCode() && p.getCode().hasCoding() ? p.getCode().getCoding().size() : 0);
+  }
+
+  /** Profiler of the location fields used in the analyses. */
+  public static DataQualityProfiler<MiiLocation> forLocations() {
+    return new DataQualityProfiler<MiiLocation>("Location")
+        .withMandatoryChecks(MandatoryFieldChecks.LOCATION)
+        .withPresence("physicalType", Location::hasPhysicalType)
+        .withPresence("name", Location::hasName)
+        .withPresence("partOf", Location::hasPartOf);
+  }
+
+  /** Profiler of the consent fields used in the analyses. */
+  public static DataQualityProfiler<MiiConsent> forConsents() {
+    return new DataQualityProfiler<MiiConsent>("Consent")
+        .withMandatoryChecks(MandatoryFieldChecks.CONSENT)
+        .withPresence("patient", Consent::hasPatient)
+        .withPresence("dateTime", Consent::hasDateTime)
+        .withCardinality(
+            "provision.provision",
+            c -> c.hasProvision() ? c.getProvision().getProvision().size() : 0);
+  }
+}
@@ -0,0 +1,119 @@
+/*
+ * Copyright (C) 2021 University Hospital Bonn - All Rights Reserved You may use, distribute and
+ * modify this code under the GPL 3 license. THERE IS NO WARRANTY FOR THE PROGRAM, TO THE EXTENT
+ * PERMITTED BY APPLICABLE LAW. EXCEPT WHEN OTHERWISE STATED IN WRITING THE COPYRIGHT HOLDERS AND/OR
+ * OTHER PARTIES PROVIDE THE PROGRAM “AS IS” WITHOUT WARRANTY OF ANY KIND, EITHER EXPRESSED OR
+ * IMPLIED, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE. THE ENTIRE RISK AS TO THE QUALITY AND PERFORMANCE OF THE PROGRAM IS WITH
+ * YOU. SHOULD THE PROGRAM PROVE DEFECTIVE, YOU ASSUME THE COST OF ALL NECESSARY SERVICING, REPAIR
+ * OR CORRECTION. IN NO EVENT UNLESS REQUIRED BY APPLICABLE LAW OR AGREED TO IN WRITING WILL ANY
+ * COPYRIGHT HOLDER, OR ANY OTHER PARTY WHO MODIFIES AND/OR CONVEYS THE PROGRAM AS PERMITTED ABOVE,
+ * BE LIABLE TO YOU FOR DAMAGES, INCLUDING ANY GENERAL, SPECIAL, INCIDENTAL OR CONSEQUENTIAL DAMAGES
+ * ARISING OUT OF THE USE OR INABILITY TO USE THE PROGRAM (INCLUDING BUT NOT LIMITED TO LOSS OF DATA
+ * OR DATA BEING RENDERED INACCURATE OR LOSSES SUSTAINED BY YOU OR THIRD PARTIES OR A FAILURE OF THE
+ * PROGRAM TO OPERATE WITH ANY OTHER PROGRAMS), EVEN IF SUCH HOLDER OR OTHER PARTY HAS BEEN ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGES. You should have received a copy of the GPL 3 license with *
+ * this file. If not, visit http://www.gnu.de/documents/gpl-3.0.en.html
+ */
+
+package de.ukbonn.mwtek.utilities.fhir.analysis;
+
+import java.util.Collections;
+import java.util.Map;
+import lombok.Getter;
+
+/**
+ * The result of a {@link DataQualityProfiler} run: the number of profiled resources and, per
+ * checked field, how many of them got the field filled.
+ */
+@Getter
+public class DataQualityReport {
+
+  /**
+   * Statistics of a list field.
+   *
+   * @param nonEmptyCount the number of resources with at least one entry
+   * @param entryCount the total number of entries over all resources
+   * @param maxEntries the maximal number of entries of a single resource
+   */
+  public record CardinalityStats(long nonEmptyCount, long entryCount, long maxEntries) {}
+
+  private final String resourceType;
+  private final long totalCount;
+
+  /** The number of resources that fail at least one mandatory field check. */
+  private final long incompleteCount;
+
+  /** Field name to the number of resources in which it is filled, in check order. */
+  private final Map<String, Long> presentCounts;
+
+  /** Field name to the statistics of its entries, in check order. */
+  private final Map<String, CardinalityStats> cardinalities;
+
+  DataQualityReport(
+      String resourceType,
+      long totalCount,
+      long incompleteCount,
+      Map<String, Long> presentCounts,
+      Map<String, CardinalityStats> cardinalities) {
+    this.resourceType = resourceType;
+    this.totalCount = totalCount;
+    this.incompleteCount = incompleteCount;
+    this.presentCounts = Collections.unmodifiableMap(presentCounts);
+    this.cardinalities = Collections.unmodifiableMap(cardinalities);
+  }
+
+  /**
+   * The share of resources in which the given field is filled.
+   *
+   * @param field the field name as given in the profiler
+   * @return a value between 0 and 1; 0 if no resources were profiled
+   * @throws IllegalArgumentException if the field was not profiled
+   */
+  public double getShare(String field) throws IllegalArgumentException {
+    Long count = presentCounts.get(field);
+    if (count == null) {
+      throw new IllegalArgumentException("Field " + field + " was not profiled");
+    }
+    return totalCount == 0 ? 0 : (double) count / totalCount;
+  }
+
+  /**
+   * The average number of entries of the given list field per resource.
+   *
+   * @throws IllegalArgumentException if the field was not profiled
+   */
+  public double getAverageCardinality(String field) throws IllegalArgumentException {
+    CardinalityStats stats = cardinalities.get(field);
+    if (stats == null) {
+      throw new IllegalArgumentException("Field " + field + " was not profiled");
+    }
+    return totalCount == 0 ? 0 : (double) stats.entryCount() / totalCount;
+  }
+
+  @Override
+  public String toString() {
+    StringBuilder sb = new StringBuilder();
+    sb.append(resourceType)
+        .append(": ")
+        .append(totalCount)
+        .append(" resources, ")
+        .append(incompleteCount)
+        .append(" incomplete");
+    presentCounts.forEach(
+        (field, count) ->
+            sb.append(System.lineSeparator())
+                .append(String.format("  %-30s %6.2f%%", field, getShare(field) * 100)));
+    cardinalities.forEach(
+        (field, stats) ->
+            sb.append(System.lineSeparator())
+                .append(
+                    String.format(
+                        "  %-30s avg %.2f, max %d, non-empty %d",
+                        field + "[]",
+                        getAverageCardinality(field),
+                        stats.maxEntries(),
+                        stats.nonEmptyCount())));
+    return sb.toString();
+  }
+}
@@ -0,0 +1,167 @@
+/*
+ * Copyright (C) 2021 University Hospital Bonn - All Rights Reserved You may use, distribute and
+ * modify this code under the GPL 3 license. THERE IS NO WARRANTY FOR THE PROGRAM, TO THE EXTENT
+ * PERMITTED BY APPLICABLE LAW. EXCEPT WHEN OTHERWISE STATED IN WRITING THE COPYRIGHT HOLDERS AND/OR
+ * OTHER PARTIES PROVIDE THE PROGRAM “AS IS” WITHOUT WARRANTY OF ANY KIND, EITHER EXPRESSED OR
+ * IMPLIED, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE. THE ENTIRE RISK AS TO THE QUALITY AND PERFORMANCE OF THE PROGRAM IS WITH
+ * YOU. SHOULD THE PROGRAM PROVE DEFECTIVE, YOU ASSUME THE COST OF ALL NECESSARY SERVICING, REPAIR
+ * OR CORRECTION. IN NO EVENT UNLESS REQUIRED BY APPLICABLE LAW OR AGREED TO IN WRITING WILL ANY
+ * COPYRIGHT HOLDER, OR ANY OTHER PARTY WHO MODIFIES AND/OR CONVEYS THE PROGRAM AS PERMITTED ABOVE,
+ * BE LIABLE TO YOU FOR DAMAGES, INCLUDING ANY GENERAL, SPECIAL, INCIDENTAL OR CONSEQUENTIAL DAMAGES
+ * ARISING OUT OF THE USE OR INABILITY TO USE THE PROGRAM (INCLUDING BUT NOT LIMITED TO LOSS OF DATA
+ * OR DATA BEING RENDERED INACCURATE OR LOSSES SUSTAINED BY YOU OR THIRD PARTIES OR A FAILURE OF THE
+ * PROGRAM TO OPERATE WITH ANY OTHER PROGRAMS), EVEN IF SUCH HOLDER OR OTHER PARTY HAS BEEN ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGES. You should have received a copy of the GPL 3 license with *
+ * this file. If not, visit http://www.gnu.de/documents/gpl-3.0.en.html
+ */
+
+package de.ukbonn.mwtek.utilities.fhir.analysis;
+
+import de.ukbonn.mwtek.utilities.ExceptionTools;
+import de.ukbonn.mwtek.utilities.fhir.resources.MiiEncounter;
+import de.ukbonn.mwtek.utilities.generic.concurrent.ParallelismPolicy;
+import de.ukbonn.mwtek.utilities.generic.time.SortedTimeTools;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Predicate;
+
+/**
+ * Detection of readmissions: pairs of encounters of the same patient where the second one starts
+ * within a time window after the end of the first one, e.g. "inpatient readmission within 30 days
+ * after discharge".
+ *
+ * <p>The encounters are grouped by {@link MiiEncounter#getPatientId() patient id} and sorted by
+ * period start as primitive epoch millis. For each index encounter the earliest following encounter
+ * that starts at or after its end is found by binary search, so a whole dataset is checked in
+ * {@code O(n log n)}; the patients are processed in parallel according to the {@link
+ * ParallelismPolicy}. By default only facility contacts are considered, since department and supply
+ * contacts are parts of the same stay.
+ *
+ * <pre>{@code
+ * List<Readmission> readmissions =
+ *     new ReadmissionDetector(Duration.ofDays(30))
+ *         .withIndexFilter(MiiEncounter::isCaseClassInpatient)
+ *         .withReadmissionFilter(MiiEncounter::isCaseClassInpatient)
+ *         .detect(encounters);
+ * }</pre>
+ */
+public class ReadmissionDetector {
+
+  /**
+   * A readmission.
+   *
+   * @param indexEncounter the earlier encounter
+   * @param readmission the first encounter that passes the readmission filter and starts within the
+   *     window after the end of the index encounter
+   * @param gap the time between the end of the index encounter and the start of the readmission
+   */
+  public record Readmission(MiiEncounter indexEncounter, MiiEncounter readmission, Duration gap) {}
+
+  private final long windowMillis;
+  private Predicate<? super MiiEncounter> indexFilter = e -> true;
+  private Predicate<? super MiiEncounter> readmissionFilter = e -> true;
+  private boolean facilityContactsOnly = true;
+
+  /**
+   * @param window the maximal time between the end of the index encounter and the start of the
+   *     readmission; must not be negative
+   */
+  public ReadmissionDetector(Duration window) {
+    ExceptionTools.checkNull("window", window);
+    if (window.isNegative()) {
+      throw new IllegalArgumentException("window must not be negative: " + window);
+    }
+    this.windowMillis = window.toMillis();
+  }
+
+  /** Only encounters that pass the filter (e.g. inpatient cases) can be index encounters. */
+  public ReadmissionDetector withIndexFilter(Predicate<? super MiiEncounter> indexFilter) {
+    this.indexFilter = ExceptionTools.checkNull("indexFilter", indexFilter);
+    return this;
+  }
+
+  /** Only encounters that pass the filter (e.g. inpatient cases) count as readmissions. */
+  public ReadmissionDetector withReadmissionFilter(
+      Predicate<? super MiiEncounter> readmissionFilter) {
+    this.readmissionFilter = ExceptionTools.checkNull("readmissionFilter", readmissionFilter);
+    return this;
+  }
+
+  /**
+   * Whether only {@link MiiEncounter#isFacilityContact() facility contacts} are considered
+   * (default: {@code true}).
+   */
+  public ReadmissionDetector withFacilityContactsOnly(boolean facilityContactsOnly) {
+    this.facilityContactsOnly = facilityContactsOnly;
+    return this;
+  }
+
+  /**
+   * Finds all readmissions. Encounters without patient id or period start are ignored, index
+   * encounters also need a period end.
+   *
+   * @param encounters the encounters of all patients
+   * @return the readmissions, grouped by patient in order of first occurrence and sorted by the
+   *     start of the index encounter within a patient
+   */
+  public List<Readmission> detect(Collection<MiiEncounter> encounters) {
+    Map<String, List<MiiEncounter>> byPatient = new LinkedHashMap<>();
+    for (MiiEncounter encounter : encounters) {
+      if (encounter != null
+          && encounter.getPatientId() != null
+          && encounter.hasPeriod()
+          && encounter.getPeriod().getStart() != null
+          && (!facilityContactsOnly || encounter.isFacilityContact())) {
+        byPatient.computeIfAbsent(encounter.getPatientId(), k -> new ArrayList<>()).add(encounter);
+      }
+    }
+    return ParallelismPolicy.getDefault()
+        .apply(
+            byPatient.values(),
+            stream ->
+                stream.flatMap(patientEncounters -> detect(patientEncounters).stream()).toList(),
+            (a, b) -> {
+              List<Readmission> merged = new ArrayList<>(a.size() + b.size());
+              merged.addAll(a);
+              merged.addAll(b);
+              return merged;
+            });
+  }
+
+  /** The readmissions within the encounters of one patient. */
+  private List<Readmission> detect(List<MiiEncounter> patientEncounters) {
+    int n = patientEncounters.size();
+    if (n < 2) {
+      return List.of();
+    }
+    MiiEncounter[] sorted = patientEncounters.toArray(MiiEncounter[]::new);
+    Arrays.sort(sorted, Comparator.comparing(e -> e.getPeriod().getStart()));
+    long[] starts = new long[n];
+    for (int i = 0; i < n; i++) {
+      starts[i] = sorted[i].getPeriod().getStart().getTime();
+    }
+    List<Readmission> result = new ArrayList<>();
+    for (int i = 0; i < n; i++) {
+      MiiEncounter index = sorted[i];
+      if (index.getPeriod().getEnd() == null || !indexFilter.test(index)) {
+        continue;
+      }
+      long end = index.getPeriod().getEnd().getTime();
+      long windowEnd = end + windowMillis;
+      for (int j = SortedTimeTools.lowerBound(starts, end); j < n && starts[j] <= windowEnd; j++) {
+        if (j != i && readmissionFilter.test(sorted[j])) {
+          result.add(new Readmission(index, sorted[j], Duration.ofMillis(starts[j] - end)));
+          break;
+        }
+      }
+    }
+    return result;
+  }
+}
@@ -0,0 +1,314 @@
+/*
+ * Copyright (C) 2021 University Hospital Bonn - All Rights Reserved You may use, distribute and
+ * modify this code under the GPL 3 license. THERE IS NO WARRANTY FOR THE PROGRAM, TO THE EXTENT
+ * PERMITTED BY APPLICABLE LAW. EXCEPT WHEN OTHERWISE STATED IN WRITING THE COPYRIGHT HOLDERS AND/OR
+ * OTHER PARTIES PROVIDE THE PROGRAM “AS IS” WITHOUT WARRANTY OF ANY KIND, EITHER EXPRESSED OR
+ * IMPLIED, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE. THE ENTIRE RISK AS TO THE QUALITY AND PERFORMANCE OF THE PROGRAM IS WITH
+ * YOU. SHOULD THE PROGRAM PROVE DEFECTIVE, YOU ASSUME THE COST OF ALL NECESSARY SERVICING, REPAIR
+ * OR CORRECTION. IN NO EVENT UNLESS REQUIRED BY APPLICABLE LAW OR AGREED TO IN WRITING WILL ANY
+ * COPYRIGHT HOLDER, OR ANY OTHER PARTY WHO MODIFIES AND/OR CONVEYS THE PROGRAM AS PERMITTED ABOVE,
+ * BE LIABLE TO YOU FOR DAMAGES, INCLUDING ANY GENERAL, SPECIAL, INCIDENTAL OR CONSEQUENTIAL DAMAGES
+ * ARISING OUT OF THE USE OR INABILITY TO USE THE PROGRAM (INCLUDING BUT NOT LIMITED TO LOSS OF DATA
+ * OR DATA BEING RENDERED INACCURATE OR LOSSES SUSTAINED BY YOU OR THIRD PARTIES OR A FAILURE OF THE
+ * PROGRAM TO OPERATE WITH ANY OTHER PROGRAMS), EVEN IF SUCH HOLDER OR OTHER PARTY HAS BEEN ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGES. You should have received a copy of the GPL 3 license with *
+ * this file. If not, visit http://www.gnu.de/documents/gpl-3.0.en.html
+ */
+package de.ukbonn.mwtek.utilities.fhir.index;
+
+import static de.ukbonn.mwtek.utilities.enums.TerminologySystems.ICD;
+
+import de.ukbonn.mwtek.utilities.fhir.misc.FhirConditionTools;
+import de.ukbonn.mwtek.utilities.fhir.resources.MiiCondition;
+import de.ukbonn.mwtek.utilities.generic.time.SortedTimeTools;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.function.Function;
+import org.hl7.fhir.r4.model.Coding;
+
+/**
+ * Inverted index from ICD-10-GM codes to the {@link MiiCondition} resources that carry them.
+ *
+ * <p>The index is built once from a collection of conditions. Each code maps to a posting list that
+ * holds the condition, its case id, its patient id, the recorded date as epoch millis and the
+ * diagnosis reliability ("Diagnosesicherheit") of the matching coding. Postings are sorted by the
+ * recorded timestamp, so date range queries are a binary search instead of a scan.
+ *
+ * <p>The index is immutable after construction and can be shared between threads. Changes to the
+ * underlying conditions are not reflected, the index has to be rebuilt instead.
+ */
+public class ConditionIndex {
+
+  private final NavigableMap<String, Postings> postingsByCode;
+  private final int conditionCount;
+
+  /**
+   * Builds the index over all ICD codings of the given conditions.
+   *
+   * @param conditions the conditions to index; may be {@code null}
+   */
+  public ConditionIndex(Collection<MiiCondition> conditions) {
+    Map<String, List<Posting>> builder = new HashMap<>();
+    int count = 0;
+    if (conditions != null) {
+      for (MiiCondition condition : conditions) {
+        if (condition == null) {
+          continue;
+        }
+        count++;
+        if (!condition.hasCode()) {
+          continue;
+        }
+        long recorded =
+            condition.hasRecordedDate()
+                ? condition.getRecordedDate().getTime()
+                : SortedTimeTools.NO_TIME;
+        for (Coding coding : condition.getCode().getCoding()) {
+          if (!ICD.equals(coding.getSystem()) || !coding.hasCode()) {
+            continue;
+          }
+          List<Posting> postings =
+              builder.computeIfAbsent(coding.getCode(), k -> new ArrayList<>());
+          // The same code can be listed twice in one condition, it is indexed once per condition
+          if (!postings.isEmpty() && postings.get(postings.size() - 1).condition == condition) {
+            continue;
+          }
+          postings.add(
+              new Posting(condition, recorded, FhirConditionTools.getDiagnosisReliability(coding)));
+        }
+      }
+    }
+    this.conditionCount = count;
+    this.postingsByCode = new TreeMap<>();
+    builder.forEach((code, postings) -> postingsByCode.put(code, new Postings(postings)));
+  }
+
+  /** Number of conditions the index was built from. */
+  public int getConditionCount() {
+    return conditionCount;
+  }
+
+  /** All ICD codes that occur in at least one indexed condition. */
+  public Set<String> getCodes() {
+    return Collections.unmodifiableSet(postingsByCode.keySet());
+  }
+
+  /**
+   * Number of postings (i.e. conditions) for the given ICD code.
+   *
+   * @param icdCode the ICD code
+   * @return the length of the posting list or {@code 0} if the code is unknown
+   */
+  public int getPostingCount(String icdCode) {
+    Postings postings = icdCode != null ? postingsByCode.get(icdCode) : null;
+    return postings != null ? postings.size() : 0;
+  }
+
+  /**
+   * Returns all conditions that contain at least one of the given ICD codes.
+   *
+   * @param icdCodes the ICD codes to look up; may be {@code null}
+   * @return the matching conditions; never {@code null}
+   */
+  public Set<MiiCondition> getConditions(Collection<String> icdCodes) {
+    return collect(exact(icdCodes), p -> p.conditions, null, null);
+  }
+
+  /**
+   * Returns the case ids of all conditions that contain at least one of the given ICD codes.
+   *
+   * @param icdCodes the ICD codes to look up; may be {@code null}
+   * @return the case ids of the matching conditions; never {@code null}
+   */
+  public Set<String> getCaseIds(Collection<String> icdCodes) {
+    return collect(exact(icdCodes), p -> p.caseIds, null, null);
+  }
+
+  /**
+   * Returns the patient ids of all conditions that contain at least one of the given ICD codes.
+   *
+   * @param icdCodes the ICD codes to look up; may be {@code null}
+   * @return the patient ids of the matching conditions; never {@code null}
+   */
+  public Set<String> getPatientIds(Collection<String> icdCodes) {
+    return collect(exact(icdCodes), p -> p.patientIds, null, null);
+  }
+
+  /**
+   * Returns the case ids of all conditions that contain one of the given ICD codes with the given
+   * diagnosis reliability (e.g. {@code "G"} for a confirmed diagnosis).
+   *
+   * @param icdCodes the ICD codes to look up; may be {@code null}
+   * @param reliability the diagnosis reliability code of the matching coding
+   * @return the case ids of the matching conditions; never {@code null}
+   */
+  public Set<String> getCaseIdsWithReliability(Collection<String> icdCodes, String reliability) {
+    return collect(exact(icdCodes), p -> p.caseIds, reliability, null);
+  }
+
+  /**
+   * Returns all conditions with an ICD code that starts with one of the given prefixes (e.g. {@code
+   * I48} matches {@code I48.0} and {@code I48.1}).
+   *
+   * @param icdCodePrefixes the ICD code prefixes; may be {@code null}
+   * @return the matching conditions; never {@code null}
+   */
+  public Set<MiiCondition> getConditionsByPrefixes(Collection<String> icdCodePrefixes) {
+    return collect(prefixed(icdCodePrefixes), p -> p.conditions, null, null);
+  }
+
+  /**
+   * Returns the case ids of all conditions with an ICD code that starts with one of the given
+   * prefixes.
+   *
+   * @param icdCodePrefixes the ICD code prefixes; may be {@code null}
+   * @return the case ids of the matching conditions; never {@code null}
+   */
+  public Set<String> getCaseIdsByPrefixes(Collection<String> icdCodePrefixes) {
+    return collect(prefixed(icdCodePrefixes), p -> p.caseIds, null, null);
+  }
+
+  /**
+   * Returns the patient ids of all conditions with an ICD code that starts with one of the given
+   * prefixes.
+   *
+   * @param icdCodePrefixes the ICD code prefixes; may be {@code null}
+   * @return the patient ids of the matching conditions; never {@code null}
+   */
+  public Set<String> getPatientIdsByPrefixes(Collection<String> icdCodePrefixes) {
+    return collect(prefixed(icdCodePrefixes), p -> p.patientIds, null, null);
+  }
+
+  /**
+   * Returns all conditions with one of the given ICD codes whose recorded date lies within the
+   * given range. Conditions without a recorded date are never part of the result.
+   *
+   * @param icdCodes the ICD codes to look up; may be {@code null}
+   * @param from the lower bound (inclusive); {@code null} for an open range
+   * @param to the upper bound (inclusive); {@code null} for an open range
+   * @return the matching conditions; never {@code null}
+   */
+  public Set<MiiCondition> getConditionsRecordedBetween(
+      Collection<String> icdCodes, Date from, Date to) {
+    long lower = from != null ? from.getTime() : SortedTimeTools.NO_TIME + 1;
+    long upper = to != null ? to.getTime() : Long.MAX_VALUE;
+    return collect(exact(icdCodes), p -> p.conditions, null, new long[] {lower, upper});
+  }
+
+  /**
+   * Returns all conditions with one of the given ICD codes that were recorded after the given
+   * reference date, analogous to {@link FhirConditionTools#filterConditionsByRecordDate}.
+   *
+   * @param icdCodes the ICD codes to look up; may be {@code null}
+   * @param referenceDate the reference date (exclusive); must not be {@code null}
+   * @return the matching conditions; never {@code null}
+   */
+  public Set<MiiCondition> getConditionsRecordedAfter(
+      Collection<String> icdCodes, Date referenceDate) {
+    return collect(
+        exact(icdCodes),
+        p -> p.conditions,
+        null,
+        new long[] {referenceDate.getTime() + 1, Long.MAX_VALUE});
+  }
+
+  private List<Postings> exact(Collection<String> icdCodes) {
+    if (icdCodes == null || icdCodes.isEmpty()) {
+      return Collections.emptyList();
+    }
+    List<Postings> result = new ArrayList<>();
+    for (String code : new HashSet<>(icdCodes)) {
+      Postings postings = code != null ? postingsByCode.get(code) : null;
+      if (postings != null) {
+        result.add(postings);
+      }
+    }
+    return result;
+  }
+
+  private List<Postings> prefixed(Collection<String> icdCodePrefixes) {
+    if (icdCodePrefixes == null || icdCodePrefixes.isEmpty()) {
+      return Collections.emptyList();
+    }
+    // Overlapping prefixes (e.g. "I48" and "I48.1") must not add the same posting list twice
+    Map<String, Postings> result = new HashMap<>();
+    for (String prefix : icdCodePrefixes) {
+      if (prefix != null && !prefix.isEmpty()) {
+        result.putAll(postingsByCode.subMap(prefix, true, prefix + Character.MAX_VALUE, true));
+      }
+    }
+    return new ArrayList<>(result.values());
+  }
+
+  /**
+   * Collects the values of the given posting lists, optionally restricted to a reliability code and
+   * a (closed) range of recorded timestamps.
+   */
+  private static <T> Set<T> collect(
+      List<Postings> postingLists,
+      Function<Postings, T[]> values,
+      String reliability,
+      long[] range) {
+    Set<T> result = new HashSet<>();
+    for (Postings postings : postingLists) {
+      T[] array = values.apply(postings);
+      int from = 0;
+      int to = postings.size();
+      if (range != null) {
+        from = SortedTimeTools.lowerBound(postings.recorded, range[0]);
+        to = SortedTimeTools.upperBound(postings.recorded, range[1]);
+      }
+      for (int i = from; i < to; i++) {
+        if (reliability == null || reliability.equals(postings.reliabilities[i])) {
+          result.add(array[i]);
+        }
+      }
+    }
+    return result;
+  }
+
+  private record Posting(MiiCondition condition, long recorded, String reliability) {}
+
+  /** Column-wise posting list of a single code, sorted by the recorded timestamp. */
+  private static final class Postings {
+
+    private final MiiCondition[] conditions;
+    private final String[] caseIds;
+    private final String[] patientIds;
+    private final long[] recorded;
+    private final String[] reliabilities;
+
+    private Postings(List<Posting> postings) {
+      postings.sort(Comparator.comparingLong(Posting::recorded));
+      int size = postings.size();
+      conditions = new MiiCondition[size];
+      caseIds = new String[size];
+      patientIds = new String[size];
+      recorded = new long[size];
+      reliabilities = new String[size];
+      for (int i = 0; i < size; i++) {
+        Posting posting = postings.get(i);
+        conditions[i] = posting.condition();
+        caseIds[i] = posting.condition().getCaseId();
+        patientIds[i] = posting.condition().getPatientId();
+        recorded[i] = posting.recorded();
+        reliabilities[i] = posting.reliability();
+      }
+    }
+
+    private int size() {
+      return conditions.length;
+    }
+  }
+}
@@ -0,0 +1,228 @@
+/*
+ * Copyright (C) 2021 University Hospital Bonn - All Rights Reserved You may use, distribute and
+ * modify this code under the GPL 3 license. THERE IS NO WARRANTY FOR THE PROGRAM, TO THE EXTENT
+ * PERMITTED BY APPLICABLE LAW. EXCEPT WHEN OTHERWISE STATED IN WRITING THE COPYRIGHT HOLDERS AND/OR
+ * OTHER PARTIES PROVIDE THE PROGRAM “AS IS” WITHOUT WARRANTY OF ANY KIND, EITHER EXPRESSED OR
+ * IMPLIED, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE. THE ENTIRE RISK AS TO THE QUALITY AND PERFORMANCE OF THE PROGRAM IS WITH
+ * YOU. SHOULD THE PROGRAM PROVE DEFECTIVE, YOU ASSUME THE COST OF ALL NECESSARY SERVICING, REPAIR
+ * OR CORRECTION. IN NO EVENT UNLESS REQUIRED BY APPLICABLE LAW OR AGREED TO IN WRITING WILL ANY
+ * COPYRIGHT HOLDER, OR ANY OTHER PARTY WHO MODIFIES AND/OR CONVEYS THE PROGRAM AS PERMITTED ABOVE,
+ * BE LIABLE TO YOU FOR DAMAGES, INCLUDING ANY GENERAL, SPECIAL, INCIDENTAL OR CONSEQUENTIAL DAMAGES
+ * ARISING OUT OF THE USE OR INABILITY TO USE THE PROGRAM (INCLUDING BUT NOT LIMITED TO LOSS OF DATA
+ * OR DATA BEING RENDERED INACCURATE OR LOSSES SUSTAINED BY YOU OR THIRD PARTIES OR A FAILURE OF THE
+ * PROGRAM TO OPERATE WITH ANY OTHER PROGRAMS), EVEN IF SUCH HOLDER OR OTHER PARTY HAS BEEN ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGES. You should have received a copy of the GPL 3 license with *
+ * this file. If not, visit http://www.gnu.de/documents/gpl-3.0.en.html
+ */
+
+package de.ukbonn.mwtek.utilities.fhir.index;
+
+import static de.ukbonn.mwtek.utilities.fhir.mapping.kdscase.valuesets.KdsEncounterFixedValues.DIAGNOSIS_ROLE_DISCHARGE_CODE;
+import static de.ukbonn.mwtek.utilities.fhir.mapping.kdscase.valuesets.KdsEncounterFixedValues.DIAGNOSIS_ROLE_SYSTEM;
+import static de.ukbonn.mwtek.utilities.fhir.misc.ResourceConverter.extractReferenceId;
+
+import de.ukbonn.mwtek.utilities.fhir.resources.MiiCondition;
+import de.ukbonn.mwtek.utilities.fhir.resources.MiiEncounter;
+import de.ukbonn.mwtek.utilities.generic.concurrent.ParallelismPolicy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import lombok.extern.slf4j.Slf4j;
+import org.hl7.fhir.r4.model.Coding;
+import org.hl7.fhir.r4.model.Encounter.DiagnosisComponent;
+
+/**
+ * Hash join of the {@link MiiEncounter#getDiagnosis() Encounter.diagnosis} references to the {@link
+ * MiiCondition} resources, together with the diagnosis role of each reference (e.g. {@link
+ * de.ukbonn.mwtek.utilities.fhir.mapping.kdscase.valuesets.KdsEncounterFixedValues#DIAGNOSIS_ROLE_DISCHARGE_CODE
+ * discharge diagnosis}).
+ *
+ * <p>The conditions are indexed by id once, then all encounters are joined in one (parallel, see
+ * {@link ParallelismPolicy}) pass. References to conditions that aren't part of the given
+ * collection are skipped and counted. The index is immutable after construction and can be shared
+ * between threads.
+ */
+@Slf4j
+public class EncounterDiagnosisIndex {
+
+  /** The joined diagnoses of one encounter, in the order of {@code Encounter.diagnosis}. */
+  public static final class Diagnoses {
+
+    private static final Diagnoses EMPTY = new Diagnoses(new MiiCondition[0], new String[0][]);
+
+    private final MiiCondition[] conditions;
+    // all diagnosis role codes per entry; an entry can carry several roles
+    private final String[][] roles;
+
+    private Diagnoses(MiiCondition[] conditions, String[][] roles) {
+      this.conditions = conditions;
+      this.roles = roles;
+    }
+
+    /** The number of resolved diagnoses. */
+    public int size() {
+      return conditions.length;
+    }
+
+    public MiiCondition getCondition(int index) {
+      return conditions[index];
+    }
+
+    /**
+     * @return the first diagnosis role code (system {@code diagnosis-role}) of the entry or {@code
+     *     null} if it got none
+     */
+    public String getRole(int index) {
+      return roles[index].length > 0 ? roles[index][0] : null;
+    }
+
+    /**
+     * @return all diagnosis role codes (system {@code diagnosis-role}) of the entry
+     */
+    public List<String> getRoles(int index) {
+      return Collections.unmodifiableList(Arrays.asList(roles[index]));
+    }
+
+    /** All resolved conditions. */
+    public List<MiiCondition> getConditions() {
+      return Collections.unmodifiableList(Arrays.asList(conditions));
+    }
+
+    /**
+     * @param roleCode a diagnosis role code, e.g. "AD" for admission diagnoses; {@code null} for
+     *     the entries without role
+     * @return the conditions that are referenced with the given role among their roles
+     */
+    public List<MiiCondition> getConditions(String roleCode) {
+      List<MiiCondition> result = new ArrayList<>();
+      for (int i = 0; i < conditions.length; i++) {
+        if (roleCode == null ? roles[i].length == 0 : hasRole(roles[i], roleCode)) {
+          result.add(conditions[i]);
+        }
+      }
+      return result;
+    }
+
+    private static boolean hasRole(String[] entryRoles, String roleCode) {
+      for (String role : entryRoles) {
+        if (roleCode.equals(role)) {
+          return true;
+        }
+      }
+      return false;
+    }
+
+    /** Same as {@link MiiEncounter#getDischargeDiagnosisReferenceIds()}, but resolved. */
+    public List<MiiCondition> getDischargeDiagnoses() {
+      return getConditions(DIAGNOSIS_ROLE_DISCHARGE_CODE);
+    }
+  }
+
+  private static final String[] NO_ROLES = new String[0];
+
+  private final Map<String, Diagnoses> diagnosesByEncounterId;
+  private final long unresolvedReferences;
+
+  /**
+   * @param encounters the encounters whose diagnoses are joined
+   * @param conditions the conditions the references point to
+   */
+  public EncounterDiagnosisIndex(
+      Collection<MiiEncounter> encounters, Collection<MiiCondition> conditions) {
+    Map<String, MiiCondition> conditionsById = new HashMap<>(conditions.size() * 2);
+    for (MiiCondition condition : conditions) {
+      if (condition != null && condition.getId() != null) {
+        conditionsById.putIfAbsent(condition.getId(), condition);
+      }
+    }
+    LongAdder unresolved = new LongAdder();
+    this.diagnosesByEncounterId =
+        ParallelismPolicy.getDefault()
+            .apply(
+                encounters,
+                stream ->
+                    stream
+                        .filter(e -> e != null && e.getId() != null && e.hasDiagnosis())
+                        .collect(
+                            HashMap::new,
+                            (Map<String, Diagnoses> map, MiiEncounter encounter) ->
+                                map.put(
+                                    encounter.getId(), join(encounter, conditionsById, unresolved)),
+                            Map::putAll),
+                (a, b) -> {
+                  a.putAll(b);
+                  return a;
+                });
+    this.unresolvedReferences = unresolved.sum();
+    if (unresolvedReferences > 0) {
+      log.debug("{} diagnosis references could not be resolved", unresolvedReferences);
+    }
+  }
+
+  private static Diagnoses join(
+      MiiEncounter encounter, Map<String, MiiCondition> conditionsById, LongAdder unresolved) {
+    List<DiagnosisComponent> components = encounter.getDiagnosis();
+    MiiCondition[] conditions = new MiiCondition[components.size()];
+    String[][] roles = new String[components.size()][];
+    int count = 0;
+    for (DiagnosisComponent component : components) {
+      if (!component.hasCondition()) {
+        continue;
+      }
+      MiiCondition condition = conditionsById.get(extractReferenceId(component.getCondition()));
+      if (condition == null) {
+        unresolved.increment();
+        continue;
+      }
+      conditions[count] = condition;
+      roles[count] = component.hasUse() ? getRoles(component) : NO_ROLES;
+      count++;
+    }
+    return count == 0
+        ? Diagnoses.EMPTY
+        : new Diagnoses(Arrays.copyOf(conditions, count), Arrays.copyOf(roles, count));
+  }
+
+  private static String[] getRoles(DiagnosisComponent component) {
+    List<String> roles = new ArrayList<>(1);
+    for (Coding coding : component.getUse().getCoding()) {
+      if (DIAGNOSIS_ROLE_SYSTEM.equals(coding.getSystem()) && coding.hasCode()) {
+        roles.add(coding.getCode());
+      }
+    }
+    return roles.isEmpty() ? NO_ROLES : roles.toArray(String[]::new);
+  }
+
+  /**
+   * @return the joined diagnoses of the encounter with the given id; empty if it got none
+   */
+  public Diagnoses getDiagnoses(String encounterId) {
+    return diagnosesByEncounterId.getOrDefault(encounterId, Diagnoses.EMPTY);
+  }
+
+  /** Same as {@link #getDiagnoses(String)} with the id of the given encounter. */
+  public Diagnoses getDiagnoses(MiiEncounter encounter) {
+    return getDiagnoses(encounter.getId());
+  }
+
+  /** The resolved discharge diagnoses of the encounter with the given id. */
+  public List<MiiCondition> getDischargeDiagnoses(String encounterId) {
+    return getDiagnoses(encounterId).getDischargeDiagnoses();
+  }
+
+  /** The number of encounters with at least one diagnosis reference. */
+  public int size() {
+    return diagnosesByEncounterId.size();
+  }
+
+  /** The number of diagnosis references whose condition was not found. */
+  public long getUnresolvedReferenceCount() {
+    return unresolvedReferences;
+  }
+}
@@ -0,0 +1,158 @@
+/*
+ * Copyright (C) 2021 University Hospital Bonn - All Rights Reserved You may use, distribute and
+ * modify this code under the GPL 3 license. THERE IS NO WARRANTY FOR THE PROGRAM, TO THE EXTENT
+ * PERMITTED BY APPLICABLE LAW. EXCEPT WHEN OTHERWISE STATED IN WRITING THE COPYRIGHT HOLDERS AND/OR
+ * OTHER PARTIES PROVIDE THE PROGRAM “AS IS” WITHOUT WARRANTY OF ANY KIND, EITHER EXPRESSED OR
+ * IMPLIED, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE. THE ENTIRE RISK AS TO THE QUALITY AND PERFORMANCE OF THE PROGRAM IS WITH
+ * YOU. SHOULD THE PROGRAM PROVE DEFECTIVE, YOU ASSUME THE COST OF ALL NECESSARY SERVICING, REPAIR
+ * OR CORRECTION. IN NO EVENT UNLESS REQUIRED BY APPLICABLE LAW OR AGREED TO IN WRITING WILL ANY
+ * COPYRIGHT HOLDER, OR ANY OTHER PARTY WHO MODIFIES AND/OR CONVEYS THE PROGRAM AS PERMITTED ABOVE,
+ * BE LIABLE TO YOU FOR DAMAGES, INCLUDING ANY GENERAL, SPECIAL, INCIDENTAL OR CONSEQUENTIAL DAMAGES
+ * ARISING OUT OF THE USE OR INABILITY TO USE THE PROGRAM (INCLUDING BUT NOT LIMITED TO LOSS OF DATA
+ * OR DATA BEING RENDERED INACCURATE OR LOSSES SUSTAINED BY YOU OR THIRD PARTIES OR A FAILURE OF THE
+ * PROGRAM TO OPERATE WITH ANY OTHER PROGRAMS), EVEN IF SUCH HOLDER OR OTHER PARTY HAS BEEN ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGES. You should have received a copy of the GPL 3 license with *
+ * this file. If not, visit http://www.gnu.de/documents/gpl-3.0.en.html
+ */
+
+package de.ukbonn.mwtek.utilities.fhir.index;
+
+import de.ukbonn.mwtek.utilities.ExceptionTools;
+import de.ukbonn.mwtek.utilities.fhir.resources.MiiEncounter;
+import de.ukbonn.mwtek.utilities.generic.collections.ConcurrentBitSet;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Named flags for a fixed set of encounters, kept in a side table instead of in the resources.
+ *
+ * <p>Each encounter gets an ordinal on construction and each flag (e.g. the url of the extension
+ * that used to be added to the resource) is a {@link ConcurrentBitSet} over these ordinals. Setting
+ * and querying flags is thread-safe, costs one bit per encounter and leaves the (shared) hapi
+ * objects untouched. Encounters are identified by their {@link MiiEncounter#getId() id}; if an id
+ * occurs more than once, all encounters with this id share the flags.
+ */
+public class EncounterFlags {
+
+  private final MiiEncounter[] encounters;
+  private final Map<String, Integer> ordinalById;
+  private final Map<String, ConcurrentBitSet> flags = new ConcurrentHashMap<>();
+
+  /**
+   * @param encounters the encounters that can be flagged; {@code null} entries and encounters
+   *     without id are skipped
+   */
+  public EncounterFlags(Collection<MiiEncounter> encounters) {
+    ExceptionTools.checkNull("encounters", encounters);
+    this.ordinalById = new HashMap<>(encounters.size() * 2);
+    List<MiiEncounter> distinct = new ArrayList<>(encounters.size());
+    for (MiiEncounter encounter : encounters) {
+      if (encounter != null
+          && encounter.getId() != null
+          && ordinalById.putIfAbsent(encounter.getId(), distinct.size()) == null) {
+        distinct.add(encounter);
+      }
+    }
+    this.encounters = distinct.toArray(MiiEncounter[]::new);
+  }
+
+  /** The number of (distinct) encounters that can be flagged. */
+  public int size() {
+    return encounters.length;
+  }
+
+  /**
+   * Sets a flag on an encounter.
+   *
+   * @param flag the flag name
+   * @param encounterId the id of the encounter
+   * @return {@code true} if the flag was not set before, {@code false} if it was already set or the
+   *     encounter is unknown
+   */
+  public boolean set(String flag, String encounterId) {
+    Integer ordinal = ordinalById.get(encounterId);
+    return ordinal != null && bits(flag).set(ordinal);
+  }
+
+  /** Same as {@link #set(String, String)} with the id of the given encounter. */
+  public boolean set(String flag, MiiEncounter encounter) {
+    return encounter != null && set(flag, encounter.getId());
+  }
+
+  /**
+   * Removes a flag from an encounter.
+   *
+   * @return {@code true} if the flag was set before
+   */
+  public boolean clear(String flag, String encounterId) {
+    Integer ordinal = ordinalById.get(encounterId);
+    ConcurrentBitSet bits = flags.get(flag);
+    return ordinal != null && bits != null && bits.clear(ordinal);
+  }
+
+  /** Whether the encounter with the given id got the flag. */
+  public boolean isSet(String flag, String encounterId) {
+    Integer ordinal = ordinalById.get(encounterId);
+    ConcurrentBitSet bits = flags.get(flag);
+    return ordinal != null && bits != null && bits.get(ordinal);
+  }
+
+  /** Same as {@link #isSet(String, String)} with the id of the given encounter. */
+  public boolean isSet(String flag, MiiEncounter encounter) {
+    return encounter != null && isSet(flag, encounter.getId());
+  }
+
+  /** The number of encounters with the given flag. */
+  public int count(String flag) {
+    ConcurrentBitSet bits = flags.get(flag);
+    return bits == null ? 0 : bits.cardinality();
+  }
+
+  /**
+   * @return the encounters with the given flag, in input order
+   */
+  public List<MiiEncounter> getFlagged(String flag) {
+    ConcurrentBitSet bits = flags.get(flag);
+    List<MiiEncounter> result = new ArrayList<>();
+    if (bits != null) {
+      for (int i = bits.nextSetBit(0); i >= 0; i = bits.nextSetBit(i + 1)) {
+        result.add(encounters[i]);
+      }
+    }
+    return result;
+  }
+
+  /**
+   * @return the names of all flags of the encounter with the given id, sorted
+   */
+  public Set<String> getFlags(String encounterId) {
+    Set<String> result = new TreeSet<>();
+    Integer ordinal = ordinalById.get(encounterId);
+    if (ordinal != null) {
+      flags.forEach(
+          (flag, bits) -> {
+            if (bits.get(ordinal)) {
+              result.add(flag);
+            }
+          });
+    }
+    return result;
+  }
+
+  /** Removes the given flag from all encounters. */
+  public void clearAll(String flag) {
+    flags.remove(flag);
+  }
+
+  private ConcurrentBitSet bits(String flag) {
+    return flags.computeIfAbsent(
+        ExceptionTools.checkNull("flag", flag), f -> new ConcurrentBitSet(encounters.length));
+  }
+}
@@ -0,0 +1,275 @@
+/*
+ * Copyright (C) 2021 University Hospital Bonn - All Rights Reserved You may use, distribute and
+ * modify this code under the GPL 3 license. THERE IS NO WARRANTY FOR THE PROGRAM, TO THE EXTENT
+ * PERMITTED BY APPLICABLE LAW. EXCEPT WHEN OTHERWISE STATED IN WRITING THE COPYRIGHT HOLDERS AND/OR
+ * OTHER PARTIES PROVIDE THE PROGRAM “AS IS” WITHOUT WARRANTY OF ANY KIND, EITHER EXPRESSED OR
+ * IMPLIED, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE. THE ENTIRE RISK AS TO THE QUALITY AND PERFORMANCE OF THE PROGRAM IS WITH
+ * YOU. SHOULD THE PROGRAM PROVE DEFECTIVE, YOU ASSUME THE COST OF ALL NECESSARY SERVICING, REPAIR
+ * OR CORRECTION. IN NO EVENT UNLESS REQUIRED BY APPLICABLE LAW OR AGREED TO IN WRITING WILL ANY
+ * COPYRIGHT HOLDER, OR ANY OTHER PARTY WHO MODIFIES AND/OR CONVEYS THE PROGRAM AS PERMITTED ABOVE,
+ * BE LIABLE TO YOU FOR DAMAGES, INCLUDING ANY GENERAL, SPECIAL, INCIDENTAL OR CONSEQUENTIAL DAMAGES
+ * ARISING OUT OF THE USE OR INABILITY TO USE THE PROGRAM (INCLUDING BUT NOT LIMITED TO LOSS OF DATA
+ * OR DATA BEING RENDERED INACCURATE OR LOSSES SUSTAINED BY YOU OR THIRD PARTIES OR A FAILURE OF THE
+ * PROGRAM TO OPERATE WITH ANY OTHER PROGRAMS), EVEN IF SUCH HOLDER OR OTHER PARTY HAS BEEN ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGES. You should have received a copy of the GPL 3 license with *
+ * this file. If not, visit http://www.gnu.de/documents/gpl-3.0.en.html
+ */
+
+package de.ukbonn.mwtek.utilities.fhir.index;
+
+import static de.ukbonn.mwtek.utilities.fhir.misc.ResourceConverter.extractReferenceId;
+
+import de.ukbonn.mwtek.utilities.fhir.resources.MiiEncounter;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Parent/child links between the facility contacts ("Einrichtungskontakt"), department contacts
+ * ("Abteilungskontakt") and supply contacts ("Versorgungsstellenkontakt") of a list of encounters.
+ *
+ * <p>The parent of an encounter is resolved in this order:
+ *
+ * <ol>
+ *   <li>the encounter referenced in {@link MiiEncounter#getPartOf() Encounter.partOf},
+ *   <li>the encounter with the id {@link MiiEncounter#getFacilityContactId()},
+ *   <li>for encounters that aren't facility contacts: the facility contact with the same {@link
+ *       MiiEncounter#getVisitNumberIdentifierValue() visit number}.
+ * </ol>
+ *
+ * References to encounters that aren't part of the list are ignored. The links are stored as int
+ * arrays (the children in compressed row form), so the whole hierarchy is built in one linear pass
+ * and every lookup is a hash lookup of the encounter id plus an array access.
+ *
+ * <p>The hierarchy is immutable after construction and can be shared between threads. Changes to
+ * the underlying encounters are not reflected, the hierarchy has to be rebuilt instead.
+ */
+@Slf4j
+public class EncounterHierarchy {
+
+  private static final int NONE = -1;
+
+  private final MiiEncounter[] encounters;
+  private final Map<String, Integer> ordinalById;
+  private final int[] parent;
+  private final int[] facility;
+  private final int[] root;
+  // children of encounter i: childIds[childStart[i]] until (exclusive) childIds[childStart[i + 1]]
+  private final int[] childStart;
+  private final int[] childIds;
+
+  /**
+   * Builds the hierarchy over the given encounters.
+   *
+   * @param encounters the encounters; {@code null} entries and encounters without id are skipped.
+   *     If an id occurs more than once, the first encounter is used.
+   */
+  public EncounterHierarchy(List<? extends MiiEncounter> encounters) {
+    this.encounters =
+        encounters == null
+            ? new MiiEncounter[0]
+            : encounters.stream()
+                .filter(e -> e != null && e.getIdElement().getIdPart() != null)
+                .toArray(MiiEncounter[]::new);
+    int n = this.encounters.length;
+
+    // id and visit number dictionaries
+    ordinalById = new HashMap<>(n * 2);
+    Map<String, Integer> facilityByVisitNumber = new HashMap<>();
+    int duplicates = 0;
+    for (int i = 0; i < n; i++) {
+      MiiEncounter encounter = this.encounters[i];
+      if (ordinalById.putIfAbsent(encounter.getIdElement().getIdPart(), i) != null) {
+        duplicates++;
+      }
+      if (encounter.isFacilityContact() && encounter.hasVisitNumberIdentifierValue()) {
+        facilityByVisitNumber.putIfAbsent(encounter.getVisitNumberIdentifierValue(), i);
+      }
+    }
+    if (duplicates > 0) {
+      log.warn("{} encounters with an already used id were ignored in the hierarchy", duplicates);
+    }
+
+    parent = new int[n];
+    for (int i = 0; i < n; i++) {
+      int p = resolveParent(this.encounters[i], facilityByVisitNumber);
+      parent[i] = p == i ? NONE : p;
+    }
+
+    // root and facility contact per encounter; this also cuts cyclic links
+    root = new int[n];
+    facility = new int[n];
+    Arrays.fill(root, NONE);
+    resolveAncestors();
+
+    // children in compressed row form
+    childStart = new int[n + 1];
+    for (int i = 0; i < n; i++) {
+      if (parent[i] != NONE) {
+        childStart[parent[i] + 1]++;
+      }
+    }
+    for (int i = 0; i < n; i++) {
+      childStart[i + 1] += childStart[i];
+    }
+    childIds = new int[childStart[n]];
+    int[] fill = Arrays.copyOf(childStart, n);
+    for (int i = 0; i < n; i++) {
+      if (parent[i] != NONE) {
+        childIds[fill[parent[i]]++] = i;
+      }
+    }
+  }
+
+  private int resolveParent(MiiEncounter encounter, Map<String, Integer> facilityByVisitNumber) {
+    if (encounter.hasPartOf()) {
+      Integer p = ordinalById.get(extractReferenceId(encounter.getPartOf()));
+      if (p != null) {
+        return p;
+      }
+    }
+    String facilityContactId = encounter.getFacilityContactId();
+    if (facilityContactId != null) {
+      Integer p = ordinalById.get(facilityContactId);
+      if (p != null) {
+        return p;
+      }
+    }
+    if (!encounter.isFacilityContact() && encounter.hasVisitNumberIdentifierValue()) {
+      Integer p = facilityByVisitNumber.get(encounter.getVisitNumberIdentifierValue());
+      if (p != null) {
+        return p;
+      }
+    }
+    return NONE;
+  }
+
+  /**
+   * Fills {@link #root} and {@link #facility}. Every encounter is visited a constant number of
+   * times: the chain above an encounter is walked up to the first already resolved ancestor and the
+   * result is written back along the chain. A cycle in the links is cut at the encounter where it
+   * is detected, i.e. that encounter becomes a root.
+   */
+  private void resolveAncestors() {
+    int n = encounters.length;
+    int[] chain = new int[n];
+    boolean[] onChain = new boolean[n];
+    for (int start = 0; start < n; start++) {
+      if (root[start] != NONE) {
+        continue;
+      }
+      int length = 0;
+      int current = start;
+      while (current != NONE && root[current] == NONE && !onChain[current]) {
+        onChain[current] = true;
+        chain[length++] = current;
+        current = parent[current];
+      }
+      if (current != NONE && onChain[current]) {
+        log.warn(
+            "Cyclic partOf links at encounter {}, the cycle is cut there",
+            encounters[current].getIdElement().getIdPart());
+        parent[current] = NONE;
+        for (int k = 0; k < length; k++) {
+          onChain[chain[k]] = false;
+        }
+        // walk the now acyclic chain again
+        start--;
+        continue;
+      }
+      // walk the chain top-down
+      int rootOfChain = current == NONE ? chain[length - 1] : root[current];
+      int facilityOfChain = current == NONE ? NONE : facility[current];
+      for (int k = length - 1; k >= 0; k--) {
+        int i = chain[k];
+        onChain[i] = false;
+        if (encounters[i].isFacilityContact()) {
+          facilityOfChain = i;
+        }
+        root[i] = rootOfChain;
+        facility[i] = facilityOfChain;
+      }
+    }
+  }
+
+  /** The number of encounters in the hierarchy. */
+  public int size() {
+    return encounters.length;
+  }
+
+  /** Whether the given encounter is part of the hierarchy. */
+  public boolean contains(MiiEncounter encounter) {
+    return ordinalOf(encounter) != NONE;
+  }
+
+  /**
+   * @return the direct parent of the encounter or {@code null} if it has none or isn't part of the
+   *     hierarchy
+   */
+  public MiiEncounter parentOf(MiiEncounter encounter) {
+    int i = ordinalOf(encounter);
+    return i == NONE ? null : get(parent[i]);
+  }
+
+  /**
+   * @return the direct children of the encounter (e.g. the department contacts of a facility
+   *     contact); an empty list if it has none or isn't part of the hierarchy
+   */
+  public List<MiiEncounter> childrenOf(MiiEncounter encounter) {
+    int i = ordinalOf(encounter);
+    if (i == NONE || childStart[i] == childStart[i + 1]) {
+      return Collections.emptyList();
+    }
+    MiiEncounter[] children = new MiiEncounter[childStart[i + 1] - childStart[i]];
+    for (int k = 0; k < children.length; k++) {
+      children[k] = encounters[childIds[childStart[i] + k]];
+    }
+    return Arrays.asList(children);
+  }
+
+  /**
+   * @return the nearest facility contact on the way to the root (the encounter itself if it is a
+   *     facility contact) or {@code null} if there is none or the encounter isn't part of the
+   *     hierarchy
+   */
+  public MiiEncounter facilityOf(MiiEncounter encounter) {
+    int i = ordinalOf(encounter);
+    return i == NONE ? null : get(facility[i]);
+  }
+
+  /**
+   * @return the topmost ancestor of the encounter (the encounter itself if it has no parent) or
+   *     {@code null} if the encounter isn't part of the hierarchy
+   */
+  public MiiEncounter rootOf(MiiEncounter encounter) {
+    int i = ordinalOf(encounter);
+    return i == NONE ? null : get(root[i]);
+  }
+
+  /**
+   * @return the id of the {@link #facilityOf(MiiEncounter) facility contact} of the encounter with
+   *     the given id or {@code null}
+   */
+  public String getFacilityContactId(String encounterId) {
+    Integer i = ordinalById.get(encounterId);
+    return i == null || facility[i] == NONE
+        ? null
+        : encounters[facility[i]].getIdElement().getIdPart();
+  }
+
+  private int ordinalOf(MiiEncounter encounter) {
+    if (encounter == null) {
+      return NONE;
+    }
+    Integer i = ordinalById.get(encounter.getIdElement().getIdPart());
+    return i == null ? NONE : i;
+  }
+
+  private MiiEncounter get(int ordinal) {
+    return ordinal == NONE ? null : encounters[ordinal];
+  }
+}
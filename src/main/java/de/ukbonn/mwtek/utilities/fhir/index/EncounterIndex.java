@@ -0,0 +1,179 @@
+/*
+ * Copyright (C) 2021 University Hospital Bonn - All Rights Reserved You may use, distribute and
+ * modify this code under the GPL 3 license. THERE IS NO WARRANTY FOR THE PROGRAM, TO THE EXTENT
+ * PERMITTED BY APPLICABLE LAW. EXCEPT WHEN OTHERWISE STATED IN WRITING THE COPYRIGHT HOLDERS AND/OR
+ * OTHER PARTIES PROVIDE THE PROGRAM “AS IS” WITHOUT WARRANTY OF ANY KIND, EITHER EXPRESSED OR
+ * IMPLIED, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE. THE ENTIRE RISK AS TO THE QUALITY AND PERFORMANCE OF THE PROGRAM IS WITH
+ * YOU. SHOULD THE PROGRAM PROVE DEFECTIVE, YOU ASSUME THE COST OF ALL NECESSARY SERVICING, REPAIR
+ * OR CORRECTION. IN NO EVENT UNLESS REQUIRED BY APPLICABLE LAW OR AGREED TO IN WRITING WILL ANY
+ * COPYRIGHT HOLDER, OR ANY OTHER PARTY WHO MODIFIES AND/OR CONVEYS THE PROGRAM AS PERMITTED ABOVE,
+ * BE LIABLE TO YOU FOR DAMAGES, INCLUDING ANY GENERAL, SPECIAL, INCIDENTAL OR CONSEQUENTIAL DAMAGES
+ * ARISING OUT OF THE USE OR INABILITY TO USE THE PROGRAM (INCLUDING BUT NOT LIMITED TO LOSS OF DATA
+ * OR DATA BEING RENDERED INACCURATE OR LOSSES SUSTAINED BY YOU OR THIRD PARTIES OR A FAILURE OF THE
+ * PROGRAM TO OPERATE WITH ANY OTHER PROGRAMS), EVEN IF SUCH HOLDER OR OTHER PARTY HAS BEEN ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGES. You should have received a copy of the GPL 3 license with *
+ * this file. If not, visit http://www.gnu.de/documents/gpl-3.0.en.html
+ */
+
+package de.ukbonn.mwtek.utilities.fhir.index;
+
+import de.ukbonn.mwtek.utilities.fhir.resources.MiiEncounter;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Lookup of {@link MiiEncounter} resources by their id, their {@link
+ * MiiEncounter#getVisitNumberIdentifierValue() visit number} ("Aufnahmenummer") and their {@link
+ * MiiEncounter#getOfficialIdentifierValue() official identifier}.
+ *
+ * <p>The index is built in one pass over the encounters. Afterwards, resolving the identifiers of k
+ * encounter ids (or the encounters of k identifier values) costs k hash lookups instead of a scan
+ * over all encounters. All encounters of a case usually share the visit number, so a value can map
+ * to several encounters; the lists keep the input order.
+ *
+ * <p>The index is immutable after construction and can be shared between threads. Changes to the
+ * underlying encounters are not reflected, the index has to be rebuilt instead.
+ */
+public class EncounterIndex {
+
+  private final Map<String, List<MiiEncounter>> byId;
+  private final Map<String, List<MiiEncounter>> byVisitNumber;
+  private final Map<String, List<MiiEncounter>> byOfficialIdentifier;
+  private final int encounterCount;
+  private final int encountersWithIdentifierCount;
+
+  /**
+   * Builds the index over the given encounters.
+   *
+   * @param encounters the encounters to index; may be {@code null}
+   */
+  public EncounterIndex(Collection<MiiEncounter> encounters) {
+    int capacity = encounters == null ? 16 : encounters.size() * 2;
+    Map<String, List<MiiEncounter>> ids = new HashMap<>(capacity);
+    Map<String, List<MiiEncounter>> visitNumbers = new HashMap<>(capacity);
+    Map<String, List<MiiEncounter>> officialIdentifiers = new HashMap<>(capacity);
+    int count = 0;
+    int withIdentifier = 0;
+    if (encounters != null) {
+      for (MiiEncounter encounter : encounters) {
+        if (encounter == null) {
+          continue;
+        }
+        count++;
+        add(ids, encounter.getId(), encounter);
+        if (encounter.hasIdentifier()) {
+          withIdentifier++;
+          add(visitNumbers, encounter.getVisitNumberIdentifierValue(), encounter);
+          add(officialIdentifiers, encounter.getOfficialIdentifierValue(), encounter);
+        }
+      }
+    }
+    this.byId = freeze(ids);
+    this.byVisitNumber = freeze(visitNumbers);
+    this.byOfficialIdentifier = freeze(officialIdentifiers);
+    this.encounterCount = count;
+    this.encountersWithIdentifierCount = withIdentifier;
+  }
+
+  private static void add(
+      Map<String, List<MiiEncounter>> index, String key, MiiEncounter encounter) {
+    if (key != null) {
+      index.computeIfAbsent(key, k -> new ArrayList<>(1)).add(encounter);
+    }
+  }
+
+  /** Wraps the lists, so that the lookups can hand them out without copying. */
+  private static Map<String, List<MiiEncounter>> freeze(Map<String, List<MiiEncounter>> index) {
+    index.replaceAll((key, list) -> Collections.unmodifiableList(list));
+    return index;
+  }
+
+  /** The number of indexed encounters. */
+  public int size() {
+    return encounterCount;
+  }
+
+  /** The number of indexed encounters that got at least one identifier. */
+  public int getEncountersWithIdentifierCount() {
+    return encountersWithIdentifierCount;
+  }
+
+  /**
+   * @return the unmodifiable list of encounters with the given {@link MiiEncounter#getId() id};
+   *     usually just one
+   */
+  public List<MiiEncounter> getById(String id) {
+    return byId.getOrDefault(id, Collections.emptyList());
+  }
+
+  /**
+   * @return the unmodifiable list of encounters with the given visit number, in input order
+   */
+  public List<MiiEncounter> getByVisitNumber(String visitNumber) {
+    return byVisitNumber.getOrDefault(visitNumber, Collections.emptyList());
+  }
+
+  /**
+   * @return the unmodifiable list of encounters with the given official identifier value, in input
+   *     order
+   */
+  public List<MiiEncounter> getByOfficialIdentifier(String officialIdentifier) {
+    return byOfficialIdentifier.getOrDefault(officialIdentifier, Collections.emptyList());
+  }
+
+  /**
+   * The visit numbers of the encounters with the given ids.
+   *
+   * @param encounterIds the encounter ids
+   * @return a mutable set with the visit numbers; ids without encounter or visit number are skipped
+   */
+  public Set<String> getVisitNumbers(Collection<String> encounterIds) {
+    Set<String> result = new HashSet<>();
+    for (String id : encounterIds) {
+      for (MiiEncounter encounter : getById(id)) {
+        if (encounter.hasVisitNumberIdentifierValue()) {
+          result.add(encounter.getVisitNumberIdentifierValue());
+        }
+      }
+    }
+    return result;
+  }
+
+  /**
+   * The official identifier values of the encounters with the given ids.
+   *
+   * @param encounterIds the encounter ids
+   * @return a mutable set with the values; like {@link MiiEncounter#getOfficialIdentifierValue()}
+   *     it contains {@code null} if one of the encounters got no official identifier
+   */
+  public Set<String> getOfficialIdentifiers(Collection<String> encounterIds) {
+    Set<String> result = new HashSet<>();
+    for (String id : encounterIds) {
+      for (MiiEncounter encounter : getById(id)) {
+        result.add(encounter.getOfficialIdentifierValue());
+      }
+    }
+    return result;
+  }
+
+  /**
+   * All encounters that use one of the given visit numbers.
+   *
+   * @param visitNumbers the visit numbers
+   * @return a mutable set with the encounters
+   */
+  public Set<MiiEncounter> getByVisitNumbers(Collection<String> visitNumbers) {
+    Set<MiiEncounter> result = new HashSet<>();
+    for (String visitNumber : visitNumbers) {
+      result.addAll(getByVisitNumber(visitNumber));
+    }
+    return result;
+  }
+}
@@ -0,0 +1,268 @@
+/*
+ * Copyright (C) 2021 University Hospital Bonn - All Rights Reserved You may use, distribute and
+ * modify this code under the GPL 3 license. THERE IS NO WARRANTY FOR THE PROGRAM, TO THE EXTENT
+ * PERMITTED BY APPLICABLE LAW. EXCEPT WHEN OTHERWISE STATED IN WRITING THE COPYRIGHT HOLDERS AND/OR
+ * OTHER PARTIES PROVIDE THE PROGRAM “AS IS” WITHOUT WARRANTY OF ANY KIND, EITHER EXPRESSED OR
+ * IMPLIED, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE. THE ENTIRE RISK AS TO THE QUALITY AND PERFORMANCE OF THE PROGRAM IS WITH
+ * YOU. SHOULD THE PROGRAM PROVE DEFECTIVE, YOU ASSUME THE COST OF ALL NECESSARY SERVICING, REPAIR
+ * OR CORRECTION. IN NO EVENT UNLESS REQUIRED BY APPLICABLE LAW OR AGREED TO IN WRITING WILL ANY
+ * COPYRIGHT HOLDER, OR ANY OTHER PARTY WHO MODIFIES AND/OR CONVEYS THE PROGRAM AS PERMITTED ABOVE,
+ * BE LIABLE TO YOU FOR DAMAGES, INCLUDING ANY GENERAL, SPECIAL, INCIDENTAL OR CONSEQUENTIAL DAMAGES
+ * ARISING OUT OF THE USE OR INABILITY TO USE THE PROGRAM (INCLUDING BUT NOT LIMITED TO LOSS OF DATA
+ * OR DATA BEING RENDERED INACCURATE OR LOSSES SUSTAINED BY YOU OR THIRD PARTIES OR A FAILURE OF THE
+ * PROGRAM TO OPERATE WITH ANY OTHER PROGRAMS), EVEN IF SUCH HOLDER OR OTHER PARTY HAS BEEN ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGES. You should have received a copy of the GPL 3 license with *
+ * this file. If not, visit http://www.gnu.de/documents/gpl-3.0.en.html
+ */
+
+package de.ukbonn.mwtek.utilities.fhir.index;
+
+import de.ukbonn.mwtek.utilities.ExceptionTools;
+import de.ukbonn.mwtek.utilities.fhir.resources.MiiEncounter;
+import de.ukbonn.mwtek.utilities.generic.collections.IntervalTree;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+import java.util.function.Predicate;
+
+/**
+ * Daily occupancy of a set of encounters: which encounters are active on a day and how many per
+ * day, in total, per encounter class and per location.
+ *
+ * <p>An encounter is active on every calendar day that its {@link MiiEncounter#getPeriod() period}
+ * touches, including the days of admission and discharge. Periods without end run until the
+ * reference time ("now") given on construction; encounters without period start are ignored. Single
+ * days are answered by an {@link IntervalTree}; the time series are built with a difference array
+ * over the requested days, i.e. in {@code O(n + days)} instead of testing every encounter against
+ * every day.
+ *
+ * <p>The index is immutable after construction and can be shared between threads. Changes to the
+ * underlying encounters are not reflected, the index has to be rebuilt instead.
+ */
+public class EncounterOccupancy {
+
+  private final ZoneId zoneId;
+  private final long now;
+  private final IntervalTree<MiiEncounter> index;
+  private final List<MiiEncounter> encounters;
+  // first and last active day (epoch day) per entry of encounters
+  private final long[] firstDays;
+  private final long[] lastDays;
+
+  /**
+   * Uses the current time as end of open periods.
+   *
+   * @param encounters the encounters; {@code null} entries are skipped
+   * @param zoneId the time zone that defines the calendar days
+   */
+  public EncounterOccupancy(Collection<MiiEncounter> encounters, ZoneId zoneId) {
+    this(encounters, zoneId, new Date());
+  }
+
+  /**
+   * @param encounters the encounters; {@code null} entries are skipped
+   * @param zoneId the time zone that defines the calendar days
+   * @param now the end of open periods
+   */
+  public EncounterOccupancy(Collection<MiiEncounter> encounters, ZoneId zoneId, Date now) {
+    ExceptionTools.checkNull("encounters", encounters);
+    this.zoneId = ExceptionTools.checkNull("zoneId", zoneId);
+    this.now = ExceptionTools.checkNull("now", now).getTime();
+    this.encounters = new ArrayList<>(encounters.size());
+    for (MiiEncounter encounter : encounters) {
+      if (encounter != null && hasStart(encounter)) {
+        this.encounters.add(encounter);
+      }
+    }
+    // an end before the start (e.g. a start after the reference time) counts as the start
+    this.index = new IntervalTree<>(this.encounters, this::start, e -> Math.max(start(e), end(e)));
+    this.firstDays = new long[this.encounters.size()];
+    this.lastDays = new long[this.encounters.size()];
+    for (int i = 0; i < firstDays.length; i++) {
+      MiiEncounter encounter = this.encounters.get(i);
+      long start = start(encounter);
+      firstDays[i] = toEpochDay(start);
+      lastDays[i] = toEpochDay(Math.max(start, end(encounter)));
+    }
+  }
+
+  private static boolean hasStart(MiiEncounter encounter) {
+    return encounter.hasPeriod() && encounter.getPeriod().getStart() != null;
+  }
+
+  private long start(MiiEncounter encounter) {
+    return encounter.getPeriod().getStart().getTime();
+  }
+
+  private long end(MiiEncounter encounter) {
+    return encounter.getPeriod().getEnd() != null ? encounter.getPeriod().getEnd().getTime() : now;
+  }
+
+  private long toEpochDay(long millis) {
+    return Instant.ofEpochMilli(millis).atZone(zoneId).toLocalDate().toEpochDay();
+  }
+
+  /** The number of encounters with a period start. */
+  public int size() {
+    return encounters.size();
+  }
+
+  /**
+   * @return the encounters that are active on the given day, in ascending order of their start
+   */
+  public List<MiiEncounter> activeOn(LocalDate day) {
+    return index.query(dayStart(day), dayStart(day.plusDays(1)) - 1);
+  }
+
+  /**
+   * @return the number of encounters that are active on the given day
+   */
+  public int countActiveOn(LocalDate day) {
+    return index.count(dayStart(day), dayStart(day.plusDays(1)) - 1);
+  }
+
+  private long dayStart(LocalDate day) {
+    return day.atStartOfDay(zoneId).toInstant().toEpochMilli();
+  }
+
+  /**
+   * The number of active encounters per day.
+   *
+   * @param from the first day (inclusive)
+   * @param to the last day (inclusive)
+   * @return a count for every day of the range, including the days without encounter
+   */
+  public NavigableMap<LocalDate, Integer> dailyCounts(LocalDate from, LocalDate to) {
+    return dailyCounts(from, to, e -> true);
+  }
+
+  /**
+   * The number of active encounters that pass the filter (e.g. {@link
+   * MiiEncounter#isCaseClassInpatient()}) per day.
+   *
+   * @param from the first day (inclusive)
+   * @param to the last day (inclusive)
+   * @param filter the encounters to count
+   * @return a count for every day of the range, including the days without encounter
+   */
+  public NavigableMap<LocalDate, Integer> dailyCounts(
+      LocalDate from, LocalDate to, Predicate<? super MiiEncounter> filter) {
+    DayCounter counter = new DayCounter(from, to);
+    for (int i = 0; i < firstDays.length; i++) {
+      if (filter.test(encounters.get(i))) {
+        counter.add(firstDays[i], lastDays[i]);
+      }
+    }
+    return counter.toSeries();
+  }
+
+  /**
+   * The number of active encounters per {@link MiiEncounter#getClass_() encounter class} code and
+   * day. Encounters without class code are not counted.
+   *
+   * @param from the first day (inclusive)
+   * @param to the last day (inclusive)
+   * @return a daily series per class code
+   */
+  public Map<String, NavigableMap<LocalDate, Integer>> dailyCountsByClass(
+      LocalDate from, LocalDate to) {
+    Map<String, DayCounter> counters = new HashMap<>();
+    for (int i = 0; i < firstDays.length; i++) {
+      MiiEncounter encounter = encounters.get(i);
+      if (encounter.hasClass_() && encounter.getClass_().hasCode()) {
+        counters
+            .computeIfAbsent(encounter.getClass_().getCode(), k -> new DayCounter(from, to))
+            .add(firstDays[i], lastDays[i]);
+      }
+    }
+    Map<String, NavigableMap<LocalDate, Integer>> result = new HashMap<>();
+    counters.forEach((classCode, counter) -> result.put(classCode, counter.toSeries()));
+    return result;
+  }
+
+  /**
+   * The number of encounters per location and day, based on the {@link LocationTimeline} of each
+   * encounter. An encounter counts once per location and day, even if it got several stays there on
+   * that day. Open stays run until the reference time.
+   *
+   * @param from the first day (inclusive)
+   * @param to the last day (inclusive)
+   * @param locationFilter the location ids that are counted, e.g. the ward or ICU ids
+   * @return a daily series per location id
+   */
+  public Map<String, NavigableMap<LocalDate, Integer>> dailyCountsByLocation(
+      LocalDate from, LocalDate to, Predicate<String> locationFilter) {
+    Map<String, DayCounter> counters = new HashMap<>();
+    Map<String, Long> lastCountedDay = new HashMap<>();
+    for (MiiEncounter encounter : encounters) {
+      lastCountedDay.clear();
+      long encounterEnd = end(encounter);
+      for (LocationTimeline.Stay stay :
+          new LocationTimeline(encounter, locationFilter).getStays()) {
+        long end = Math.min(stay.isOpen() ? now : stay.end(), encounterEnd);
+        if (end < stay.start()) {
+          continue;
+        }
+        long firstDay = toEpochDay(stay.start());
+        long lastDay = toEpochDay(end);
+        // the stays are sorted, so only the first day can already be counted for this location
+        Long counted = lastCountedDay.get(stay.locationId());
+        if (counted != null && firstDay <= counted) {
+          firstDay = counted + 1;
+        }
+        if (firstDay <= lastDay) {
+          counters
+              .computeIfAbsent(stay.locationId(), k -> new DayCounter(from, to))
+              .add(firstDay, lastDay);
+          lastCountedDay.put(stay.locationId(), lastDay);
+        }
+      }
+    }
+    Map<String, NavigableMap<LocalDate, Integer>> result = new HashMap<>();
+    counters.forEach((locationId, counter) -> result.put(locationId, counter.toSeries()));
+    return result;
+  }
+
+  /** Difference array over a day range: O(1) per interval, O(days) for the series. */
+  private static class DayCounter {
+    private final long fromDay;
+    private final long toDay;
+    private final int[] deltas;
+
+    DayCounter(LocalDate from, LocalDate to) {
+      this.fromDay = from.toEpochDay();
+      this.toDay = to.toEpochDay();
+      if (toDay < fromDay) {
+        throw new IllegalArgumentException("from must not be after to: " + from + " > " + to);
+      }
+      this.deltas = new int[(int) (toDay - fromDay) + 2];
+    }
+
+    void add(long firstDay, long lastDay) {
+      if (lastDay < fromDay || firstDay > toDay) {
+        return;
+      }
+      deltas[(int) (Math.max(firstDay, fromDay) - fromDay)]++;
+      deltas[(int) (Math.min(lastDay, toDay) - fromDay) + 1]--;
+    }
+
+    NavigableMap<LocalDate, Integer> toSeries() {
+      NavigableMap<LocalDate, Integer> series = new TreeMap<>();
+      int count = 0;
+      for (int i = 0; i < deltas.length - 1; i++) {
+        count += deltas[i];
+        series.put(LocalDate.ofEpochDay(fromDay + i), count);
+      }
+      return series;
+    }
+  }
+}
@@ -0,0 +1,126 @@
+/*
+ * Copyright (C) 2021 University Hospital Bonn - All Rights Reserved You may use, distribute and
+ * modify this code under the GPL 3 license. THERE IS NO WARRANTY FOR THE PROGRAM, TO THE EXTENT
+ * PERMITTED BY APPLICABLE LAW. EXCEPT WHEN OTHERWISE STATED IN WRITING THE COPYRIGHT HOLDERS AND/OR
+ * OTHER PARTIES PROVIDE THE PROGRAM “AS IS” WITHOUT WARRANTY OF ANY KIND, EITHER EXPRESSED OR
+ * IMPLIED, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE. THE ENTIRE RISK AS TO THE QUALITY AND PERFORMANCE OF THE PROGRAM IS WITH
+ * YOU. SHOULD THE PROGRAM PROVE DEFECTIVE, YOU ASSUME THE COST OF ALL NECESSARY SERVICING, REPAIR
+ * OR CORRECTION. IN NO EVENT UNLESS REQUIRED BY APPLICABLE LAW OR AGREED TO IN WRITING WILL ANY
+ * COPYRIGHT HOLDER, OR ANY OTHER PARTY WHO MODIFIES AND/OR CONVEYS THE PROGRAM AS PERMITTED ABOVE,
+ * BE LIABLE TO YOU FOR DAMAGES, INCLUDING ANY GENERAL, SPECIAL, INCIDENTAL OR CONSEQUENTIAL DAMAGES
+ * ARISING OUT OF THE USE OR INABILITY TO USE THE PROGRAM (INCLUDING BUT NOT LIMITED TO LOSS OF DATA
+ * OR DATA BEING RENDERED INACCURATE OR LOSSES SUSTAINED BY YOU OR THIRD PARTIES OR A FAILURE OF THE
+ * PROGRAM TO OPERATE WITH ANY OTHER PROGRAMS), EVEN IF SUCH HOLDER OR OTHER PARTY HAS BEEN ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGES. You should have received a copy of the GPL 3 license with *
+ * this file. If not, visit http://www.gnu.de/documents/gpl-3.0.en.html
+ */
+
+package de.ukbonn.mwtek.utilities.fhir.index;
+
+import de.ukbonn.mwtek.utilities.ExceptionTools;
+import de.ukbonn.mwtek.utilities.fhir.resources.MiiEncounter;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import org.hl7.fhir.r4.model.Encounter.EncounterLocationComponent;
+
+/**
+ * The set of ICU location ids of a site, hashed once, with the ICU checks of {@link MiiEncounter}
+ * on top of it.
+ *
+ * <p>The checks in {@link MiiEncounter} (e.g. {@link MiiEncounter#isIcuCase(Collection, boolean)})
+ * get the ids as caller-supplied collection, which is a linear search per location component if it
+ * is a list. The registry answers the same questions with hash lookups and {@link
+ * #indexStays(Collection)} derives the ICU stays of many encounters at once for interval queries.
+ *
+ * <p>The registry is immutable and can be shared between threads.
+ */
+public class IcuLocationRegistry {
+
+  private final Set<String> icuLocationIds;
+
+  /**
+   * @param icuLocationIds the ids of the ICU locations (as returned by {@code getIdBase()} of the
+   *     location references); {@code null} entries are skipped
+   */
+  public IcuLocationRegistry(Collection<String> icuLocationIds) {
+    ExceptionTools.checkNull("icuLocationIds", icuLocationIds);
+    Set<String> ids = new HashSet<>(icuLocationIds.size() * 2);
+    for (String id : icuLocationIds) {
+      if (id != null) {
+        ids.add(id);
+      }
+    }
+    this.icuLocationIds = Collections.unmodifiableSet(ids);
+  }
+
+  /** The ICU location ids as unmodifiable set. */
+  public Set<String> getIcuLocationIds() {
+    return icuLocationIds;
+  }
+
+  /** Whether the location with the given id is an ICU location. */
+  public boolean isIcuLocation(String locationId) {
+    return locationId != null && icuLocationIds.contains(locationId);
+  }
+
+  /** Whether the location component references an ICU location. */
+  public boolean isIcuLocation(EncounterLocationComponent location) {
+    return location.hasLocation() && isIcuLocation(location.getLocation().getIdBase());
+  }
+
+  /**
+   * Same as {@link MiiEncounter#isIcuCase(Collection, boolean)}.
+   *
+   * @param checkActiveOnly if {@code true}, only location components whose period has no end are
+   *     considered
+   */
+  public boolean isIcuCase(MiiEncounter encounter, boolean checkActiveOnly) {
+    if (icuLocationIds.isEmpty() || !encounter.hasLocation()) {
+      return false;
+    }
+    for (EncounterLocationComponent location : encounter.getLocation()) {
+      if ((!checkActiveOnly || isActive(location)) && isIcuLocation(location)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /** Same as {@link MiiEncounter#isCurrentlyOnIcu(List)}. */
+  public boolean isCurrentlyOnIcu(MiiEncounter encounter) {
+    return isIcuCase(encounter, true);
+  }
+
+  /** Same as {@link MiiEncounter#getIcuLocationComponents(Collection, boolean)}. */
+  public List<EncounterLocationComponent> getIcuLocationComponents(
+      MiiEncounter encounter, boolean checkActiveOnly) {
+    List<EncounterLocationComponent> result = new ArrayList<>();
+    if (!icuLocationIds.isEmpty() && encounter.hasLocation()) {
+      for (EncounterLocationComponent location : encounter.getLocation()) {
+        if (isIcuLocation(location) && (!checkActiveOnly || isActive(location))) {
+          result.add(location);
+        }
+      }
+    }
+    return result;
+  }
+
+  /**
+   * Derives the ICU stays of all given encounters in one pass.
+   *
+   * @param encounters the encounters
+   * @return an index over the ICU stays; open stays end at the time of this call
+   */
+  public IcuStayIndex indexStays(Collection<MiiEncounter> encounters) {
+    return new IcuStayIndex(this, encounters, System.currentTimeMillis());
+  }
+
+  static boolean isActive(EncounterLocationComponent location) {
+    return location.hasPeriod() && !location.getPeriod().hasEnd();
+  }
+}
@@ -0,0 +1,279 @@
+/*
+ * Copyright (C) 2021 University Hospital Bonn - All Rights Reserved You may use, distribute and
+ * modify this code under the GPL 3 license. THERE IS NO WARRANTY FOR THE PROGRAM, TO THE EXTENT
+ * PERMITTED BY APPLICABLE LAW. EXCEPT WHEN OTHERWISE STATED IN WRITING THE COPYRIGHT HOLDERS AND/OR
+ * OTHER PARTIES PROVIDE THE PROGRAM “AS IS” WITHOUT WARRANTY OF ANY KIND, EITHER EXPRESSED OR
+ * IMPLIED, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE. THE ENTIRE RISK AS TO THE QUALITY AND PERFORMANCE OF THE PROGRAM IS WITH
+ * YOU. SHOULD THE PROGRAM PROVE DEFECTIVE, YOU ASSUME THE COST OF ALL NECESSARY SERVICING, REPAIR
+ * OR CORRECTION. IN NO EVENT UNLESS REQUIRED BY APPLICABLE LAW OR AGREED TO IN WRITING WILL ANY
+ * COPYRIGHT HOLDER, OR ANY OTHER PARTY WHO MODIFIES AND/OR CONVEYS THE PROGRAM AS PERMITTED ABOVE,
+ * BE LIABLE TO YOU FOR DAMAGES, INCLUDING ANY GENERAL, SPECIAL, INCIDENTAL OR CONSEQUENTIAL DAMAGES
+ * ARISING OUT OF THE USE OR INABILITY TO USE THE PROGRAM (INCLUDING BUT NOT LIMITED TO LOSS OF DATA
+ * OR DATA BEING RENDERED INACCURATE OR LOSSES SUSTAINED BY YOU OR THIRD PARTIES OR A FAILURE OF THE
+ * PROGRAM TO OPERATE WITH ANY OTHER PROGRAMS), EVEN IF SUCH HOLDER OR OTHER PARTY HAS BEEN ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGES. You should have received a copy of the GPL 3 license with *
+ * this file. If not, visit http://www.gnu.de/documents/gpl-3.0.en.html
+ */
+
+package de.ukbonn.mwtek.utilities.fhir.index;
+
+import de.ukbonn.mwtek.utilities.fhir.resources.MiiEncounter;
+import de.ukbonn.mwtek.utilities.generic.concurrent.ParallelismPolicy;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.ZoneId;
+import java.time.temporal.ChronoUnit;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.stream.Collectors;
+import org.hl7.fhir.r4.model.Encounter.EncounterLocationComponent;
+import org.hl7.fhir.r4.model.Period;
+
+/**
+ * The ICU stays of a set of encounters, derived once by {@link
+ * IcuLocationRegistry#indexStays(Collection)}.
+ *
+ * <p>Per encounter that references an ICU location, the periods of its ICU location components are
+ * merged into disjoint intervals sorted by start, so that window queries are a binary search. A
+ * component without end is an open stay: for durations and ICU days it ends at the reference time
+ * given on construction, for window queries it never ends. Components without period start make the
+ * encounter an ICU case, but don't contribute an interval.
+ *
+ * <p>The index is immutable after construction and can be shared between threads.
+ */
+public class IcuStayIndex {
+
+  private static final long OPEN_END = Long.MAX_VALUE;
+
+  private final Map<String, Stays> staysByEncounterId;
+  private final long now;
+
+  /**
+   * @param starts the interval starts as epoch millis, sorted and disjoint
+   * @param ends the interval ends as epoch millis, {@link #OPEN_END} for an open stay
+   * @param currentlyOnIcu whether an ICU location component got a period without end
+   */
+  private record Stays(long[] starts, long[] ends, boolean currentlyOnIcu) {
+
+    Stays merge(Stays other) {
+      int n = starts.length + other.starts.length;
+      long[] allStarts = Arrays.copyOf(starts, n);
+      long[] allEnds = Arrays.copyOf(ends, n);
+      System.arraycopy(other.starts, 0, allStarts, starts.length, other.starts.length);
+      System.arraycopy(other.ends, 0, allEnds, ends.length, other.ends.length);
+      return of(allStarts, allEnds, n, currentlyOnIcu || other.currentlyOnIcu);
+    }
+
+    /** Sorts the first {@code count} intervals by start and merges the overlapping ones. */
+    static Stays of(long[] starts, long[] ends, int count, boolean currentlyOnIcu) {
+      Integer[] order = new Integer[count];
+      for (int i = 0; i < count; i++) {
+        order[i] = i;
+      }
+      Arrays.sort(order, (a, b) -> Long.compare(starts[a], starts[b]));
+      long[] mergedStarts = new long[count];
+      long[] mergedEnds = new long[count];
+      int m = -1;
+      for (int i : order) {
+        if (m >= 0 && starts[i] <= mergedEnds[m]) {
+          mergedEnds[m] = Math.max(mergedEnds[m], ends[i]);
+        } else {
+          m++;
+          mergedStarts[m] = starts[i];
+          mergedEnds[m] = ends[i];
+        }
+      }
+      return new Stays(
+          Arrays.copyOf(mergedStarts, m + 1), Arrays.copyOf(mergedEnds, m + 1), currentlyOnIcu);
+    }
+
+    boolean overlaps(long from, long to) {
+      // the last interval that starts at or before the end of the window
+      int i = Arrays.binarySearch(starts, to);
+      if (i < 0) {
+        i = -i - 2;
+      }
+      return i >= 0 && ends[i] >= from;
+    }
+  }
+
+  IcuStayIndex(IcuLocationRegistry registry, Collection<MiiEncounter> encounters, long now) {
+    this.now = now;
+    this.staysByEncounterId =
+        ParallelismPolicy.getDefault()
+            .apply(
+                encounters,
+                stream ->
+                    stream
+                        .filter(e -> e != null && e.getId() != null)
+                        .filter(e -> registry.isIcuCase(e, false))
+                        .collect(
+                            Collectors.toMap(
+                                MiiEncounter::getId,
+                                e -> toStays(registry, e),
+                                Stays::merge,
+                                HashMap::new)),
+                (a, b) -> {
+                  b.forEach((id, stays) -> a.merge(id, stays, Stays::merge));
+                  return a;
+                });
+  }
+
+  private static Stays toStays(IcuLocationRegistry registry, MiiEncounter encounter) {
+    int n = encounter.getLocation().size();
+    long[] starts = new long[n];
+    long[] ends = new long[n];
+    int count = 0;
+    boolean currentlyOnIcu = false;
+    for (EncounterLocationComponent location : encounter.getLocation()) {
+      if (!registry.isIcuLocation(location)) {
+        continue;
+      }
+      currentlyOnIcu |= IcuLocationRegistry.isActive(location);
+      Period period = location.hasPeriod() ? location.getPeriod() : null;
+      if (period == null || period.getStart() == null) {
+        continue;
+      }
+      starts[count] = period.getStart().getTime();
+      ends[count] =
+          period.getEnd() == null ? OPEN_END : Math.max(starts[count], period.getEnd().getTime());
+      count++;
+    }
+    return Stays.of(starts, ends, count, currentlyOnIcu);
+  }
+
+  /** The number of encounters with at least one ICU location. */
+  public int size() {
+    return staysByEncounterId.size();
+  }
+
+  /** The ids of all encounters with at least one ICU location, as unmodifiable set. */
+  public Set<String> getIcuCaseIds() {
+    return Collections.unmodifiableSet(staysByEncounterId.keySet());
+  }
+
+  /** Whether the encounter with the given id references an ICU location. */
+  public boolean isIcuCase(String encounterId) {
+    return staysByEncounterId.containsKey(encounterId);
+  }
+
+  /** Whether the encounter with the given id got an ICU location component without end. */
+  public boolean isCurrentlyOnIcu(String encounterId) {
+    Stays stays = staysByEncounterId.get(encounterId);
+    return stays != null && stays.currentlyOnIcu();
+  }
+
+  /** The ids of all encounters that got an ICU location component without end. */
+  public Set<String> getCurrentlyOnIcu() {
+    Set<String> result = new HashSet<>();
+    staysByEncounterId.forEach(
+        (id, stays) -> {
+          if (stays.currentlyOnIcu()) {
+            result.add(id);
+          }
+        });
+    return result;
+  }
+
+  /**
+   * Whether an ICU stay of the encounter overlaps the given window (both bounds inclusive).
+   *
+   * @param encounterId the encounter id
+   * @param from the start of the window
+   * @param to the end of the window
+   */
+  public boolean wasOnIcuWithin(String encounterId, Date from, Date to) {
+    Stays stays = staysByEncounterId.get(encounterId);
+    return stays != null && stays.overlaps(from.getTime(), to.getTime());
+  }
+
+  /**
+   * The ids of all encounters with an ICU stay that overlaps the given window (both bounds
+   * inclusive).
+   */
+  public Set<String> getEncounterIdsOnIcuWithin(Date from, Date to) {
+    long fromMillis = from.getTime();
+    long toMillis = to.getTime();
+    Set<String> result = new HashSet<>();
+    staysByEncounterId.forEach(
+        (id, stays) -> {
+          if (stays.overlaps(fromMillis, toMillis)) {
+            result.add(id);
+          }
+        });
+    return result;
+  }
+
+  /**
+   * @return the total length of the ICU stays of the encounter in milliseconds; 0 if there are none
+   */
+  public long getIcuMillis(String encounterId) {
+    Stays stays = staysByEncounterId.get(encounterId);
+    if (stays == null) {
+      return 0;
+    }
+    long total = 0;
+    for (int i = 0; i < stays.starts().length; i++) {
+      total += Math.max(0, Math.min(stays.ends()[i], now) - stays.starts()[i]);
+    }
+    return total;
+  }
+
+  /**
+   * The number of calendar days on which the encounter was on an ICU, counting the days of
+   * admission and discharge.
+   *
+   * @param encounterId the encounter id
+   * @param zoneId the time zone that defines the calendar days
+   * @return the number of distinct ICU days; 0 if there are no ICU stays
+   */
+  public int getIcuDays(String encounterId, ZoneId zoneId) {
+    Stays stays = staysByEncounterId.get(encounterId);
+    return stays == null ? 0 : countDays(stays, zoneId);
+  }
+
+  /**
+   * The {@link #getIcuDays(String, ZoneId) ICU days} of all encounters with an ICU stay.
+   *
+   * @param zoneId the time zone that defines the calendar days
+   * @return the number of ICU days per encounter id
+   */
+  public Map<String, Integer> getIcuDaysByEncounterId(ZoneId zoneId) {
+    Map<String, Integer> result = new HashMap<>(staysByEncounterId.size() * 2);
+    staysByEncounterId.forEach((id, stays) -> result.put(id, countDays(stays, zoneId)));
+    return result;
+  }
+
+  private int countDays(Stays stays, ZoneId zoneId) {
+    int days = 0;
+    LocalDate lastCounted = null;
+    for (int i = 0; i < stays.starts().length; i++) {
+      long end = Math.min(stays.ends()[i], now);
+      if (end < stays.starts()[i]) {
+        continue;
+      }
+      LocalDate first = toDate(stays.starts()[i], zoneId);
+      LocalDate last = toDate(end, zoneId);
+      // the intervals are sorted, so only the first day can overlap with the previous interval
+      if (lastCounted != null && !first.isAfter(lastCounted)) {
+        first = lastCounted.plusDays(1);
+      }
+      if (!first.isAfter(last)) {
+        days += (int) ChronoUnit.DAYS.between(first, last) + 1;
+        lastCounted = last;
+      }
+    }
+    return days;
+  }
+
+  private static LocalDate toDate(long millis, ZoneId zoneId) {
+    return Instant.ofEpochMilli(millis).atZone(zoneId).toLocalDate();
+  }
+}
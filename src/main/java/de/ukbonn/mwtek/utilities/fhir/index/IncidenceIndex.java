@@ -0,0 +1,350 @@
+/*
+ * Copyright (C) 2021 University Hospital Bonn - All Rights Reserved You may use, distribute and
+ * modify this code under the GPL 3 license. THERE IS NO WARRANTY FOR THE PROGRAM, TO THE EXTENT
+ * PERMITTED BY APPLICABLE LAW. EXCEPT WHEN OTHERWISE STATED IN WRITING THE COPYRIGHT HOLDERS AND/OR
+ * OTHER PARTIES PROVIDE THE PROGRAM “AS IS” WITHOUT WARRANTY OF ANY KIND, EITHER EXPRESSED OR
+ * IMPLIED, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE. THE ENTIRE RISK AS TO THE QUALITY AND PERFORMANCE OF THE PROGRAM IS WITH
+ * YOU. SHOULD THE PROGRAM PROVE DEFECTIVE, YOU ASSUME THE COST OF ALL NECESSARY SERVICING, REPAIR
+ * OR CORRECTION. IN NO EVENT UNLESS REQUIRED BY APPLICABLE LAW OR AGREED TO IN WRITING WILL ANY
+ * COPYRIGHT HOLDER, OR ANY OTHER PARTY WHO MODIFIES AND/OR CONVEYS THE PROGRAM AS PERMITTED ABOVE,
+ * BE LIABLE TO YOU FOR DAMAGES, INCLUDING ANY GENERAL, SPECIAL, INCIDENTAL OR CONSEQUENTIAL DAMAGES
+ * ARISING OUT OF THE USE OR INABILITY TO USE THE PROGRAM (INCLUDING BUT NOT LIMITED TO LOSS OF DATA
+ * OR DATA BEING RENDERED INACCURATE OR LOSSES SUSTAINED BY YOU OR THIRD PARTIES OR A FAILURE OF THE
+ * PROGRAM TO OPERATE WITH ANY OTHER PROGRAMS), EVEN IF SUCH HOLDER OR OTHER PARTY HAS BEEN ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGES. You should have received a copy of the GPL 3 license with *
+ * this file. If not, visit http://www.gnu.de/documents/gpl-3.0.en.html
+ */
+package de.ukbonn.mwtek.utilities.fhir.index;
+
+import static de.ukbonn.mwtek.utilities.enums.TerminologySystems.ICD;
+import static de.ukbonn.mwtek.utilities.enums.TerminologySystems.OPS;
+import static de.ukbonn.mwtek.utilities.enums.TerminologySystems.SNOMED;
+
+import de.ukbonn.mwtek.utilities.fhir.resources.MiiCondition;
+import de.ukbonn.mwtek.utilities.fhir.resources.MiiProcedure;
+import de.ukbonn.mwtek.utilities.generic.concurrent.ParallelismPolicy;
+import de.ukbonn.mwtek.utilities.generic.time.SortedTimeTools;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.function.Function;
+import org.hl7.fhir.r4.model.Coding;
+
+/**
+ * Index of the first occurrence of a code per patient ("incidence").
+ *
+ * <p>For every ICD code of the conditions and every OPS and SNOMED code of the procedures (or for
+ * the code group a grouping function maps them to), the index stores the earliest recorded date
+ * (conditions) or performed start (procedures) per patient. Per code, the first occurrences are
+ * kept as a primitive {@code long[]} sorted by time, so "new patients in a period" and "new cases
+ * per day" are binary searches and linear runs instead of a group-by over all resources.
+ *
+ * <p>The index is built in one pass over the conditions and one over the procedures, parallelized
+ * by the default {@link ParallelismPolicy}. Resources without patient id or timestamp are ignored.
+ * The index is immutable after construction and can be shared between threads. Changes to the
+ * underlying resources are not reflected, the index has to be rebuilt instead.
+ */
+public class IncidenceIndex {
+
+  private final Map<String, NavigableMap<String, FirstOccurrences>> occurrencesBySystem;
+
+  /**
+   * Builds the index over the single codes of the given resources.
+   *
+   * @param conditions the conditions whose ICD codes are indexed; may be {@code null}
+   * @param procedures the procedures whose OPS and SNOMED codes are indexed; may be {@code null}
+   */
+  public IncidenceIndex(Collection<MiiCondition> conditions, Collection<MiiProcedure> procedures) {
+    this(conditions, procedures, Function.identity());
+  }
+
+  /**
+   * Builds the index over code groups of the given resources.
+   *
+   * @param conditions the conditions whose ICD codes are indexed; may be {@code null}
+   * @param procedures the procedures whose OPS and SNOMED codes are indexed; may be {@code null}
+   * @param codeGrouping maps a code to the key it is indexed under (e.g. {@code code ->
+   *     code.substring(0, 3)} for ICD categories); codes mapped to {@code null} are skipped
+   */
+  public IncidenceIndex(
+      Collection<MiiCondition> conditions,
+      Collection<MiiProcedure> procedures,
+      Function<String, String> codeGrouping) {
+    ParallelismPolicy policy = ParallelismPolicy.getDefault();
+    Builder builder = new Builder(codeGrouping);
+    if (conditions != null) {
+      builder.merge(
+          policy.apply(
+              conditions,
+              stream ->
+                  stream.collect(
+                      () -> new Builder(codeGrouping), Builder::addCondition, Builder::merge),
+              Builder::merge));
+    }
+    if (procedures != null) {
+      builder.merge(
+          policy.apply(
+              procedures,
+              stream ->
+                  stream.collect(
+                      () -> new Builder(codeGrouping), Builder::addProcedure, Builder::merge),
+              Builder::merge));
+    }
+    this.occurrencesBySystem = new HashMap<>();
+    builder.firstOccurrences.forEach(
+        (key, byPatient) ->
+            occurrencesBySystem
+                .computeIfAbsent(key.system(), k -> new TreeMap<>())
+                .put(key.code(), new FirstOccurrences(byPatient)));
+  }
+
+  /**
+   * All indexed codes (or code groups) of the given system.
+   *
+   * @param system e.g. {@code TerminologySystems.ICD}
+   */
+  public Set<String> getCodes(String system) {
+    NavigableMap<String, FirstOccurrences> byCode = occurrencesBySystem.get(system);
+    return byCode != null ? Collections.unmodifiableSet(byCode.keySet()) : Set.of();
+  }
+
+  /**
+   * Number of distinct patients that ever got the given code.
+   *
+   * @param system the terminology system of the code
+   * @param code the code or code group
+   */
+  public int getPatientCount(String system, String code) {
+    FirstOccurrences occurrences = get(system, code);
+    return occurrences != null ? occurrences.times.length : 0;
+  }
+
+  /**
+   * Returns the first time the patient got the given code.
+   *
+   * @param system the terminology system of the code
+   * @param code the code or code group
+   * @param patientId the patient id
+   * @return the epoch millis of the first occurrence or {@link SortedTimeTools#NO_TIME}
+   */
+  public long getFirstOccurrence(String system, String code, String patientId) {
+    FirstOccurrences occurrences = get(system, code);
+    return occurrences != null && patientId != null
+        ? occurrences.timeOf(patientId)
+        : SortedTimeTools.NO_TIME;
+  }
+
+  /**
+   * Counts the patients whose first occurrence of the code lies within the given period.
+   *
+   * @param system the terminology system of the code
+   * @param code the code or code group
+   * @param from the inclusive lower bound; {@code null} means unbounded
+   * @param to the inclusive upper bound; {@code null} means unbounded
+   */
+  public int countNewPatients(String system, String code, Date from, Date to) {
+    FirstOccurrences occurrences = get(system, code);
+    if (occurrences == null) {
+      return 0;
+    }
+    int[] range = occurrences.range(from, to);
+    return range[1] - range[0];
+  }
+
+  /**
+   * Returns the patients whose first occurrence of the code lies within the given period, ordered
+   * by the time of the first occurrence.
+   *
+   * @param system the terminology system of the code
+   * @param code the code or code group
+   * @param from the inclusive lower bound; {@code null} means unbounded
+   * @param to the inclusive upper bound; {@code null} means unbounded
+   */
+  public List<String> getNewPatients(String system, String code, Date from, Date to) {
+    FirstOccurrences occurrences = get(system, code);
+    if (occurrences == null) {
+      return List.of();
+    }
+    int[] range = occurrences.range(from, to);
+    return Collections.unmodifiableList(
+        Arrays.asList(occurrences.patientIds).subList(range[0], range[1]));
+  }
+
+  /**
+   * Counts the new patients (first occurrence of the code) per calendar day.
+   *
+   * @param system the terminology system of the code
+   * @param code the code or code group
+   * @param zone the time zone that defines the calendar days, e.g. {@code
+   *     DateTools.TIME_ZONE_EUROPE_BERLIN}
+   * @return the days with at least one new patient, in ascending order
+   */
+  public NavigableMap<LocalDate, Integer> newCasesPerDay(String system, String code, ZoneId zone) {
+    return newCasesPerDay(system, code, null, null, zone);
+  }
+
+  /**
+   * Counts the new patients (first occurrence of the code) per calendar day within a period.
+   *
+   * @param system the terminology system of the code
+   * @param code the code or code group
+   * @param from the inclusive lower bound; {@code null} means unbounded
+   * @param to the inclusive upper bound; {@code null} means unbounded
+   * @param zone the time zone that defines the calendar days
+   * @return the days with at least one new patient, in ascending order
+   */
+  public NavigableMap<LocalDate, Integer> newCasesPerDay(
+      String system, String code, Date from, Date to, ZoneId zone) {
+    NavigableMap<LocalDate, Integer> result = new TreeMap<>();
+    FirstOccurrences occurrences = get(system, code);
+    if (occurrences == null) {
+      return result;
+    }
+    int[] range = occurrences.range(from, to);
+    int i = range[0];
+    while (i < range[1]) {
+      LocalDate day = Instant.ofEpochMilli(occurrences.times[i]).atZone(zone).toLocalDate();
+      // The times are sorted, so all entries of a day are adjacent
+      long nextDay = day.plusDays(1).atStartOfDay(zone).toInstant().toEpochMilli();
+      int end = SortedTimeTools.lowerBound(occurrences.times, i, range[1], nextDay);
+      result.put(day, end - i);
+      i = end;
+    }
+    return result;
+  }
+
+  private FirstOccurrences get(String system, String code) {
+    NavigableMap<String, FirstOccurrences> byCode = occurrencesBySystem.get(system);
+    return byCode != null && code != null ? byCode.get(code) : null;
+  }
+
+  private record Key(String system, String code) {}
+
+  /** Mutable per-thread state of the build pass. */
+  private static class Builder {
+
+    private final Function<String, String> codeGrouping;
+    private final Map<Key, Map<String, Long>> firstOccurrences = new HashMap<>();
+
+    private Builder(Function<String, String> codeGrouping) {
+      this.codeGrouping = codeGrouping;
+    }
+
+    private void addCondition(MiiCondition condition) {
+      if (condition == null || condition.getPatientId() == null || !condition.hasCode()) {
+        return;
+      }
+      long recorded = condition.getRecordedDateMillis();
+      if (recorded == SortedTimeTools.NO_TIME) {
+        return;
+      }
+      for (Coding coding : condition.getCode().getCoding()) {
+        if (ICD.equals(coding.getSystem())) {
+          add(ICD, coding.getCode(), condition.getPatientId(), recorded);
+        }
+      }
+    }
+
+    private void addProcedure(MiiProcedure procedure) {
+      if (procedure == null || procedure.getPatientId() == null || !procedure.hasCode()) {
+        return;
+      }
+      long performed = procedure.getPerformedStartMillis();
+      if (performed == SortedTimeTools.NO_TIME) {
+        return;
+      }
+      for (Coding coding : procedure.getCode().getCoding()) {
+        if (OPS.equals(coding.getSystem()) || SNOMED.equals(coding.getSystem())) {
+          add(coding.getSystem(), coding.getCode(), procedure.getPatientId(), performed);
+        }
+      }
+    }
+
+    private void add(String system, String code, String patientId, long time) {
+      String group = code != null ? codeGrouping.apply(code) : null;
+      if (group != null) {
+        firstOccurrences
+            .computeIfAbsent(new Key(system, group), k -> new HashMap<>())
+            .merge(patientId, time, Math::min);
+      }
+    }
+
+    private Builder merge(Builder other) {
+      other.firstOccurrences.forEach(
+          (key, byPatient) -> {
+            Map<String, Long> target = firstOccurrences.get(key);
+            if (target == null) {
+              firstOccurrences.put(key, byPatient);
+            } else {
+              byPatient.forEach((patientId, time) -> target.merge(patientId, time, Math::min));
+            }
+          });
+      return this;
+    }
+  }
+
+  /** First occurrence per patient of one code, sorted by time. */
+  private static class FirstOccurrences {
+
+    private final long[] times;
+    private final String[] patientIds;
+
+    /** Positions in {@link #times} ordered by patient id, for the per-patient lookup. */
+    private final int[] byPatient;
+
+    private FirstOccurrences(Map<String, Long> firstOccurrenceByPatient) {
+      List<Map.Entry<String, Long>> entries = new ArrayList<>(firstOccurrenceByPatient.entrySet());
+      entries.sort(Map.Entry.comparingByValue());
+      this.times = new long[entries.size()];
+      this.patientIds = new String[entries.size()];
+      for (int i = 0; i < entries.size(); i++) {
+        times[i] = entries.get(i).getValue();
+        patientIds[i] = entries.get(i).getKey();
+      }
+      Integer[] order = new Integer[patientIds.length];
+      Arrays.setAll(order, i -> i);
+      Arrays.sort(order, Comparator.comparing(i -> patientIds[i]));
+      this.byPatient = Arrays.stream(order).mapToInt(Integer::intValue).toArray();
+    }
+
+    private long timeOf(String patientId) {
+      int low = 0;
+      int high = byPatient.length - 1;
+      while (low <= high) {
+        int mid = (low + high) >>> 1;
+        int cmp = patientIds[byPatient[mid]].compareTo(patientId);
+        if (cmp < 0) {
+          low = mid + 1;
+        } else if (cmp > 0) {
+          high = mid - 1;
+        } else {
+          return times[byPatient[mid]];
+        }
+      }
+      return SortedTimeTools.NO_TIME;
+    }
+
+    /** Returns {@code [start, end)} of the entries within the inclusive bounds. */
+    private int[] range(Date from, Date to) {
+      int start = from != null ? SortedTimeTools.lowerBound(times, from.getTime()) : 0;
+      int end =
+          to != null
+              ? SortedTimeTools.upperBound(times, start, times.length, to.getTime())
+              : times.length;
+      return new int[] {start, Math.max(start, end)};
+    }
+  }
+}
@@ -0,0 +1,196 @@
+/*
+ * Copyright (C) 2021 University Hospital Bonn - All Rights Reserved You may use, distribute and
+ * modify this code under the GPL 3 license. THERE IS NO WARRANTY FOR THE PROGRAM, TO THE EXTENT
+ * PERMITTED BY APPLICABLE LAW. EXCEPT WHEN OTHERWISE STATED IN WRITING THE COPYRIGHT HOLDERS AND/OR
+ * OTHER PARTIES PROVIDE THE PROGRAM “AS IS” WITHOUT WARRANTY OF ANY KIND, EITHER EXPRESSED OR
+ * IMPLIED, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE. THE ENTIRE RISK AS TO THE QUALITY AND PERFORMANCE OF THE PROGRAM IS WITH
+ * YOU. SHOULD THE PROGRAM PROVE DEFECTIVE, YOU ASSUME THE COST OF ALL NECESSARY SERVICING, REPAIR
+ * OR CORRECTION. IN NO EVENT UNLESS REQUIRED BY APPLICABLE LAW OR AGREED TO IN WRITING WILL ANY
+ * COPYRIGHT HOLDER, OR ANY OTHER PARTY WHO MODIFIES AND/OR CONVEYS THE PROGRAM AS PERMITTED ABOVE,
+ * BE LIABLE TO YOU FOR DAMAGES, INCLUDING ANY GENERAL, SPECIAL, INCIDENTAL OR CONSEQUENTIAL DAMAGES
+ * ARISING OUT OF THE USE OR INABILITY TO USE THE PROGRAM (INCLUDING BUT NOT LIMITED TO LOSS OF DATA
+ * OR DATA BEING RENDERED INACCURATE OR LOSSES SUSTAINED BY YOU OR THIRD PARTIES OR A FAILURE OF THE
+ * PROGRAM TO OPERATE WITH ANY OTHER PROGRAMS), EVEN IF SUCH HOLDER OR OTHER PARTY HAS BEEN ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGES. You should have received a copy of the GPL 3 license with *
+ * this file. If not, visit http://www.gnu.de/documents/gpl-3.0.en.html
+ */
+
+package de.ukbonn.mwtek.utilities.fhir.index;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.List;
+import java.util.function.Predicate;
+import org.hl7.fhir.r4.model.Encounter;
+import org.hl7.fhir.r4.model.Encounter.EncounterLocationComponent;
+import org.hl7.fhir.r4.model.Period;
+
+/**
+ * The transfer history of one encounter: its {@link Encounter#getLocation() location components} as
+ * a sorted sequence of non-overlapping stays.
+ *
+ * <p>The components are normalized on construction: they are sorted by period start, a stay that
+ * overlaps the next one ends when the next one starts (the later transfer wins), empty stays
+ * (including the ones that become empty that way) are dropped and consecutive stays at the same
+ * location are merged. Gaps between stays are kept; {@link #locationAt(long)} returns {@code null}
+ * within a gap. A component without end is an open stay. Components without period start or
+ * location id are ignored.
+ *
+ * <p>Encounters often reference the ward, the room and the bed at the same time. Use the location
+ * filter to build the timeline on one of these levels (e.g. the ward ids), otherwise the parallel
+ * references are treated as transfers.
+ *
+ * <p>Location ids are the {@code getIdBase()} of the location references, as set by the resource
+ * conversion. A timeline is immutable and can be shared between threads.
+ */
+public class LocationTimeline {
+
+  /** End of a stay that is still open. */
+  public static final long OPEN_END = Long.MAX_VALUE;
+
+  /**
+   * A stay at one location.
+   *
+   * @param locationId the location id
+   * @param start the start as epoch millis (inclusive)
+   * @param end the end as epoch millis (exclusive) or {@link #OPEN_END}
+   */
+  public record Stay(String locationId, long start, long end) {
+
+    public boolean isOpen() {
+      return end == OPEN_END;
+    }
+  }
+
+  private final Stay[] stays;
+  // starts of the stays, for the binary search
+  private final long[] starts;
+
+  /**
+   * @param encounter the encounter whose location components are used
+   */
+  public LocationTimeline(Encounter encounter) {
+    this(encounter.hasLocation() ? encounter.getLocation() : List.of(), id -> true);
+  }
+
+  /**
+   * @param encounter the encounter whose location components are used
+   * @param locationFilter the location ids that are part of the timeline, e.g. only wards
+   */
+  public LocationTimeline(Encounter encounter, Predicate<String> locationFilter) {
+    this(encounter.hasLocation() ? encounter.getLocation() : List.of(), locationFilter);
+  }
+
+  /**
+   * @param locations the location components
+   * @param locationFilter the location ids that are part of the timeline, e.g. only wards
+   */
+  public LocationTimeline(
+      List<EncounterLocationComponent> locations, Predicate<String> locationFilter) {
+    List<Stay> raw = new ArrayList<>(locations.size());
+    for (EncounterLocationComponent location : locations) {
+      String locationId = location.hasLocation() ? location.getLocation().getIdBase() : null;
+      Period period = location.hasPeriod() ? location.getPeriod() : null;
+      if (locationId == null
+          || period == null
+          || period.getStart() == null
+          || !locationFilter.test(locationId)) {
+        continue;
+      }
+      long start = period.getStart().getTime();
+      long end = period.getEnd() == null ? OPEN_END : Math.max(start, period.getEnd().getTime());
+      raw.add(new Stay(locationId, start, end));
+    }
+    this.stays = normalize(raw);
+    this.starts = new long[stays.length];
+    for (int i = 0; i < stays.length; i++) {
+      starts[i] = stays[i].start();
+    }
+  }
+
+  private static Stay[] normalize(List<Stay> raw) {
+    // empty stays are dropped up front, so they don't cut the previous stay short
+    raw.removeIf(stay -> !stay.isOpen() && stay.end() <= stay.start());
+    raw.sort(Comparator.comparingLong(Stay::start).thenComparingLong(Stay::end));
+    List<Stay> result = new ArrayList<>(raw.size());
+    for (int i = 0; i < raw.size(); i++) {
+      Stay stay = raw.get(i);
+      long end = i + 1 < raw.size() ? Math.min(stay.end(), raw.get(i + 1).start()) : stay.end();
+      if (end <= stay.start()) {
+        // completely replaced by the next transfer
+        continue;
+      }
+      Stay last = result.isEmpty() ? null : result.get(result.size() - 1);
+      if (last != null
+          && last.locationId().equals(stay.locationId())
+          && last.end() >= stay.start()) {
+        result.set(
+            result.size() - 1,
+            new Stay(last.locationId(), last.start(), Math.max(last.end(), end)));
+      } else {
+        result.add(new Stay(stay.locationId(), stay.start(), end));
+      }
+    }
+    return result.toArray(Stay[]::new);
+  }
+
+  /** The normalized stays, sorted by start. */
+  public List<Stay> getStays() {
+    return List.of(stays);
+  }
+
+  /** The number of normalized stays. */
+  public int size() {
+    return stays.length;
+  }
+
+  /** Whether the timeline contains no stay. */
+  public boolean isEmpty() {
+    return stays.length == 0;
+  }
+
+  /**
+   * The stay at the given time.
+   *
+   * @param time epoch millis
+   * @return the stay or {@code null} if the time is before the first stay, after the last one or in
+   *     a gap
+   */
+  public Stay stayAt(long time) {
+    int i = Arrays.binarySearch(starts, time);
+    if (i < 0) {
+      i = -i - 2;
+    }
+    return i >= 0 && time < stays[i].end() ? stays[i] : null;
+  }
+
+  /**
+   * The location at the given time.
+   *
+   * @param time epoch millis
+   * @return the location id or {@code null}, see {@link #stayAt(long)}
+   */
+  public String locationAt(long time) {
+    Stay stay = stayAt(time);
+    return stay == null ? null : stay.locationId();
+  }
+
+  /** Same as {@link #locationAt(long)}. */
+  public String locationAt(Date time) {
+    return locationAt(time.getTime());
+  }
+
+  /**
+   * The current location, i.e. the location of the last stay if it is still open.
+   *
+   * @return the location id or {@code null}
+   */
+  public String getCurrentLocation() {
+    return stays.length > 0 && stays[stays.length - 1].isOpen()
+        ? stays[stays.length - 1].locationId()
+        : null;
+  }
+}
@@ -0,0 +1,318 @@
+/*
+ * Copyright (C) 2021 University Hospital Bonn - All Rights Reserved You may use, distribute and
+ * modify this code under the GPL 3 license. THERE IS NO WARRANTY FOR THE PROGRAM, TO THE EXTENT
+ * PERMITTED BY APPLICABLE LAW. EXCEPT WHEN OTHERWISE STATED IN WRITING THE COPYRIGHT HOLDERS AND/OR
+ * OTHER PARTIES PROVIDE THE PROGRAM “AS IS” WITHOUT WARRANTY OF ANY KIND, EITHER EXPRESSED OR
+ * IMPLIED, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE. THE ENTIRE RISK AS TO THE QUALITY AND PERFORMANCE OF THE PROGRAM IS WITH
+ * YOU. SHOULD THE PROGRAM PROVE DEFECTIVE, YOU ASSUME THE COST OF ALL NECESSARY SERVICING, REPAIR
+ * OR CORRECTION. IN NO EVENT UNLESS REQUIRED BY APPLICABLE LAW OR AGREED TO IN WRITING WILL ANY
+ * COPYRIGHT HOLDER, OR ANY OTHER PARTY WHO MODIFIES AND/OR CONVEYS THE PROGRAM AS PERMITTED ABOVE,
+ * BE LIABLE TO YOU FOR DAMAGES, INCLUDING ANY GENERAL, SPECIAL, INCIDENTAL OR CONSEQUENTIAL DAMAGES
+ * ARISING OUT OF THE USE OR INABILITY TO USE THE PROGRAM (INCLUDING BUT NOT LIMITED TO LOSS OF DATA
+ * OR DATA BEING RENDERED INACCURATE OR LOSSES SUSTAINED BY YOU OR THIRD PARTIES OR A FAILURE OF THE
+ * PROGRAM TO OPERATE WITH ANY OTHER PROGRAMS), EVEN IF SUCH HOLDER OR OTHER PARTY HAS BEEN ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGES. You should have received a copy of the GPL 3 license with *
+ * this file. If not, visit http://www.gnu.de/documents/gpl-3.0.en.html
+ */
+package de.ukbonn.mwtek.utilities.fhir.index;
+
+import static de.ukbonn.mwtek.utilities.fhir.misc.FhirProcedureTools.getPerformedEnd;
+import static de.ukbonn.mwtek.utilities.fhir.misc.FhirProcedureTools.getPerformedStart;
+
+import de.ukbonn.mwtek.utilities.fhir.resources.MiiProcedure;
+import de.ukbonn.mwtek.utilities.generic.collections.IntervalTree;
+import de.ukbonn.mwtek.utilities.generic.time.SortedTimeTools;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.TreeMap;
+import org.hl7.fhir.r4.model.Coding;
+
+/**
+ * Index over {@link MiiProcedure} resources by coding system and code (e.g. OPS or SNOMED CT),
+ * combined with an {@link IntervalTree} over {@code performed[x]} for each code.
+ *
+ * <p>The index is built once. Code lookups are hash lookups, prefix lookups use a sorted map and
+ * time windows are answered by the interval tree of each matching code, so a query like "all
+ * procedures with OPS prefix {@code 8-980} performed in March" does not visit unrelated procedures.
+ * Queries restricted to a single case only look at the procedures of that case.
+ *
+ * <p>{@code performed[x]} is normalized once with {@link
+ * de.ukbonn.mwtek.utilities.fhir.misc.FhirProcedureTools#getPerformedStart(
+ * org.hl7.fhir.r4.model.Procedure)} and {@link
+ * de.ukbonn.mwtek.utilities.fhir.misc.FhirProcedureTools#getPerformedEnd(
+ * org.hl7.fhir.r4.model.Procedure)}; a period without end counts as ongoing. Procedures without a
+ * performed date are part of the code lookups, but never of a time window query.
+ *
+ * <p>The index is immutable after construction and can be shared between threads.
+ */
+public class ProcedureIndex {
+
+  private final Map<String, NavigableMap<String, CodePostings>> postingsBySystem;
+  private final Map<String, List<MiiProcedure>> proceduresByCase;
+  private final Map<MiiProcedure, long[]> performedIntervals;
+
+  /**
+   * Builds the index over all codings of the given procedures.
+   *
+   * @param procedures the procedures to index; may be {@code null}
+   */
+  public ProcedureIndex(Collection<MiiProcedure> procedures) {
+    Map<String, Map<String, List<MiiProcedure>>> builder = new HashMap<>();
+    Map<String, List<MiiProcedure>> byCase = new HashMap<>();
+    Map<MiiProcedure, long[]> intervals = new IdentityHashMap<>();
+    if (procedures != null) {
+      for (MiiProcedure procedure : procedures) {
+        if (procedure == null || intervals.containsKey(procedure)) {
+          continue;
+        }
+        intervals.put(
+            procedure, new long[] {getPerformedStart(procedure), getPerformedEnd(procedure)});
+        if (procedure.getCaseId() != null) {
+          byCase.computeIfAbsent(procedure.getCaseId(), k -> new ArrayList<>()).add(procedure);
+        }
+        if (!procedure.hasCode()) {
+          continue;
+        }
+        for (Coding coding : procedure.getCode().getCoding()) {
+          if (!coding.hasSystem() || !coding.hasCode()) {
+            continue;
+          }
+          List<MiiProcedure> postings =
+              builder
+                  .computeIfAbsent(coding.getSystem(), k -> new HashMap<>())
+                  .computeIfAbsent(coding.getCode(), k -> new ArrayList<>());
+          // The same code can be listed twice in one procedure, it is indexed once per procedure
+          if (postings.isEmpty() || postings.get(postings.size() - 1) != procedure) {
+            postings.add(procedure);
+          }
+        }
+      }
+    }
+    this.performedIntervals = intervals;
+    this.proceduresByCase = byCase;
+    this.postingsBySystem = new HashMap<>();
+    builder.forEach(
+        (system, codes) -> {
+          NavigableMap<String, CodePostings> postingsByCode = new TreeMap<>();
+          codes.forEach((code, list) -> postingsByCode.put(code, new CodePostings(list)));
+          postingsBySystem.put(system, postingsByCode);
+        });
+  }
+
+  /**
+   * All codes of the given coding system that occur in at least one indexed procedure.
+   *
+   * @param system the coding system (e.g. {@code TerminologySystems.OPS})
+   * @return the indexed codes; never {@code null}
+   */
+  public Set<String> getCodes(String system) {
+    NavigableMap<String, CodePostings> codes = postingsBySystem.get(system);
+    return codes != null ? Collections.unmodifiableSet(codes.keySet()) : Collections.emptySet();
+  }
+
+  /**
+   * Number of procedures indexed under the given system and code.
+   *
+   * @param system the coding system
+   * @param code the code
+   * @return the length of the posting list or {@code 0} if the code is unknown
+   */
+  public int getPostingCount(String system, String code) {
+    NavigableMap<String, CodePostings> codes = postingsBySystem.get(system);
+    CodePostings postings = codes != null && code != null ? codes.get(code) : null;
+    return postings != null ? postings.procedures.size() : 0;
+  }
+
+  /**
+   * Returns all procedures with at least one of the given codes in the given coding system.
+   *
+   * @param system the coding system (e.g. {@code TerminologySystems.SNOMED})
+   * @param codes the codes to look up; may be {@code null}
+   * @return the matching procedures; never {@code null}
+   */
+  public Set<MiiProcedure> getProcedures(String system, Collection<String> codes) {
+    Set<MiiProcedure> result = new HashSet<>();
+    for (CodePostings postings : exact(system, codes)) {
+      result.addAll(postings.procedures);
+    }
+    return result;
+  }
+
+  /**
+   * Returns the case ids of all procedures with at least one of the given codes in the given coding
+   * system.
+   *
+   * @param system the coding system
+   * @param codes the codes to look up; may be {@code null}
+   * @return the case ids of the matching procedures; never {@code null}
+   */
+  public Set<String> getCaseIds(String system, Collection<String> codes) {
+    Set<String> result = new HashSet<>();
+    for (CodePostings postings : exact(system, codes)) {
+      postings.procedures.forEach(procedure -> result.add(procedure.getCaseId()));
+    }
+    return result;
+  }
+
+  /**
+   * Returns all procedures with a code in the given system that starts with one of the given
+   * prefixes (e.g. {@code 5-480} matches {@code 5-480.2}).
+   *
+   * @param system the coding system
+   * @param prefixes the code prefixes; may be {@code null}
+   * @return the matching procedures; never {@code null}
+   */
+  public Set<MiiProcedure> getProceduresByPrefixes(String system, Collection<String> prefixes) {
+    Set<MiiProcedure> result = new HashSet<>();
+    for (CodePostings postings : prefixed(system, prefixes)) {
+      result.addAll(postings.procedures);
+    }
+    return result;
+  }
+
+  /**
+   * Returns all procedures with a code in the given system that starts with one of the given
+   * prefixes and whose {@code performed[x]} overlaps the given time window.
+   *
+   * @param system the coding system
+   * @param prefixes the code prefixes; may be {@code null}
+   * @param from the lower bound of the window (inclusive); {@code null} for an open window
+   * @param to the upper bound of the window (inclusive); {@code null} for an open window
+   * @return the matching procedures; never {@code null}
+   */
+  public Set<MiiProcedure> getProceduresByPrefixes(
+      String system, Collection<String> prefixes, Date from, Date to) {
+    long lower = from != null ? from.getTime() : SortedTimeTools.NO_TIME + 1;
+    long upper = to != null ? to.getTime() : Long.MAX_VALUE;
+    Set<MiiProcedure> result = new HashSet<>();
+    for (CodePostings postings : prefixed(system, prefixes)) {
+      postings.performed.query(lower, upper, result::add);
+    }
+    return result;
+  }
+
+  /**
+   * Returns all procedures of a single case with a code in the given system that starts with one of
+   * the given prefixes and whose {@code performed[x]} overlaps the given time window. Only the
+   * procedures of that case are visited.
+   *
+   * @param system the coding system
+   * @param prefixes the code prefixes; may be {@code null}
+   * @param from the lower bound of the window (inclusive); {@code null} for an open window
+   * @param to the upper bound of the window (inclusive); {@code null} for an open window
+   * @param caseId the case id the procedures have to belong to
+   * @return the matching procedures; never {@code null}
+   */
+  public Set<MiiProcedure> getProceduresByPrefixes(
+      String system, Collection<String> prefixes, Date from, Date to, String caseId) {
+    if (caseId == null) {
+      return getProceduresByPrefixes(system, prefixes, from, to);
+    }
+    List<MiiProcedure> caseProcedures = proceduresByCase.get(caseId);
+    if (caseProcedures == null || prefixes == null || prefixes.isEmpty()) {
+      return Collections.emptySet();
+    }
+    long lower = from != null ? from.getTime() : SortedTimeTools.NO_TIME + 1;
+    long upper = to != null ? to.getTime() : Long.MAX_VALUE;
+    Set<MiiProcedure> result = new HashSet<>();
+    for (MiiProcedure procedure : caseProcedures) {
+      long[] interval = performedIntervals.get(procedure);
+      if (interval[0] == SortedTimeTools.NO_TIME
+          || interval[0] > upper
+          || interval[1] < lower
+          || !hasCodeWithPrefix(procedure, system, prefixes)) {
+        continue;
+      }
+      result.add(procedure);
+    }
+    return result;
+  }
+
+  /**
+   * Returns all indexed procedures of the given case.
+   *
+   * @param caseId the case id
+   * @return the procedures of the case; never {@code null}
+   */
+  public List<MiiProcedure> getProceduresOfCase(String caseId) {
+    List<MiiProcedure> procedures = caseId != null ? proceduresByCase.get(caseId) : null;
+    return procedures != null ? Collections.unmodifiableList(procedures) : Collections.emptyList();
+  }
+
+  private static boolean hasCodeWithPrefix(
+      MiiProcedure procedure, String system, Collection<String> prefixes) {
+    if (!procedure.hasCode()) {
+      return false;
+    }
+    for (Coding coding : procedure.getCode().getCoding()) {
+      if (coding.hasCode() && system.equals(coding.getSystem())) {
+        for (String prefix : prefixes) {
+          if (prefix != null && !prefix.isEmpty() && coding.getCode().startsWith(prefix)) {
+            return true;
+          }
+        }
+      }
+    }
+    return false;
+  }
+
+  private List<CodePostings> exact(String system, Collection<String> codes) {
+    NavigableMap<String, CodePostings> postingsByCode = postingsBySystem.get(system);
+    if (postingsByCode == null || codes == null || codes.isEmpty()) {
+      return Collections.emptyList();
+    }
+    List<CodePostings> result = new ArrayList<>();
+    for (String code : new HashSet<>(codes)) {
+      CodePostings postings = code != null ? postingsByCode.get(code) : null;
+      if (postings != null) {
+        result.add(postings);
+      }
+    }
+    return result;
+  }
+
+  private List<CodePostings> prefixed(String system, Collection<String> prefixes) {
+    NavigableMap<String, CodePostings> postingsByCode = postingsBySystem.get(system);
+    if (postingsByCode == null || prefixes == null || prefixes.isEmpty()) {
+      return Collections.emptyList();
+    }
+    // Overlapping prefixes (e.g. "5-48" and "5-480") must not add the same posting list twice
+    Map<String, CodePostings> result = new HashMap<>();
+    for (String prefix : prefixes) {
+      if (prefix != null && !prefix.isEmpty()) {
+        result.putAll(postingsByCode.subMap(prefix, true, prefix + Character.MAX_VALUE, true));
+      }
+    }
+    return new ArrayList<>(result.values());
+  }
+
+  /** The procedures of a single code together with the interval tree over their performed time. */
+  private final class CodePostings {
+
+    private final List<MiiProcedure> procedures;
+    private final IntervalTree<MiiProcedure> performed;
+
+    private CodePostings(List<MiiProcedure> procedures) {
+      this.procedures = procedures;
+      // Procedures without any performed date end up with end < start and are skipped by the tree
+      this.performed =
+          new IntervalTree<>(
+              procedures,
+              procedure -> {
+                long start = performedIntervals.get(procedure)[0];
+                return start == SortedTimeTools.NO_TIME ? Long.MAX_VALUE : start;
+              },
+              procedure -> performedIntervals.get(procedure)[1]);
+    }
+  }
+}
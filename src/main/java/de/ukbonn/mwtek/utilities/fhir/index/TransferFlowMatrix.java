@@ -0,0 +1,157 @@
+/*
+ * Copyright (C) 2021 University Hospital Bonn - All Rights Reserved You may use, distribute and
+ * modify this code under the GPL 3 license. THERE IS NO WARRANTY FOR THE PROGRAM, TO THE EXTENT
+ * PERMITTED BY APPLICABLE LAW. EXCEPT WHEN OTHERWISE STATED IN WRITING THE COPYRIGHT HOLDERS AND/OR
+ * OTHER PARTIES PROVIDE THE PROGRAM “AS IS” WITHOUT WARRANTY OF ANY KIND, EITHER EXPRESSED OR
+ * IMPLIED, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE. THE ENTIRE RISK AS TO THE QUALITY AND PERFORMANCE OF THE PROGRAM IS WITH
+ * YOU. SHOULD THE PROGRAM PROVE DEFECTIVE, YOU ASSUME THE COST OF ALL NECESSARY SERVICING, REPAIR
+ * OR CORRECTION. IN NO EVENT UNLESS REQUIRED BY APPLICABLE LAW OR AGREED TO IN WRITING WILL ANY
+ * COPYRIGHT HOLDER, OR ANY OTHER PARTY WHO MODIFIES AND/OR CONVEYS THE PROGRAM AS PERMITTED ABOVE,
+ * BE LIABLE TO YOU FOR DAMAGES, INCLUDING ANY GENERAL, SPECIAL, INCIDENTAL OR CONSEQUENTIAL DAMAGES
+ * ARISING OUT OF THE USE OR INABILITY TO USE THE PROGRAM (INCLUDING BUT NOT LIMITED TO LOSS OF DATA
+ * OR DATA BEING RENDERED INACCURATE OR LOSSES SUSTAINED BY YOU OR THIRD PARTIES OR A FAILURE OF THE
+ * PROGRAM TO OPERATE WITH ANY OTHER PROGRAMS), EVEN IF SUCH HOLDER OR OTHER PARTY HAS BEEN ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGES. You should have received a copy of the GPL 3 license with *
+ * this file. If not, visit http://www.gnu.de/documents/gpl-3.0.en.html
+ */
+
+package de.ukbonn.mwtek.utilities.fhir.index;
+
+import de.ukbonn.mwtek.utilities.generic.concurrent.ParallelismPolicy;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.function.Predicate;
+import org.hl7.fhir.r4.model.Encounter;
+
+/**
+ * Number of ward-to-ward transfers between each pair of locations, counted over the {@link
+ * LocationTimeline}s of many encounters.
+ *
+ * <p>A transfer is a pair of consecutive stays of one timeline at different locations, so a gap
+ * between two stays still counts as transfer. Consecutive stays at the same location (e.g. split by
+ * a gap or by a stay at a filtered location) are no transfer and don't show up on the diagonal of
+ * the matrix. The timelines are built and counted in one (parallel, see {@link ParallelismPolicy})
+ * pass; the matrix itself is a sparse map and immutable after construction.
+ */
+public class TransferFlowMatrix {
+
+  private final Map<String, Map<String, Long>> counts;
+  private final long totalTransfers;
+
+  private TransferFlowMatrix(Map<String, Map<String, Long>> counts) {
+    this.counts = counts;
+    long total = 0;
+    for (Map<String, Long> row : counts.values()) {
+      for (long count : row.values()) {
+        total += count;
+      }
+    }
+    this.totalTransfers = total;
+  }
+
+  /**
+   * Counts the transfers between all locations of the given encounters.
+   *
+   * @param encounters the encounters
+   * @return the matrix
+   */
+  public static TransferFlowMatrix of(Collection<? extends Encounter> encounters) {
+    return of(encounters, id -> true);
+  }
+
+  /**
+   * Counts the transfers between the locations that pass the filter, see {@link
+   * LocationTimeline#LocationTimeline(Encounter, Predicate)}.
+   *
+   * @param encounters the encounters
+   * @param locationFilter the location ids that are part of the timelines, e.g. only wards
+   * @return the matrix
+   */
+  public static TransferFlowMatrix of(
+      Collection<? extends Encounter> encounters, Predicate<String> locationFilter) {
+    Map<String, Map<String, Long>> counts =
+        ParallelismPolicy.getDefault()
+            .apply(
+                encounters,
+                stream ->
+                    stream.collect(
+                        HashMap::new,
+                        (Map<String, Map<String, Long>> map, Encounter encounter) ->
+                            addTransfers(map, new LocationTimeline(encounter, locationFilter)),
+                        TransferFlowMatrix::mergeInto),
+                (a, b) -> {
+                  mergeInto(a, b);
+                  return a;
+                });
+    return new TransferFlowMatrix(counts);
+  }
+
+  private static void addTransfers(
+      Map<String, Map<String, Long>> counts, LocationTimeline timeline) {
+    List<LocationTimeline.Stay> stays = timeline.getStays();
+    for (int i = 1; i < stays.size(); i++) {
+      String from = stays.get(i - 1).locationId();
+      String to = stays.get(i).locationId();
+      if (!from.equals(to)) {
+        counts.computeIfAbsent(from, k -> new HashMap<>()).merge(to, 1L, Long::sum);
+      }
+    }
+  }
+
+  private static void mergeInto(
+      Map<String, Map<String, Long>> target, Map<String, Map<String, Long>> source) {
+    source.forEach(
+        (from, row) -> {
+          Map<String, Long> targetRow = target.computeIfAbsent(from, k -> new HashMap<>());
+          row.forEach((to, count) -> targetRow.merge(to, count, Long::sum));
+        });
+  }
+
+  /** The number of transfers from one location to another. */
+  public long getCount(String fromLocationId, String toLocationId) {
+    Map<String, Long> row = counts.get(fromLocationId);
+    return row == null ? 0 : row.getOrDefault(toLocationId, 0L);
+  }
+
+  /**
+   * @return the number of transfers from the given location per target location, unmodifiable
+   */
+  public Map<String, Long> getOutgoing(String fromLocationId) {
+    Map<String, Long> row = counts.get(fromLocationId);
+    return row == null ? Collections.emptyMap() : Collections.unmodifiableMap(row);
+  }
+
+  /**
+   * @return the number of transfers to the given location per source location
+   */
+  public Map<String, Long> getIncoming(String toLocationId) {
+    Map<String, Long> result = new HashMap<>();
+    counts.forEach(
+        (from, row) -> {
+          Long count = row.get(toLocationId);
+          if (count != null) {
+            result.put(from, count);
+          }
+        });
+    return result;
+  }
+
+  /** All locations that occur as source or target of a transfer, sorted. */
+  public Set<String> getLocationIds() {
+    Set<String> result = new HashSet<>(counts.keySet());
+    counts.values().forEach(row -> result.addAll(row.keySet()));
+    return new TreeSet<>(result);
+  }
+
+  /** The total number of transfers. */
+  public long getTotalTransfers() {
+    return totalTransfers;
+  }
+}
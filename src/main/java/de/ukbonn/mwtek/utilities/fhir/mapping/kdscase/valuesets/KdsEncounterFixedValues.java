@@ -79,4 +79,9 @@ public class KdsEncounterFixedValues {
       "http://fhir.de/CodeSystem/dkgev/EntlassungsgrundErsteUndZweiteStelle";
   public static final String DEATH_CODE = "07";
   public static final String DEATH_CODE_DISPLAY = "Tod";
+
+  // Encounter.diagnosis.use (https://terminology.hl7.org/CodeSystem-diagnosis-role.html)
+  public static final String DIAGNOSIS_ROLE_SYSTEM =
+      "http://terminology.hl7.org/CodeSystem/diagnosis-role";
+  public static final String DIAGNOSIS_ROLE_DISCHARGE_CODE = "DD";
 }
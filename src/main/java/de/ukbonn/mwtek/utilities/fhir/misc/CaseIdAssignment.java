@@ -0,0 +1,209 @@
+/*
+ * Copyright (C) 2021 University Hospital Bonn - All Rights Reserved You may use, distribute and
+ * modify this code under the GPL 3 license. THERE IS NO WARRANTY FOR THE PROGRAM, TO THE EXTENT
+ * PERMITTED BY APPLICABLE LAW. EXCEPT WHEN OTHERWISE STATED IN WRITING THE COPYRIGHT HOLDERS AND/OR
+ * OTHER PARTIES PROVIDE THE PROGRAM “AS IS” WITHOUT WARRANTY OF ANY KIND, EITHER EXPRESSED OR
+ * IMPLIED, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE. THE ENTIRE RISK AS TO THE QUALITY AND PERFORMANCE OF THE PROGRAM IS WITH
+ * YOU. SHOULD THE PROGRAM PROVE DEFECTIVE, YOU ASSUME THE COST OF ALL NECESSARY SERVICING, REPAIR
+ * OR CORRECTION. IN NO EVENT UNLESS REQUIRED BY APPLICABLE LAW OR AGREED TO IN WRITING WILL ANY
+ * COPYRIGHT HOLDER, OR ANY OTHER PARTY WHO MODIFIES AND/OR CONVEYS THE PROGRAM AS PERMITTED ABOVE,
+ * BE LIABLE TO YOU FOR DAMAGES, INCLUDING ANY GENERAL, SPECIAL, INCIDENTAL OR CONSEQUENTIAL DAMAGES
+ * ARISING OUT OF THE USE OR INABILITY TO USE THE PROGRAM (INCLUDING BUT NOT LIMITED TO LOSS OF DATA
+ * OR DATA BEING RENDERED INACCURATE OR LOSSES SUSTAINED BY YOU OR THIRD PARTIES OR A FAILURE OF THE
+ * PROGRAM TO OPERATE WITH ANY OTHER PROGRAMS), EVEN IF SUCH HOLDER OR OTHER PARTY HAS BEEN ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGES. You should have received a copy of the GPL 3 license with *
+ * this file. If not, visit http://www.gnu.de/documents/gpl-3.0.en.html
+ */
+
+package de.ukbonn.mwtek.utilities.fhir.misc;
+
+import de.ukbonn.mwtek.utilities.ExceptionTools;
+import de.ukbonn.mwtek.utilities.fhir.resources.MiiEncounter;
+import de.ukbonn.mwtek.utilities.fhir.resources.MiiObservation;
+import de.ukbonn.mwtek.utilities.fhir.resources.MiiProcedure;
+import de.ukbonn.mwtek.utilities.generic.collections.IntervalTree;
+import de.ukbonn.mwtek.utilities.generic.concurrent.ParallelismPolicy;
+import de.ukbonn.mwtek.utilities.generic.time.SortedTimeTools;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
+import java.util.function.ToLongFunction;
+import lombok.extern.slf4j.Slf4j;
+import org.hl7.fhir.r4.model.DateTimeType;
+import org.hl7.fhir.r4.model.InstantType;
+import org.hl7.fhir.r4.model.Observation;
+import org.hl7.fhir.r4.model.Period;
+import org.hl7.fhir.r4.model.Type;
+
+/**
+ * Assignment of a case id to observations and procedures that got no {@code encounter} reference
+ * (e.g. from lab or OR systems), based on the point in time of the resource.
+ *
+ * <p>The facility contacts are indexed once per patient in an {@link IntervalTree}. The case of a
+ * resource is the facility contact of its patient whose period contains the {@code effective[x]}
+ * (observation) or {@code performed[x]} (procedure) start; if several do, the one with the latest
+ * start wins. A lookup is a stabbing query on the tree of one patient, i.e. {@code O(log k)} for
+ * {@code k} contacts plus the (usually one or two) hits. Contacts without end are open, an optional
+ * tolerance widens every contact period on both sides (e.g. for lab values taken shortly before the
+ * admission).
+ *
+ * <p>Only resources with a patient id and without case id are touched; the inferred case id is set
+ * via {@code setCaseId}. The index is immutable and the assignment runs in parallel according to
+ * the {@link ParallelismPolicy}.
+ */
+@Slf4j
+public class CaseIdAssignment {
+
+  private final Map<String, IntervalTree<Contact>> contactsByPatientId;
+
+  private record Contact(long start, long end, String caseId) {}
+
+  /**
+   * @param encounters the encounters; only facility contacts with patient id and period start are
+   *     used
+   */
+  public CaseIdAssignment(Collection<MiiEncounter> encounters) {
+    this(encounters, Duration.ZERO);
+  }
+
+  /**
+   * @param encounters the encounters; only facility contacts with patient id and period start are
+   *     used
+   * @param tolerance the time by which every contact period is widened on both sides
+   */
+  public CaseIdAssignment(Collection<MiiEncounter> encounters, Duration tolerance) {
+    ExceptionTools.checkNull("encounters", encounters);
+    long toleranceMillis = ExceptionTools.checkNull("tolerance", tolerance).toMillis();
+    Map<String, List<Contact>> contacts = new HashMap<>();
+    for (MiiEncounter encounter : encounters) {
+      if (encounter == null
+          || encounter.getPatientId() == null
+          || encounter.getId() == null
+          || !encounter.isPeriodStartExistent()
+          || !encounter.isFacilityContact()) {
+        continue;
+      }
+      long start = encounter.getPeriod().getStart().getTime() - toleranceMillis;
+      long end =
+          encounter.getPeriod().getEnd() == null
+              ? Long.MAX_VALUE
+              : Math.max(start, encounter.getPeriod().getEnd().getTime() + toleranceMillis);
+      contacts
+          .computeIfAbsent(encounter.getPatientId(), k -> new ArrayList<>())
+          .add(new Contact(start, end, encounter.getId()));
+    }
+    this.contactsByPatientId = new HashMap<>(contacts.size() * 2);
+    contacts.forEach(
+        (patientId, list) ->
+            contactsByPatientId.put(
+                patientId, new IntervalTree<>(list, Contact::start, Contact::end)));
+  }
+
+  /**
+   * The case of the patient at the given time.
+   *
+   * @param patientId the patient id
+   * @param time epoch millis; {@link SortedTimeTools#NO_TIME} never finds a case
+   * @return the id of the facility contact or {@code null} if there is none at that time
+   */
+  public String findCaseId(String patientId, long time) {
+    IntervalTree<Contact> contacts = patientId == null ? null : contactsByPatientId.get(patientId);
+    if (contacts == null || time == SortedTimeTools.NO_TIME) {
+      return null;
+    }
+    // the hits are sorted by start, so the last one is the latest contact
+    List<Contact> hits = contacts.stab(time);
+    return hits.isEmpty() ? null : hits.get(hits.size() - 1).caseId();
+  }
+
+  /**
+   * Sets the inferred case id on all observations without case id, based on their {@link
+   * #getEffectiveStart(Observation) effective time}.
+   *
+   * @param observations the observations
+   * @return the number of observations that got a case id
+   */
+  public long assignObservations(Collection<MiiObservation> observations) {
+    return assign(
+        observations,
+        MiiObservation::getPatientId,
+        MiiObservation::getCaseId,
+        CaseIdAssignment::getEffectiveStart,
+        MiiObservation::setCaseId,
+        "observations");
+  }
+
+  /**
+   * Sets the inferred case id on all procedures without case id, based on their {@link
+   * MiiProcedure#getPerformedStartMillis() performed time}.
+   *
+   * @param procedures the procedures
+   * @return the number of procedures that got a case id
+   */
+  public long assignProcedures(Collection<MiiProcedure> procedures) {
+    return assign(
+        procedures,
+        MiiProcedure::getPatientId,
+        MiiProcedure::getCaseId,
+        MiiProcedure::getPerformedStartMillis,
+        MiiProcedure::setCaseId,
+        "procedures");
+  }
+
+  private <T> long assign(
+      Collection<T> resources,
+      Function<T, String> patientId,
+      Function<T, String> caseId,
+      ToLongFunction<T> time,
+      BiConsumer<T, String> setCaseId,
+      String resourceName) {
+    LongAdder assigned = new LongAdder();
+    ParallelismPolicy.getDefault()
+        .forEach(
+            resources,
+            r -> {
+              if (r == null || caseId.apply(r) != null) {
+                return;
+              }
+              String found = findCaseId(patientId.apply(r), time.applyAsLong(r));
+              if (found != null) {
+                setCaseId.accept(r, found);
+                assigned.increment();
+              }
+            });
+    log.debug("Inferred the case id of {} {} from their point in time", assigned, resourceName);
+    return assigned.sum();
+  }
+
+  /**
+   * Returns the start of {@code effective[x]} as epoch millis: the value of an {@code
+   * effectiveDateTime} or {@code effectiveInstant}, the start (or the end, if the start is missing)
+   * of an {@code effectivePeriod}.
+   *
+   * @param observation the observation; may be {@code null}
+   * @return the start in epoch millis or {@link SortedTimeTools#NO_TIME} if no date is available
+   */
+  public static long getEffectiveStart(Observation observation) {
+    Type effective = observation != null ? observation.getEffective() : null;
+    if (effective instanceof DateTimeType dt) {
+      return dt.getValue() != null ? dt.getValue().getTime() : SortedTimeTools.NO_TIME;
+    }
+    if (effective instanceof InstantType instant) {
+      return instant.getValue() != null ? instant.getValue().getTime() : SortedTimeTools.NO_TIME;
+    }
+    if (effective instanceof Period period) {
+      if (period.getStart() != null) {
+        return period.getStart().getTime();
+      }
+      return period.getEnd() != null ? period.getEnd().getTime() : SortedTimeTools.NO_TIME;
+    }
+    return SortedTimeTools.NO_TIME;
+  }
+}
@@ -0,0 +1,356 @@
+/*
+ * Copyright (C) 2021 University Hospital Bonn - All Rights Reserved You may use, distribute and
+ * modify this code under the GPL 3 license. THERE IS NO WARRANTY FOR THE PROGRAM, TO THE EXTENT
+ * PERMITTED BY APPLICABLE LAW. EXCEPT WHEN OTHERWISE STATED IN WRITING THE COPYRIGHT HOLDERS AND/OR
+ * OTHER PARTIES PROVIDE THE PROGRAM “AS IS” WITHOUT WARRANTY OF ANY KIND, EITHER EXPRESSED OR
+ * IMPLIED, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE. THE ENTIRE RISK AS TO THE QUALITY AND PERFORMANCE OF THE PROGRAM IS WITH
+ * YOU. SHOULD THE PROGRAM PROVE DEFECTIVE, YOU ASSUME THE COST OF ALL NECESSARY SERVICING, REPAIR
+ * OR CORRECTION. IN NO EVENT UNLESS REQUIRED BY APPLICABLE LAW OR AGREED TO IN WRITING WILL ANY
+ * COPYRIGHT HOLDER, OR ANY OTHER PARTY WHO MODIFIES AND/OR CONVEYS THE PROGRAM AS PERMITTED ABOVE,
+ * BE LIABLE TO YOU FOR DAMAGES, INCLUDING ANY GENERAL, SPECIAL, INCIDENTAL OR CONSEQUENTIAL DAMAGES
+ * ARISING OUT OF THE USE OR INABILITY TO USE THE PROGRAM (INCLUDING BUT NOT LIMITED TO LOSS OF DATA
+ * OR DATA BEING RENDERED INACCURATE OR LOSSES SUSTAINED BY YOU OR THIRD PARTIES OR A FAILURE OF THE
+ * PROGRAM TO OPERATE WITH ANY OTHER PROGRAMS), EVEN IF SUCH HOLDER OR OTHER PARTY HAS BEEN ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGES. You should have received a copy of the GPL 3 license with *
+ * this file. If not, visit http://www.gnu.de/documents/gpl-3.0.en.html
+ */
+package de.ukbonn.mwtek.utilities.fhir.misc;
+
+import ca.uhn.fhir.fhirpath.IFhirPath;
+import ca.uhn.fhir.fhirpath.IFhirPath.IParsedExpression;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Predicate;
+import org.hl7.fhir.exceptions.FHIRException;
+import org.hl7.fhir.r4.model.Base;
+import org.hl7.fhir.r4.model.CodeableConcept;
+import org.hl7.fhir.r4.model.Coding;
+import org.hl7.fhir.r4.model.DomainResource;
+import org.hl7.fhir.r4.model.Element;
+import org.hl7.fhir.r4.model.Extension;
+
+/**
+ * A FHIRPath expression in compiled form, created by {@link FhirPathCache#compile(String)}.
+ *
+ * <p>Expressions of the supported subset (property paths, {@code where(a.b = 'x' and ...)}, {@code
+ * extension('url')} and a final {@code first()}) are evaluated by a depth-first walk over the
+ * resource that reads the HAPI model directly. No intermediate collections are built, and {@link
+ * #exists(Base)} or {@link #first(Base)} stop at the first result. The most common steps (codings,
+ * extensions, coding system and code, extension value) read the fields without any allocation.
+ * Other expressions are delegated to the fallback engine of {@link FhirPathCache}.
+ *
+ * <p>Instances are immutable and can be shared between threads.
+ */
+public final class CompiledFhirPath {
+
+  private final String expression;
+  private final Step[] steps;
+  private final boolean firstOnly;
+  private final IFhirPath fallbackEngine;
+  private final IParsedExpression fallbackExpression;
+
+  CompiledFhirPath(String expression, List<Step> steps, boolean firstOnly) {
+    this.expression = expression;
+    this.steps = steps.toArray(Step[]::new);
+    this.firstOnly = firstOnly;
+    this.fallbackEngine = null;
+    this.fallbackExpression = null;
+  }
+
+  CompiledFhirPath(String expression, IFhirPath fallbackEngine, IParsedExpression parsed) {
+    this.expression = expression;
+    this.steps = null;
+    this.firstOnly = false;
+    this.fallbackEngine = fallbackEngine;
+    this.fallbackExpression = parsed;
+  }
+
+  /** The source expression. */
+  public String getExpression() {
+    return expression;
+  }
+
+  /** Whether the expression is evaluated by the built-in evaluator instead of the fallback. */
+  public boolean isFastPath() {
+    return steps != null;
+  }
+
+  /**
+   * Evaluates the expression.
+   *
+   * @param root the resource or element to start from; may be {@code null}
+   * @return all results in FHIRPath order; never {@code null}
+   */
+  public List<Base> evaluate(Base root) {
+    if (root == null) {
+      return List.of();
+    }
+    if (!isFastPath()) {
+      return fallbackEngine.evaluate(root, fallbackExpression, Base.class);
+    }
+    List<Base> results = new ArrayList<>();
+    visit(
+        root,
+        0,
+        result -> {
+          results.add(result);
+          return !firstOnly;
+        });
+    return results;
+  }
+
+  /**
+   * Returns the first result of the expression.
+   *
+   * @param root the resource or element to start from; may be {@code null}
+   * @return the first result or {@code null} if there is none
+   */
+  public Base first(Base root) {
+    if (root == null) {
+      return null;
+    }
+    if (!isFastPath()) {
+      return fallbackEngine.evaluateFirst(root, fallbackExpression, Base.class).orElse(null);
+    }
+    Base[] first = new Base[1];
+    visit(
+        root,
+        0,
+        result -> {
+          first[0] = result;
+          return false;
+        });
+    return first[0];
+  }
+
+  /**
+   * Returns the primitive value of the first result, e.g. the code of {@code
+   * code.coding.where(system='...').code}.
+   *
+   * @param root the resource or element to start from; may be {@code null}
+   * @return the primitive value or {@code null}
+   */
+  public String firstAsString(Base root) {
+    Base first = first(root);
+    return first != null ? first.primitiveValue() : null;
+  }
+
+  /**
+   * Checks whether the expression has at least one result. Stops at the first one.
+   *
+   * @param root the resource or element to start from; may be {@code null}
+   */
+  public boolean exists(Base root) {
+    if (root == null) {
+      return false;
+    }
+    if (!isFastPath()) {
+      return fallbackEngine.evaluateFirst(root, fallbackExpression, Base.class).isPresent();
+    }
+    return !visit(root, 0, STOP);
+  }
+
+  /**
+   * Checks whether any result has the given primitive value. Stops at the first match.
+   *
+   * @param root the resource or element to start from; may be {@code null}
+   * @param value the value to look for, e.g. a code
+   */
+  public boolean anyValueEquals(Base root, String value) {
+    if (root == null || value == null) {
+      return false;
+    }
+    if (!isFastPath()) {
+      return evaluate(root).stream().anyMatch(x -> value.equals(x.primitiveValue()));
+    }
+    if (firstOnly) {
+      return value.equals(firstAsString(root));
+    }
+    return !visit(root, 0, result -> !value.equals(result.primitiveValue()));
+  }
+
+  /**
+   * FHIRPath equality of the results with a single literal, as used by {@code where(path = 'x')}:
+   * {@code true} only if there is exactly one result and it has the given primitive value. Unlike
+   * {@link #anyValueEquals(Base, String)}, several results never equal the literal.
+   */
+  boolean singleValueEquals(Base root, String value) {
+    if (root == null || value == null) {
+      return false;
+    }
+    if (!isFastPath()) {
+      List<Base> results = evaluate(root);
+      return results.size() == 1 && value.equals(results.get(0).primitiveValue());
+    }
+    if (firstOnly) {
+      return value.equals(firstAsString(root));
+    }
+    Base[] single = new Base[2];
+    visit(
+        root,
+        0,
+        result -> {
+          single[single[0] == null ? 0 : 1] = result;
+          // Stop at the second result, the comparison is false anyway
+          return single[1] == null;
+        });
+    return single[1] == null && single[0] != null && value.equals(single[0].primitiveValue());
+  }
+
+  @Override
+  public String toString() {
+    return expression;
+  }
+
+  /** Sink that stops the walk at the first result. */
+  private static final Predicate<Base> STOP = result -> false;
+
+  /**
+   * Walks the steps starting at the given index.
+   *
+   * @param sink receives the results; returns {@code false} to stop the walk
+   * @return {@code false} if the walk was stopped
+   */
+  private boolean visit(Base node, int index, Predicate<Base> sink) {
+    if (index == steps.length) {
+      return sink.test(node);
+    }
+    return steps[index].apply(node, this, index + 1, sink);
+  }
+
+  /**
+   * One step of the path. It passes each of its results on to the next step of the path (or the
+   * sink after the last step) until the walk is stopped.
+   */
+  abstract static class Step {
+
+    /**
+     * @return {@code false} if the sink stopped the walk
+     */
+    abstract boolean apply(Base node, CompiledFhirPath path, int next, Predicate<Base> sink);
+  }
+
+  /** Leading resource type, e.g. {@code Encounter} in {@code Encounter.status}. */
+  static final class TypeStep extends Step {
+
+    private final String type;
+
+    TypeStep(String type) {
+      this.type = type;
+    }
+
+    @Override
+    boolean apply(Base node, CompiledFhirPath path, int next, Predicate<Base> sink) {
+      return !type.equals(node.fhirType()) || path.visit(node, next, sink);
+    }
+  }
+
+  /** Child element access by name. */
+  static final class PropertyStep extends Step {
+
+    private final String name;
+    private final int hash;
+
+    PropertyStep(String name) {
+      this.name = name;
+      this.hash = name.hashCode();
+    }
+
+    @Override
+    boolean apply(Base node, CompiledFhirPath path, int next, Predicate<Base> sink) {
+      // Fast paths for the elements that are read in hot loops; they don't allocate
+      if (node instanceof CodeableConcept concept && name.equals("coding")) {
+        if (concept.hasCoding()) {
+          for (Coding coding : concept.getCoding()) {
+            if (!path.visit(coding, next, sink)) {
+              return false;
+            }
+          }
+        }
+        return true;
+      }
+      if (node instanceof Coding coding) {
+        switch (name) {
+          case "system":
+            return !coding.hasSystemElement() || path.visit(coding.getSystemElement(), next, sink);
+          case "code":
+            return !coding.hasCodeElement() || path.visit(coding.getCodeElement(), next, sink);
+          default:
+            break;
+        }
+      }
+      if (node instanceof Extension extension && name.equals("value")) {
+        return !extension.hasValue() || path.visit(extension.getValue(), next, sink);
+      }
+      Base[] children;
+      try {
+        children = node.getProperty(hash, name, false);
+      } catch (FHIRException e) {
+        // Unknown elements result in an empty collection, like in FHIRPath
+        return true;
+      }
+      if (children != null) {
+        for (Base child : children) {
+          if (child != null && !child.isEmpty() && !path.visit(child, next, sink)) {
+            return false;
+          }
+        }
+      }
+      return true;
+    }
+  }
+
+  /** {@code extension('url')}. */
+  static final class ExtensionStep extends Step {
+
+    private final String url;
+
+    ExtensionStep(String url) {
+      this.url = url;
+    }
+
+    @Override
+    boolean apply(Base node, CompiledFhirPath path, int next, Predicate<Base> sink) {
+      List<Extension> extensions;
+      if (node instanceof Element element && element.hasExtension()) {
+        extensions = element.getExtension();
+      } else if (node instanceof DomainResource resource && resource.hasExtension()) {
+        extensions = resource.getExtension();
+      } else {
+        return true;
+      }
+      for (Extension extension : extensions) {
+        if (url.equals(extension.getUrl()) && !path.visit(extension, next, sink)) {
+          return false;
+        }
+      }
+      return true;
+    }
+  }
+
+  /**
+   * {@code where(a.b = 'x' and c = 'y')}; every condition compares a sub path to a literal. A sub
+   * path with several results doesn't match, see {@link #singleValueEquals(Base, String)}.
+   */
+  static final class WhereStep extends Step {
+
+    private final CompiledFhirPath[] paths;
+    private final String[] literals;
+
+    WhereStep(List<CompiledFhirPath> paths, List<String> literals) {
+      this.paths = paths.toArray(CompiledFhirPath[]::new);
+      this.literals = literals.toArray(String[]::new);
+    }
+
+    @Override
+    boolean apply(Base node, CompiledFhirPath path, int next, Predicate<Base> sink) {
+      for (int i = 0; i < paths.length; i++) {
+        if (!paths[i].singleValueEquals(node, literals[i])) {
+          return true;
+        }
+      }
+      return path.visit(node, next, sink);
+    }
+  }
+}
@@ -18,8 +18,10 @@
 
 package de.ukbonn.mwtek.utilities.fhir.misc;
 
+import de.ukbonn.mwtek.utilities.generic.collections.ListTools;
 import java.util.Collection;
 import java.util.List;
+import java.util.stream.Stream;
 import org.hl7.fhir.r4.model.CodeableConcept;
 import org.hl7.fhir.r4.model.Coding;
 
@@ -195,4 +197,28 @@ public class FhirCodingTools {
       CodeableConcept codeableConcept, List<String> referenceCodes) {
     return isCodeInAnyCodeableConcepts(List.of(codeableConcept), referenceCodes);
   }
+
+  /**
+   * Lazy selection of the {@link Coding}s that use the given {@link Coding#getSystem() system}.
+   *
+   * @param codings the codings; {@code null} results in an empty stream
+   * @param system the code system url
+   * @return a lazy stream of the matching codings
+   */
+  public static Stream<Coding> codingsBySystem(Iterable<Coding> codings, String system) {
+    return ListTools.stream(codings)
+        .filter(x -> x != null && x.hasSystem() && x.getSystem().equals(system));
+  }
+
+  /**
+   * Lazy selection of the codes of the {@link Coding}s that use the given {@link Coding#getSystem()
+   * system}.
+   *
+   * @param codings the codings; {@code null} results in an empty stream
+   * @param system the code system url
+   * @return a lazy stream of the non-null codes
+   */
+  public static Stream<String> codesBySystem(Iterable<Coding> codings, String system) {
+    return codingsBySystem(codings, system).filter(Coding::hasCode).map(Coding::getCode);
+  }
 }
@@ -24,14 +24,29 @@ import static de.ukbonn.mwtek.utilities.fhir.mapping.kdsdiagnosis.valuesets.KdsD
 
 import de.ukbonn.mwtek.utilities.fhir.resources.MiiCondition;
 import de.ukbonn.mwtek.utilities.fhir.resources.MiiProcedure;
+import de.ukbonn.mwtek.utilities.generic.collections.IdDictionary;
+import de.ukbonn.mwtek.utilities.generic.collections.IdSet;
+import de.ukbonn.mwtek.utilities.generic.concurrent.ParallelismPolicy;
+import de.ukbonn.mwtek.utilities.generic.sketch.HyperLogLog;
+import de.ukbonn.mwtek.utilities.generic.sketch.SpaceSaving;
+import de.ukbonn.mwtek.utilities.generic.time.SortedTimeTools;
+import de.ukbonn.mwtek.utilities.generic.time.TimeSortedIndex;
+import java.time.Instant;
+import java.time.YearMonth;
+import java.time.ZoneId;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.Date;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Objects;
 import java.util.Set;
+import java.util.function.Consumer;
 import java.util.function.Function;
-import java.util.stream.Collectors;
+import java.util.function.Predicate;
+import java.util.stream.Stream;
 import org.hl7.fhir.r4.model.CodeableConcept;
 import org.hl7.fhir.r4.model.Coding;
 import org.hl7.fhir.r4.model.Condition;
@@ -61,17 +76,15 @@ public class FhirConditionTools {
       return Collections.emptySet();
     }
 
-    // Checking matches
-    return ukbConditions.parallelStream()
-        .filter(
-            condition ->
-                condition.hasCode()
-                    && condition.getCode().getCoding().stream()
-                        .anyMatch(
-                            coding ->
-                                ICD.equals(coding.getSystem())
-                                    && icdCodes.contains(coding.getCode())))
-        .collect(Collectors.toSet());
+    // Checking matches (served from the opt-in result cache if enabled)
+    return QueryResultCache.getOrCompute(
+        ukbConditions,
+        "getConditionsByIcdCodes",
+        icdCodes,
+        null,
+        () ->
+            ParallelismPolicy.getDefault()
+                .filterToSet(ukbConditions, condition -> condition.hasIcdCode(icdCodes)));
   }
 
   public static boolean isIcdCodeInCondition(
@@ -81,10 +94,7 @@ public class FhirConditionTools {
       return false;
     }
     // Checking matches
-    return condition.hasCode()
-        && condition.getCode().getCoding().stream()
-            .anyMatch(
-                coding -> ICD.equals(coding.getSystem()) && icdCodes.contains(coding.getCode()));
+    return condition.hasIcdCode(icdCodes);
   }
 
   /**
@@ -168,21 +178,39 @@ public class FhirConditionTools {
    */
   public static Set<String> getEncounterIdsByIcdCodes(
       Collection<MiiCondition> ukbConditions, Collection<String> icdCodes) {
-    Set<String> caseIds = new HashSet<>();
-    if (ukbConditions != null && !icdCodes.isEmpty()) {
-      for (MiiCondition condition : ukbConditions) {
-        if (condition.hasCode()) {
-          for (Coding coding : condition.getCode().getCoding()) {
-            // Check each code and break if at least 1 got found
-            if (coding.hasSystem()
-                && coding.getSystem().equals(ICD)
-                && icdCodes.contains(coding.getCode())) {
-              caseIds.add(condition.getCaseId());
-              break;
-            }
-          } // for
-        } // if
-      } // for
+    if (ukbConditions == null || icdCodes.isEmpty()) {
+      return new HashSet<>();
+    }
+    // Served from the opt-in result cache if enabled
+    return QueryResultCache.getOrCompute(
+        ukbConditions,
+        "getEncounterIdsByIcdCodes",
+        icdCodes,
+        null,
+        () -> {
+          Set<String> caseIds = new HashSet<>();
+          collectIds(
+              ukbConditions, c -> c.hasIcdCode(icdCodes), MiiCondition::getCaseId, caseIds::add);
+          return caseIds;
+        });
+  }
+
+  /**
+   * Same as {@link #getEncounterIdsByIcdCodes(Collection, Collection)}, but collects the case ids
+   * into a compact {@link IdSet} that can be combined with other id sets of the same dictionary.
+   *
+   * @param ukbConditions A collection of {@link MiiCondition} objects.
+   * @param icdCodes A collection of ICD codes as strings.
+   * @param dictionary The dictionary that maps the case ids to bit positions.
+   * @return An {@link IdSet} with the case ids of the conditions with matching ICD codes.
+   */
+  public static IdSet getEncounterIdsByIcdCodes(
+      Collection<MiiCondition> ukbConditions,
+      Collection<String> icdCodes,
+      IdDictionary dictionary) {
+    IdSet caseIds = new IdSet(dictionary);
+    if (!icdCodes.isEmpty()) {
+      collectIds(ukbConditions, c -> c.hasIcdCode(icdCodes), MiiCondition::getCaseId, caseIds::add);
     }
     return caseIds;
   }
@@ -190,20 +218,30 @@ public class FhirConditionTools {
   public static Set<String> getPatientIdsByIcdCodes(
       Collection<MiiCondition> ukbConditions, Collection<String> icdCodes) {
     Set<String> patientIds = new HashSet<>();
-    if (ukbConditions != null && !icdCodes.isEmpty()) {
-      for (MiiCondition condition : ukbConditions) {
-        if (condition.hasCode()) {
-          for (Coding coding : condition.getCode().getCoding()) {
-            // Check each code and break if at least 1 got found
-            if (coding.hasSystem()
-                && coding.getSystem().equals(ICD)
-                && icdCodes.contains(coding.getCode())) {
-              patientIds.add(condition.getPatientId());
-              break;
-            }
-          } // for
-        } // if
-      } // for
+    if (!icdCodes.isEmpty()) {
+      collectIds(
+          ukbConditions, c -> c.hasIcdCode(icdCodes), MiiCondition::getPatientId, patientIds::add);
+    }
+    return patientIds;
+  }
+
+  /**
+   * Same as {@link #getPatientIdsByIcdCodes(Collection, Collection)}, but collects the patient ids
+   * into a compact {@link IdSet}.
+   *
+   * @param ukbConditions A collection of {@link MiiCondition} objects.
+   * @param icdCodes A collection of ICD codes as strings.
+   * @param dictionary The dictionary that maps the patient ids to bit positions.
+   * @return An {@link IdSet} with the patient ids of the conditions with matching ICD codes.
+   */
+  public static IdSet getPatientIdsByIcdCodes(
+      Collection<MiiCondition> ukbConditions,
+      Collection<String> icdCodes,
+      IdDictionary dictionary) {
+    IdSet patientIds = new IdSet(dictionary);
+    if (!icdCodes.isEmpty()) {
+      collectIds(
+          ukbConditions, c -> c.hasIcdCode(icdCodes), MiiCondition::getPatientId, patientIds::add);
     }
     return patientIds;
   }
@@ -211,37 +249,223 @@ public class FhirConditionTools {
   public static Set<String> getCaseIdsWithIcdCodeReliability(
       Collection<MiiCondition> ukbConditions, Collection<String> icdCodes, String reliability) {
     Set<String> caseIds = new HashSet<>();
-    if (ukbConditions != null && !icdCodes.isEmpty()) {
+    if (!icdCodes.isEmpty()) {
+      collectIds(
+          ukbConditions,
+          c -> c.hasIcdCodeWithReliability(icdCodes, reliability),
+          MiiCondition::getCaseId,
+          caseIds::add);
+    }
+    return caseIds;
+  }
+
+  /**
+   * Same as {@link #getCaseIdsWithIcdCodeReliability(Collection, Collection, String)}, but collects
+   * the case ids into a compact {@link IdSet}.
+   *
+   * @param ukbConditions A collection of {@link MiiCondition} objects.
+   * @param icdCodes A collection of ICD codes as strings.
+   * @param reliability The diagnosis reliability code (e.g. {@code "G"}).
+   * @param dictionary The dictionary that maps the case ids to bit positions.
+   * @return An {@link IdSet} with the case ids of the matching conditions.
+   */
+  public static IdSet getCaseIdsWithIcdCodeReliability(
+      Collection<MiiCondition> ukbConditions,
+      Collection<String> icdCodes,
+      String reliability,
+      IdDictionary dictionary) {
+    IdSet caseIds = new IdSet(dictionary);
+    if (!icdCodes.isEmpty()) {
+      collectIds(
+          ukbConditions,
+          c -> c.hasIcdCodeWithReliability(icdCodes, reliability),
+          MiiCondition::getCaseId,
+          caseIds::add);
+    }
+    return caseIds;
+  }
+
+  /**
+   * Shared traversal of the id tools: passes the id of every condition that matches the filter to
+   * the sink (a {@link Set} or an {@link IdSet}).
+   */
+  private static void collectIds(
+      Collection<MiiCondition> ukbConditions,
+      Predicate<MiiCondition> filter,
+      Function<MiiCondition, String> idExtractor,
+      Consumer<String> sink) {
+    if (ukbConditions != null) {
       for (MiiCondition condition : ukbConditions) {
-        if (condition.hasCode()) {
-          for (Coding coding : condition.getCode().getCoding()) {
-            // Check each code and break if at least 1 got found
-            if (coding.hasSystem()
-                && coding.getSystem().equals(ICD)
-                && icdCodes.contains(coding.getCode())) {
-              // Detect the diagnosis reliability which is part of an extension
-              if (coding.hasExtension(EXTENSION_DIAGNOSIS_RELIABILITY)) {
-                Extension extDiagReliability =
-                    coding.getExtensionByUrl(EXTENSION_DIAGNOSIS_RELIABILITY);
-                if (extDiagReliability.getValue() instanceof Coding codingExtDiagReliability) {
-                  if (codingExtDiagReliability
-                          .getSystem()
-                          .equals(EXTENSION_DIAGNOSIS_RELIABILITY_SYSTEM)
-                      && codingExtDiagReliability.hasCode()) {
-                    // check if ICD diagnosis reliability code (usually a letter) is available
-                    if (reliability.equals(codingExtDiagReliability.getCode())) {
-                      caseIds.add(condition.getCaseId());
-                      break;
-                    }
-                  } // if codingExtDiagReliability.getSystem()
-                } // if extDiagReliability.getValue()
-              }
-            } // for
-          } // if
-        } // for
+        if (filter.test(condition)) {
+          sink.accept(idExtractor.apply(condition));
+        }
       }
     }
-    return caseIds;
+  }
+
+  /**
+   * Approximate alternative to {@link #getPatientIdsByIcdCodes(Collection, Collection)}: feeds the
+   * patient ids of all conditions with one of the ICD codes into a {@link HyperLogLog} sketch.
+   *
+   * @param ukbConditions A collection of {@link MiiCondition} objects.
+   * @param icdCodes A collection of ICD codes as strings.
+   * @param precision The precision of the sketch, see {@link HyperLogLog#HyperLogLog(int)}.
+   * @return A sketch whose {@link HyperLogLog#estimate()} approximates the distinct patient count.
+   */
+  public static HyperLogLog sketchPatientIdsByIcdCodes(
+      Collection<MiiCondition> ukbConditions, Collection<String> icdCodes, int precision) {
+    return sketchIdsByIcdCodes(ukbConditions, icdCodes, MiiCondition::getPatientId, precision);
+  }
+
+  /**
+   * Approximate alternative to {@link #getEncounterIdsByIcdCodes(Collection, Collection)}: feeds
+   * the case ids of all conditions with one of the ICD codes into a {@link HyperLogLog} sketch.
+   *
+   * @param ukbConditions A collection of {@link MiiCondition} objects.
+   * @param icdCodes A collection of ICD codes as strings.
+   * @param precision The precision of the sketch, see {@link HyperLogLog#HyperLogLog(int)}.
+   * @return A sketch whose {@link HyperLogLog#estimate()} approximates the distinct case count.
+   */
+  public static HyperLogLog sketchCaseIdsByIcdCodes(
+      Collection<MiiCondition> ukbConditions, Collection<String> icdCodes, int precision) {
+    return sketchIdsByIcdCodes(ukbConditions, icdCodes, MiiCondition::getCaseId, precision);
+  }
+
+  private static HyperLogLog sketchIdsByIcdCodes(
+      Collection<MiiCondition> ukbConditions,
+      Collection<String> icdCodes,
+      Function<MiiCondition, String> idFunction,
+      int precision) {
+    if (ukbConditions == null || icdCodes == null || icdCodes.isEmpty()) {
+      return new HyperLogLog(precision);
+    }
+    return ParallelismPolicy.getDefault()
+        .apply(
+            ukbConditions,
+            stream ->
+                stream
+                    .filter(condition -> condition.hasIcdCode(icdCodes))
+                    .map(idFunction)
+                    .collect(HyperLogLog.collector(precision)),
+            HyperLogLog::merge);
+  }
+
+  /**
+   * Counts the most frequent ICD codes per calendar month of the recorded date in a single pass
+   * with bounded memory, instead of a full group-by over all conditions. The primary ICD code of
+   * each condition is counted; conditions without ICD code or recorded date are skipped.
+   *
+   * @param ukbConditions A collection of {@link MiiCondition} objects.
+   * @param capacity The number of counters per month, see {@link SpaceSaving#SpaceSaving(int)}.
+   * @param zone The time zone that defines the months.
+   * @return A heavy-hitters summary per month; use {@link SpaceSaving#topK(int)} for the codes.
+   */
+  public static Map<YearMonth, SpaceSaving<String>> getTopIcdCodesPerMonth(
+      Collection<MiiCondition> ukbConditions, int capacity, ZoneId zone) {
+    if (ukbConditions == null) {
+      return new HashMap<>();
+    }
+    return ParallelismPolicy.getDefault()
+        .apply(
+            ukbConditions,
+            stream ->
+                stream.collect(
+                    SpaceSaving.groupingBy(
+                        condition -> toYearMonth(condition.getRecordedDateMillis(), zone),
+                        MiiCondition::getPrimaryIcdCode,
+                        capacity)),
+            SpaceSaving::mergeAll);
+  }
+
+  private static YearMonth toYearMonth(long epochMillis, ZoneId zone) {
+    return epochMillis != SortedTimeTools.NO_TIME
+        ? YearMonth.from(Instant.ofEpochMilli(epochMillis).atZone(zone))
+        : null;
+  }
+
+  /**
+   * Lazy variant of {@link #getConditionsByIcdCodes(Collection, Collection)} that can be chained
+   * with further stream stages without materializing intermediate sets.
+   *
+   * @param ukbConditions A stream of {@link MiiCondition} objects.
+   * @param icdCodes A collection of ICD codes as strings; {@code null} matches nothing.
+   * @return A lazy stream of the conditions with at least one of the ICD codes.
+   */
+  public static Stream<MiiCondition> filterByIcdCodes(
+      Stream<MiiCondition> ukbConditions, Collection<String> icdCodes) {
+    Collection<String> codes = icdCodes != null ? icdCodes : Set.of();
+    return ukbConditions.filter(condition -> condition != null && condition.hasIcdCode(codes));
+  }
+
+  /**
+   * Lazy variant of {@link #getEncounterIdsByIcdCodes(Collection, Collection)}.
+   *
+   * @param ukbConditions A stream of {@link MiiCondition} objects.
+   * @param icdCodes A collection of ICD codes as strings; {@code null} matches nothing.
+   * @return A lazy stream of the distinct, non-null case ids of the matching conditions.
+   */
+  public static Stream<String> encounterIdsByIcdCodes(
+      Stream<MiiCondition> ukbConditions, Collection<String> icdCodes) {
+    return filterByIcdCodes(ukbConditions, icdCodes)
+        .map(MiiCondition::getCaseId)
+        .filter(Objects::nonNull)
+        .distinct();
+  }
+
+  /**
+   * Lazy variant of {@link #getPatientIdsByIcdCodes(Collection, Collection)}.
+   *
+   * @param ukbConditions A stream of {@link MiiCondition} objects.
+   * @param icdCodes A collection of ICD codes as strings; {@code null} matches nothing.
+   * @return A lazy stream of the distinct, non-null patient ids of the matching conditions.
+   */
+  public static Stream<String> patientIdsByIcdCodes(
+      Stream<MiiCondition> ukbConditions, Collection<String> icdCodes) {
+    return filterByIcdCodes(ukbConditions, icdCodes)
+        .map(MiiCondition::getPatientId)
+        .filter(Objects::nonNull)
+        .distinct();
+  }
+
+  /**
+   * Short-circuiting check whether any of the conditions uses one of the ICD codes. Stops at the
+   * first match.
+   *
+   * @param ukbConditions The conditions, e.g. the diagnoses of a single case.
+   * @param icdCodes A collection of ICD codes as strings.
+   */
+  public static boolean isIcdCodeInAnyCondition(
+      Iterable<MiiCondition> ukbConditions, Collection<String> icdCodes) {
+    if (ukbConditions == null || icdCodes == null || icdCodes.isEmpty()) {
+      return false;
+    }
+    for (MiiCondition condition : ukbConditions) {
+      if (condition != null && condition.hasIcdCode(icdCodes)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Reads the diagnosis reliability ("Diagnosesicherheit") of an ICD coding, which is part of the
+   * {@code EXTENSION_DIAGNOSIS_RELIABILITY} extension.
+   *
+   * @param coding the ICD coding; may be {@code null}
+   * @return the reliability code (e.g. {@code "G"}) or {@code null} if the coding carries no valid
+   *     reliability extension
+   */
+  public static String getDiagnosisReliability(Coding coding) {
+    if (coding == null || !coding.hasExtension(EXTENSION_DIAGNOSIS_RELIABILITY)) {
+      return null;
+    }
+    Extension extDiagReliability = coding.getExtensionByUrl(EXTENSION_DIAGNOSIS_RELIABILITY);
+    if (extDiagReliability.getValue() instanceof Coding codingExtDiagReliability
+        && EXTENSION_DIAGNOSIS_RELIABILITY_SYSTEM.equals(codingExtDiagReliability.getSystem())
+        && codingExtDiagReliability.hasCode()) {
+      return codingExtDiagReliability.getCode();
+    }
+    return null;
   }
 
   /**
@@ -256,9 +480,51 @@ public class FhirConditionTools {
    */
   public static List<MiiCondition> filterConditionsByRecordDate(
       List<MiiCondition> ukbConditions, Date referenceDate) {
-    return ukbConditions.parallelStream()
-        .filter(Condition::hasRecordedDate)
-        .filter(x -> x.getRecordedDate().after(referenceDate))
-        .toList();
+    return ParallelismPolicy.getDefault()
+        .filterToList(
+            ukbConditions, x -> x.hasRecordedDate() && x.getRecordedDate().after(referenceDate));
+  }
+
+  /**
+   * Lazy variant of {@link #filterConditionsByRecordDate(List, Date)}.
+   *
+   * @param ukbConditions A stream of {@link MiiCondition} objects.
+   * @param referenceDate Only conditions recorded after this date pass.
+   * @return A lazy stream of the matching conditions.
+   */
+  public static Stream<MiiCondition> filterByRecordDate(
+      Stream<MiiCondition> ukbConditions, Date referenceDate) {
+    return ukbConditions.filter(
+        x -> x.hasRecordedDate() && x.getRecordedDate().after(referenceDate));
+  }
+
+  /**
+   * Creates a {@link TimeSortedIndex} over the recorded dates of the given conditions. It can be
+   * passed to {@link #filterConditionsByRecordDate(TimeSortedIndex, Date)} for repeated queries
+   * with moving reference dates. Conditions without recorded date are not part of the index.
+   *
+   * @param ukbConditions A list of {@link MiiCondition} objects; may be {@code null}.
+   * @return The index, sorted by {@link Condition#getRecordedDate()}.
+   */
+  public static TimeSortedIndex<MiiCondition> createRecordDateIndex(
+      List<MiiCondition> ukbConditions) {
+    return new TimeSortedIndex<>(
+        ukbConditions,
+        x -> x.hasRecordedDate() ? x.getRecordedDate().getTime() : SortedTimeTools.NO_TIME);
+  }
+
+  /**
+   * Returns the conditions of the given index that have a recorded date after the specified
+   * reference date. The lookup is a binary search; unlike {@link
+   * #filterConditionsByRecordDate(List, Date)} the result is ordered by the recorded date.
+   *
+   * @param recordDateIndex An index created by {@link #createRecordDateIndex(List)}.
+   * @param referenceDate The date to compare against; only conditions recorded after this date will
+   *     be included.
+   * @return An unmodifiable view of the conditions recorded after the reference date.
+   */
+  public static List<MiiCondition> filterConditionsByRecordDate(
+      TimeSortedIndex<MiiCondition> recordDateIndex, Date referenceDate) {
+    return recordDateIndex.after(referenceDate);
   }
 }
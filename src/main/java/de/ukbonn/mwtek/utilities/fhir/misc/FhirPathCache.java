@@ -0,0 +1,243 @@
+/*
+ * Copyright (C) 2021 University Hospital Bonn - All Rights Reserved You may use, distribute and
+ * modify this code under the GPL 3 license. THERE IS NO WARRANTY FOR THE PROGRAM, TO THE EXTENT
+ * PERMITTED BY APPLICABLE LAW. EXCEPT WHEN OTHERWISE STATED IN WRITING THE COPYRIGHT HOLDERS AND/OR
+ * OTHER PARTIES PROVIDE THE PROGRAM “AS IS” WITHOUT WARRANTY OF ANY KIND, EITHER EXPRESSED OR
+ * IMPLIED, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE. THE ENTIRE RISK AS TO THE QUALITY AND PERFORMANCE OF THE PROGRAM IS WITH
+ * YOU. SHOULD THE PROGRAM PROVE DEFECTIVE, YOU ASSUME THE COST OF ALL NECESSARY SERVICING, REPAIR
+ * OR CORRECTION. IN NO EVENT UNLESS REQUIRED BY APPLICABLE LAW OR AGREED TO IN WRITING WILL ANY
+ * COPYRIGHT HOLDER, OR ANY OTHER PARTY WHO MODIFIES AND/OR CONVEYS THE PROGRAM AS PERMITTED ABOVE,
+ * BE LIABLE TO YOU FOR DAMAGES, INCLUDING ANY GENERAL, SPECIAL, INCIDENTAL OR CONSEQUENTIAL DAMAGES
+ * ARISING OUT OF THE USE OR INABILITY TO USE THE PROGRAM (INCLUDING BUT NOT LIMITED TO LOSS OF DATA
+ * OR DATA BEING RENDERED INACCURATE OR LOSSES SUSTAINED BY YOU OR THIRD PARTIES OR A FAILURE OF THE
+ * PROGRAM TO OPERATE WITH ANY OTHER PROGRAMS), EVEN IF SUCH HOLDER OR OTHER PARTY HAS BEEN ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGES. You should have received a copy of the GPL 3 license with *
+ * this file. If not, visit http://www.gnu.de/documents/gpl-3.0.en.html
+ */
+package de.ukbonn.mwtek.utilities.fhir.misc;
+
+import ca.uhn.fhir.fhirpath.IFhirPath;
+import de.ukbonn.mwtek.utilities.ExceptionTools;
+import de.ukbonn.mwtek.utilities.fhir.misc.CompiledFhirPath.ExtensionStep;
+import de.ukbonn.mwtek.utilities.fhir.misc.CompiledFhirPath.PropertyStep;
+import de.ukbonn.mwtek.utilities.fhir.misc.CompiledFhirPath.Step;
+import de.ukbonn.mwtek.utilities.fhir.misc.CompiledFhirPath.TypeStep;
+import de.ukbonn.mwtek.utilities.fhir.misc.CompiledFhirPath.WhereStep;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Pattern;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Parses FHIRPath expressions once and caches their {@link CompiledFhirPath compiled form}.
+ *
+ * <p>The built-in evaluator supports the expressions that are typical for the MII profiles:
+ *
+ * <ul>
+ *   <li>property paths, optionally with the resource type in front: {@code Encounter.class.code}
+ *   <li>{@code where(...)} with one or more {@code path = 'literal'} comparisons joined by {@code
+ *       and}: {@code code.coding.where(system = 'http://snomed.info/sct').code}
+ *   <li>{@code extension('url')}: {@code hospitalization.dischargeDisposition.extension('...')}
+ *   <li>{@code first()} as last step
+ * </ul>
+ *
+ * <p>The comparisons in {@code where(...)} follow the FHIRPath collection equality: the left side
+ * has to have exactly one result that equals the literal, so {@code where(code = 'x')} drops an
+ * item with several codes even if one of them is {@code 'x'}. Use {@code where(code.where($this =
+ * 'x').exists())} (fallback engine) or {@link CompiledFhirPath#anyValueEquals} on the sub path to
+ * test whether any of them matches.
+ *
+ * <p>Other expressions are evaluated by the fallback engine, which has to be installed with {@link
+ * #setFallbackEngine(IFhirPath)} (e.g. {@code FhirContext.forR4Cached().newFhirPath()}). Without
+ * fallback engine, compiling such an expression fails with an {@link IllegalArgumentException}.
+ */
+@Slf4j
+public class FhirPathCache {
+
+  private static final Pattern IDENTIFIER = Pattern.compile("[A-Za-z_][A-Za-z0-9_]*");
+
+  private static final ConcurrentHashMap<String, CompiledFhirPath> cache =
+      new ConcurrentHashMap<>();
+  private static volatile IFhirPath fallbackEngine;
+
+  /**
+   * Returns the compiled form of the expression, parsing it on first use.
+   *
+   * @param expression the FHIRPath expression
+   * @return the compiled expression
+   * @throws IllegalArgumentException if the expression is not supported by the built-in evaluator
+   *     and no fallback engine is installed, or if the fallback engine can't parse it
+   */
+  public static CompiledFhirPath compile(String expression) {
+    ExceptionTools.checkNull("expression", expression);
+    CompiledFhirPath compiled = cache.get(expression);
+    return compiled != null ? compiled : cache.computeIfAbsent(expression, FhirPathCache::parse);
+  }
+
+  /**
+   * Installs the engine that evaluates the expressions outside the supported subset. Already cached
+   * expressions are dropped, so they are compiled against the new engine.
+   *
+   * @param engine the engine; {@code null} removes the fallback
+   */
+  public static void setFallbackEngine(IFhirPath engine) {
+    fallbackEngine = engine;
+    cache.clear();
+  }
+
+  /** The engine for the expressions outside the supported subset, or {@code null}. */
+  public static IFhirPath getFallbackEngine() {
+    return fallbackEngine;
+  }
+
+  /** Number of cached expressions. */
+  public static int size() {
+    return cache.size();
+  }
+
+  /** Drops all cached expressions. */
+  public static void clear() {
+    cache.clear();
+  }
+
+  private static CompiledFhirPath parse(String expression) {
+    Parsed compiled = parseSubset(expression.trim(), true);
+    if (compiled != null) {
+      return new CompiledFhirPath(expression, compiled.steps(), compiled.firstOnly());
+    }
+    IFhirPath engine = fallbackEngine;
+    if (engine == null) {
+      throw new IllegalArgumentException(
+          "The FHIRPath expression '"
+              + expression
+              + "' is not supported without a fallback engine");
+    }
+    try {
+      log.debug("FHIRPath expression '{}' is evaluated by the fallback engine", expression);
+      return new CompiledFhirPath(expression, engine, engine.parse(expression));
+    } catch (Exception e) {
+      throw new IllegalArgumentException("Invalid FHIRPath expression '" + expression + "'", e);
+    }
+  }
+
+  /**
+   * Parses an expression of the supported subset.
+   *
+   * @return the parsed steps or {@code null} if the expression is outside the subset
+   */
+  private static Parsed parseSubset(String expression, boolean allowType) {
+    List<String> segments = split(expression, '.');
+    if (segments == null || segments.isEmpty()) {
+      return null;
+    }
+    List<Step> steps = new ArrayList<>(segments.size());
+    boolean firstOnly = false;
+    for (int i = 0; i < segments.size(); i++) {
+      String segment = segments.get(i).trim();
+      if (segment.equals("first()") && i == segments.size() - 1 && i > 0) {
+        firstOnly = true;
+      } else if (segment.startsWith("extension(") && segment.endsWith(")")) {
+        String url = unquote(segment.substring("extension(".length(), segment.length() - 1));
+        if (url == null) {
+          return null;
+        }
+        steps.add(new ExtensionStep(url));
+      } else if (segment.startsWith("where(") && segment.endsWith(")")) {
+        WhereStep where = parseWhere(segment.substring("where(".length(), segment.length() - 1));
+        if (where == null) {
+          return null;
+        }
+        steps.add(where);
+      } else if (IDENTIFIER.matcher(segment).matches()) {
+        boolean isType = i == 0 && allowType && Character.isUpperCase(segment.charAt(0));
+        steps.add(isType ? new TypeStep(segment) : new PropertyStep(segment));
+      } else {
+        return null;
+      }
+    }
+    return new Parsed(steps, firstOnly);
+  }
+
+  private static WhereStep parseWhere(String criteria) {
+    List<CompiledFhirPath> paths = new ArrayList<>();
+    List<String> literals = new ArrayList<>();
+    for (String comparison : splitAnd(criteria)) {
+      List<String> sides = split(comparison, '=');
+      if (sides == null || sides.size() != 2) {
+        return null;
+      }
+      String left = sides.get(0).trim();
+      String literal = unquote(sides.get(1).trim());
+      Parsed path = parseSubset(left, false);
+      if (literal == null || path == null || path.firstOnly()) {
+        return null;
+      }
+      paths.add(new CompiledFhirPath(left, path.steps(), false));
+      literals.add(literal);
+    }
+    return paths.isEmpty() ? null : new WhereStep(paths, literals);
+  }
+
+  /** Splits at the separator outside quotes and parentheses; {@code null} if unbalanced. */
+  private static List<String> split(String expression, char separator) {
+    List<String> parts = new ArrayList<>();
+    int depth = 0;
+    boolean quoted = false;
+    int start = 0;
+    for (int i = 0; i < expression.length(); i++) {
+      char c = expression.charAt(i);
+      if (c == '\'') {
+        quoted = !quoted;
+      } else if (!quoted && c == '(') {
+        depth++;
+      } else if (!quoted && c == ')') {
+        depth--;
+      } else if (!quoted && depth == 0 && c == separator) {
+        parts.add(expression.substring(start, i));
+        start = i + 1;
+      }
+      if (depth < 0 || (c == '!' || c == '<' || c == '>') && !quoted && separator == '=') {
+        // '!=', '<=' and '>=' are not supported
+        return null;
+      }
+    }
+    if (depth != 0 || quoted) {
+      return null;
+    }
+    parts.add(expression.substring(start));
+    return parts;
+  }
+
+  /** Splits at {@code and} outside quotes. */
+  private static List<String> splitAnd(String criteria) {
+    List<String> parts = new ArrayList<>();
+    boolean quoted = false;
+    int start = 0;
+    for (int i = 0; i < criteria.length(); i++) {
+      char c = criteria.charAt(i);
+      if (c == '\'') {
+        quoted = !quoted;
+      } else if (!quoted && criteria.startsWith(" and ", i)) {
+        parts.add(criteria.substring(start, i));
+        start = i + " and ".length();
+        i = start - 1;
+      }
+    }
+    parts.add(criteria.substring(start));
+    return parts;
+  }
+
+  /** Removes the single quotes of a string literal; {@code null} if it isn't one. */
+  private static String unquote(String literal) {
+    literal = literal.trim();
+    if (literal.length() >= 2 && literal.startsWith("'") && literal.endsWith("'")) {
+      String value = literal.substring(1, literal.length() - 1);
+      return value.indexOf('\'') < 0 && value.indexOf('\\') < 0 ? value : null;
+    }
+    return null;
+  }
+
+  private record Parsed(List<Step> steps, boolean firstOnly) {}
+}
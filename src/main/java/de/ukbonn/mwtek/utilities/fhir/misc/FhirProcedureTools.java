@@ -21,14 +21,27 @@ import static de.ukbonn.mwtek.utilities.enums.TerminologySystems.OPS;
 import static de.ukbonn.mwtek.utilities.enums.TerminologySystems.SNOMED;
 
 import de.ukbonn.mwtek.utilities.fhir.resources.MiiProcedure;
+import de.ukbonn.mwtek.utilities.generic.collections.IdDictionary;
+import de.ukbonn.mwtek.utilities.generic.collections.IdSet;
+import de.ukbonn.mwtek.utilities.generic.concurrent.ParallelismPolicy;
+import de.ukbonn.mwtek.utilities.generic.sketch.HyperLogLog;
+import de.ukbonn.mwtek.utilities.generic.sketch.SpaceSaving;
+import de.ukbonn.mwtek.utilities.generic.time.SortedTimeTools;
+import de.ukbonn.mwtek.utilities.generic.time.TimeSortedIndex;
+import java.time.Instant;
+import java.time.YearMonth;
+import java.time.ZoneId;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.Date;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Objects;
 import java.util.Set;
-import java.util.stream.Collectors;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
 import org.hl7.fhir.r4.model.DateTimeType;
 import org.hl7.fhir.r4.model.Period;
 import org.hl7.fhir.r4.model.Procedure;
@@ -36,6 +49,9 @@ import org.hl7.fhir.r4.model.Type;
 
 public class FhirProcedureTools {
 
+  /** Returned by {@link #getPerformedEnd(Procedure)} for a period that has not ended yet. */
+  public static final long OPEN_PERFORMED_END = Long.MAX_VALUE;
+
   /**
    * Returns the set of encounter (case) IDs for which at least one {@link MiiProcedure} carries a
    * coding with system {@code SNOMED} and the given SNOMED CT code.
@@ -49,16 +65,38 @@ public class FhirProcedureTools {
   public static Set<String> getEncounterIdsBySnomedCodes(
       Collection<MiiProcedure> ukbProcedures, String snomedCodes) {
     Set<String> caseIds = new HashSet<>();
+    collectCaseIdsBySnomedCode(ukbProcedures, snomedCodes, caseIds::add);
+    return caseIds;
+  }
+
+  /**
+   * Same as {@link #getEncounterIdsBySnomedCodes(Collection, String)}, but collects the case ids
+   * into a compact {@link IdSet} that can be combined with other id sets of the same dictionary.
+   *
+   * @param ukbProcedures the procedures to inspect; may be {@code null}
+   * @param snomedCode the SNOMED CT code to match
+   * @param dictionary the dictionary that maps the case ids to bit positions
+   * @return an {@link IdSet} of case IDs that have at least one matching procedure; never {@code
+   *     null}
+   */
+  public static IdSet getEncounterIdsBySnomedCodes(
+      Collection<MiiProcedure> ukbProcedures, String snomedCode, IdDictionary dictionary) {
+    IdSet caseIds = new IdSet(dictionary);
+    collectCaseIdsBySnomedCode(ukbProcedures, snomedCode, caseIds::add);
+    return caseIds;
+  }
+
+  /** Passes the case id of every procedure with the given SNOMED CT code to the sink. */
+  private static void collectCaseIdsBySnomedCode(
+      Collection<MiiProcedure> ukbProcedures, String snomedCode, Consumer<String> sink) {
     if (ukbProcedures != null) {
       ukbProcedures.forEach(
           procedure -> {
-            if (procedure.hasCode() && procedure.getCode().hasCoding(SNOMED, snomedCodes)) {
-              // Check each code and break if at least 1 got found
-              caseIds.add(procedure.getCaseId());
+            if (procedure.hasCode() && procedure.getCode().hasCoding(SNOMED, snomedCode)) {
+              sink.accept(procedure.getCaseId());
             }
           });
     }
-    return caseIds;
   }
 
   /**
@@ -151,9 +189,8 @@ public class FhirProcedureTools {
     }
 
     // Filter by prefix using the existing helper
-    return ukbProcedures.parallelStream()
-        .filter(proc -> isOpsCodePrefixInProcedure(proc, opsCodePrefix))
-        .collect(Collectors.toSet());
+    return ParallelismPolicy.getDefault()
+        .filterToSet(ukbProcedures, proc -> isOpsCodePrefixInProcedure(proc, opsCodePrefix));
   }
 
   /**
@@ -184,9 +221,116 @@ public class FhirProcedureTools {
     }
 
     // Match if any given prefix matches via helper
-    return ukbProcedures.parallelStream()
-        .filter(proc -> cleanPrefixes.stream().anyMatch(p -> isOpsCodePrefixInProcedure(proc, p)))
-        .collect(Collectors.toSet());
+    return ParallelismPolicy.getDefault()
+        .filterToSet(
+            ukbProcedures,
+            proc -> cleanPrefixes.stream().anyMatch(p -> isOpsCodePrefixInProcedure(proc, p)));
+  }
+
+  /**
+   * Lazy variant of {@link #getProceduresByAnyOpsCodePrefix(Collection, Collection)} that can be
+   * chained with further stream stages without materializing intermediate sets.
+   *
+   * @param ukbProcedures a stream of procedures
+   * @param opsCodePrefixes the OPS code prefixes; {@code null} or blank prefixes are ignored
+   * @return a lazy stream of the procedures with an OPS code that starts with any of the prefixes
+   */
+  public static Stream<MiiProcedure> filterByOpsCodePrefixes(
+      Stream<MiiProcedure> ukbProcedures, Collection<String> opsCodePrefixes) {
+    final List<String> cleanPrefixes =
+        opsCodePrefixes == null
+            ? List.of()
+            : opsCodePrefixes.stream()
+                .filter(Objects::nonNull)
+                .map(String::trim)
+                .filter(s -> !s.isEmpty())
+                .toList();
+    return ukbProcedures.filter(
+        proc -> cleanPrefixes.stream().anyMatch(p -> isOpsCodePrefixInProcedure(proc, p)));
+  }
+
+  /**
+   * Lazy variant of the SNOMED CT lookups: all procedures with a SNOMED coding whose code is part
+   * of the given codes, see {@link #isSnomedCodeInProcedure(MiiProcedure, Collection)}.
+   *
+   * @param ukbProcedures a stream of procedures
+   * @param snomedCodes the SNOMED CT codes to look for
+   * @return a lazy stream of the matching procedures
+   */
+  public static Stream<MiiProcedure> filterBySnomedCodes(
+      Stream<MiiProcedure> ukbProcedures, Collection<String> snomedCodes) {
+    return ukbProcedures.filter(procedure -> isSnomedCodeInProcedure(procedure, snomedCodes));
+  }
+
+  /**
+   * Lazy variant of {@link #filterProceduresByRecordDate(List, Date)}.
+   *
+   * @param ukbProcedures a stream of procedures
+   * @param referenceDate only procedures performed after this date pass
+   * @return a lazy stream of the matching procedures
+   */
+  public static Stream<MiiProcedure> filterByRecordDate(
+      Stream<MiiProcedure> ukbProcedures, Date referenceDate) {
+    return ukbProcedures.filter(p -> isAfterReference(p, referenceDate));
+  }
+
+  /**
+   * Approximate distinct-patient count of the procedures with an OPS code that starts with any of
+   * the given prefixes, as a cheaper alternative to collecting the patient ids of {@link
+   * #getProceduresByAnyOpsCodePrefix(Collection, Collection)}.
+   *
+   * @param ukbProcedures the procedures to inspect; may be {@code null}
+   * @param opsCodePrefixes the OPS code prefixes; may be {@code null}
+   * @param precision the precision of the sketch, see {@link HyperLogLog#HyperLogLog(int)}
+   * @return a sketch of the patient ids of the matching procedures; never {@code null}
+   */
+  public static HyperLogLog sketchPatientIdsByAnyOpsCodePrefix(
+      final Collection<MiiProcedure> ukbProcedures,
+      final Collection<String> opsCodePrefixes,
+      int precision) {
+    if (ukbProcedures == null || opsCodePrefixes == null || opsCodePrefixes.isEmpty()) {
+      return new HyperLogLog(precision);
+    }
+    return ParallelismPolicy.getDefault()
+        .apply(
+            ukbProcedures,
+            stream ->
+                filterByOpsCodePrefixes(stream, opsCodePrefixes)
+                    .map(MiiProcedure::getPatientId)
+                    .collect(HyperLogLog.collector(precision)),
+            HyperLogLog::merge);
+  }
+
+  /**
+   * Counts the most frequent OPS codes per calendar month of the performed start in a single pass
+   * with bounded memory. The first OPS code of each procedure is counted; procedures without OPS
+   * code or performed element are skipped.
+   *
+   * @param ukbProcedures the procedures to inspect; may be {@code null}
+   * @param capacity the number of counters per month, see {@link SpaceSaving#SpaceSaving(int)}
+   * @param zone the time zone that defines the months
+   * @return a heavy-hitters summary per month; use {@link SpaceSaving#topK(int)} for the codes
+   */
+  public static Map<YearMonth, SpaceSaving<String>> getTopOpsCodesPerMonth(
+      Collection<MiiProcedure> ukbProcedures, int capacity, ZoneId zone) {
+    if (ukbProcedures == null) {
+      return new HashMap<>();
+    }
+    return ParallelismPolicy.getDefault()
+        .apply(
+            ukbProcedures,
+            stream ->
+                stream.collect(
+                    SpaceSaving.groupingBy(
+                        procedure -> {
+                          long performed = procedure.getPerformedStartMillis();
+                          return performed != SortedTimeTools.NO_TIME
+                              ? YearMonth.from(Instant.ofEpochMilli(performed).atZone(zone))
+                              : null;
+                        },
+                        MiiProcedure::getOpsCode,
+                        capacity)),
+            SpaceSaving::mergeAll);
   }
 
   /**
@@ -206,10 +350,8 @@ public class FhirProcedureTools {
       return Collections.emptyList();
     }
 
-    return ukbProcedures.parallelStream()
-        .filter(Procedure::hasPerformed)
-        .filter(p -> isAfterReference(p, referenceDate))
-        .toList();
+    return ParallelismPolicy.getDefault()
+        .filterToList(ukbProcedures, p -> p.hasPerformed() && isAfterReference(p, referenceDate));
   }
 
   /**
@@ -222,12 +364,25 @@ public class FhirProcedureTools {
    * @return {@code true} if the procedure took place after referenceDate, otherwise {@code false}
    */
   private static boolean isAfterReference(Procedure p, Date referenceDate) {
-    Type performed = p.getPerformed();
+    long reference = getPerformedReference(p);
+    return reference != SortedTimeTools.NO_TIME && reference > referenceDate.getTime();
+  }
+
+  /**
+   * Returns the point in time that {@link #isAfterReference(Procedure, Date)} compares: the value
+   * of a {@code performedDateTime}, the end of a {@code performedPeriod} or its start if the period
+   * has no end.
+   *
+   * @param p the {@link Procedure} to check; may be {@code null}
+   * @return the reference time in epoch millis or {@link SortedTimeTools#NO_TIME}
+   */
+  private static long getPerformedReference(Procedure p) {
+    Type performed = p != null ? p.getPerformed() : null;
 
     // Case 1: performedDateTime
     if (performed instanceof DateTimeType dt) {
       Date when = dt.getValue();
-      return when != null && when.after(referenceDate);
+      return when != null ? when.getTime() : SortedTimeTools.NO_TIME;
     }
 
     // Case 2: performedPeriod
@@ -236,12 +391,84 @@ public class FhirProcedureTools {
       Date end = period.getEnd();
 
       if (end != null) {
-        return end.after(referenceDate);
+        return end.getTime();
       }
-      return start != null && start.after(referenceDate);
+      return start != null ? start.getTime() : SortedTimeTools.NO_TIME;
     }
 
     // Other performed[x] types (Age, Range, String) are not handled here
-    return false;
+    return SortedTimeTools.NO_TIME;
+  }
+
+  /**
+   * Creates a {@link TimeSortedIndex} over the procedures, keyed by the same point in time that
+   * {@link #filterProceduresByRecordDate(List, Date)} compares. It can be passed to {@link
+   * #filterProceduresByRecordDate(TimeSortedIndex, Date)} for repeated queries with moving
+   * reference dates.
+   *
+   * @param ukbProcedures the list of procedures; may be {@code null}
+   * @return the index; procedures without a usable performed date are not part of it
+   */
+  public static TimeSortedIndex<MiiProcedure> createPerformedDateIndex(
+      List<MiiProcedure> ukbProcedures) {
+    return new TimeSortedIndex<>(ukbProcedures, FhirProcedureTools::getPerformedReference);
+  }
+
+  /**
+   * Returns the procedures of the given index that were performed after the reference date, with
+   * the same semantics as {@link #filterProceduresByRecordDate(List, Date)}. The lookup is a binary
+   * search and the result is ordered by the compared date.
+   *
+   * @param performedDateIndex an index created by {@link #createPerformedDateIndex(List)}
+   * @param referenceDate the cutoff date; must not be {@code null}
+   * @return an unmodifiable view of the procedures performed after the reference date
+   */
+  public static List<MiiProcedure> filterProceduresByRecordDate(
+      TimeSortedIndex<MiiProcedure> performedDateIndex, Date referenceDate) {
+    return performedDateIndex.after(referenceDate);
+  }
+
+  /**
+   * Returns the start of {@code performed[x]} as epoch millis. For a {@code performedDateTime} this
+   * is the value itself, for a {@code performedPeriod} the start (or the end, if the start is
+   * missing).
+   *
+   * @param p the {@link Procedure} to check; may be {@code null}
+   * @return the start in epoch millis or {@link SortedTimeTools#NO_TIME} if no date is available
+   */
+  public static long getPerformedStart(Procedure p) {
+    Type performed = p != null ? p.getPerformed() : null;
+    if (performed instanceof DateTimeType dt) {
+      return dt.getValue() != null ? dt.getValue().getTime() : SortedTimeTools.NO_TIME;
+    }
+    if (performed instanceof Period period) {
+      if (period.getStart() != null) {
+        return period.getStart().getTime();
+      }
+      return period.getEnd() != null ? period.getEnd().getTime() : SortedTimeTools.NO_TIME;
+    }
+    return SortedTimeTools.NO_TIME;
+  }
+
+  /**
+   * Returns the end of {@code performed[x]} as epoch millis. For a {@code performedDateTime} this
+   * is the value itself, for a {@code performedPeriod} the end or {@link #OPEN_PERFORMED_END} if
+   * the period has a start but no end.
+   *
+   * @param p the {@link Procedure} to check; may be {@code null}
+   * @return the end in epoch millis or {@link SortedTimeTools#NO_TIME} if no date is available
+   */
+  public static long getPerformedEnd(Procedure p) {
+    Type performed = p != null ? p.getPerformed() : null;
+    if (performed instanceof DateTimeType dt) {
+      return dt.getValue() != null ? dt.getValue().getTime() : SortedTimeTools.NO_TIME;
+    }
+    if (performed instanceof Period period) {
+      if (period.getEnd() != null) {
+        return period.getEnd().getTime();
+      }
+      return period.getStart() != null ? OPEN_PERFORMED_END : SortedTimeTools.NO_TIME;
+    }
+    return SortedTimeTools.NO_TIME;
   }
 }
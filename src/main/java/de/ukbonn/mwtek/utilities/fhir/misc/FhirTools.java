@@ -22,16 +22,26 @@ import static de.ukbonn.mwtek.utilities.fhir.mapping.kdscase.valuesets.KdsEncoun
 
 import de.ukbonn.mwtek.utilities.Compare;
 import de.ukbonn.mwtek.utilities.ExceptionTools;
+import de.ukbonn.mwtek.utilities.fhir.index.EncounterFlags;
+import de.ukbonn.mwtek.utilities.fhir.index.EncounterIndex;
 import de.ukbonn.mwtek.utilities.fhir.resources.MiiEncounter;
+import de.ukbonn.mwtek.utilities.generic.collections.IdSet;
+import de.ukbonn.mwtek.utilities.generic.concurrent.ParallelismPolicy;
+import de.ukbonn.mwtek.utilities.generic.sketch.HyperLogLog;
 import java.math.BigDecimal;
 import java.math.RoundingMode;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Date;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Objects;
 import java.util.Set;
-import java.util.stream.Collectors;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Predicate;
+import java.util.stream.Stream;
 import lombok.extern.slf4j.Slf4j;
 import org.hl7.fhir.r4.model.BaseDateTimeType;
 import org.hl7.fhir.r4.model.Bundle;
@@ -41,6 +51,7 @@ import org.hl7.fhir.r4.model.Consent;
 import org.hl7.fhir.r4.model.DateTimeType;
 import org.hl7.fhir.r4.model.Dosage;
 import org.hl7.fhir.r4.model.Encounter;
+import org.hl7.fhir.r4.model.Encounter.EncounterLocationComponent;
 import org.hl7.fhir.r4.model.Extension;
 import org.hl7.fhir.r4.model.Identifier;
 import org.hl7.fhir.r4.model.Identifier.IdentifierUse;
@@ -257,17 +268,21 @@ public class FhirTools {
 
   public static Set<String> getOfficialIdentifiers(
       Set<String> positiveEncounterIds, List<MiiEncounter> miiEncounters) {
-    Set<MiiEncounter> encountersWithIdentifier =
-        miiEncounters.parallelStream().filter(Encounter::hasIdentifier).collect(Collectors.toSet());
-    if (encountersWithIdentifier.size() != miiEncounters.size()) {
+    long encountersWithIdentifier =
+        ParallelismPolicy.getDefault()
+            .apply(
+                miiEncounters,
+                stream -> stream.filter(Encounter::hasIdentifier).count(),
+                Long::sum);
+    if (encountersWithIdentifier != miiEncounters.size()) {
       log.warn(
           "Found: "
               + miiEncounters.size()
               + " encounter resources but only "
-              + encountersWithIdentifier.size()
+              + encountersWithIdentifier
               + " got an identifier!");
     }
-    if (!encountersWithIdentifier.isEmpty()) {
+    if (encountersWithIdentifier > 0) {
       Set<String> ukbEncounterWithOfficialIdentifier =
           new HashSet<>(
               miiEncounters.stream()
@@ -286,17 +301,38 @@ public class FhirTools {
     }
   }
 
-  public static Set<String> getVisitNumberIdentifiers(
-      Set<String> positiveEncounterIds, List<MiiEncounter> miiEncounters) {
-    Set<MiiEncounter> encountersWithIdentifier =
-        miiEncounters.parallelStream().filter(Encounter::hasIdentifier).collect(Collectors.toSet());
-    if (encountersWithIdentifier.size() != miiEncounters.size()) {
+  /**
+   * Same as {@link #getOfficialIdentifiers(Set, List)}, but the identifiers of the positive
+   * encounters are looked up in an {@link EncounterIndex} instead of scanning all encounters.
+   */
+  public static Set<String> getOfficialIdentifiers(
+      Set<String> positiveEncounterIds, EncounterIndex encounterIndex) {
+    if (encounterIndex.getEncountersWithIdentifierCount() != encounterIndex.size()) {
       log.warn(
-          "Found: {} encounter resources but only {} are using the 'Aufnahmenummer' slice.",
-          miiEncounters.size(),
-          encountersWithIdentifier.size());
+          "Found: "
+              + encounterIndex.size()
+              + " encounter resources but only "
+              + encounterIndex.getEncountersWithIdentifierCount()
+              + " got an identifier!");
+    }
+    if (encounterIndex.getEncountersWithIdentifierCount() > 0) {
+      Set<String> ukbEncounterWithOfficialIdentifier =
+          encounterIndex.getOfficialIdentifiers(positiveEncounterIds);
+      if (ukbEncounterWithOfficialIdentifier.isEmpty()) {
+        log.error(
+            "Not a single encounter with an identifier of type 'official' was found. No "
+                + "hierarchical determination from supply contact -> facility contact is "
+                + "possible!");
+      }
+      return ukbEncounterWithOfficialIdentifier;
+    } else {
+      return null;
     }
-    if (!encountersWithIdentifier.isEmpty()) {
+  }
+
+  public static Set<String> getVisitNumberIdentifiers(
+      Set<String> positiveEncounterIds, List<MiiEncounter> miiEncounters) {
+    if (hasAnyEncounterIdentifier(miiEncounters)) {
       Set<String> encountersVisitNumbers =
           new HashSet<>(
               miiEncounters.stream()
@@ -305,10 +341,7 @@ public class FhirTools {
                   .map(MiiEncounter::getVisitNumberIdentifierValue)
                   .toList());
       if (encountersVisitNumbers.isEmpty()) {
-        log.error(
-            "Not a single encounter with an identifier of slice type 'Aufnahmenummer' was found. "
-                + "No hierarchical determination from supply contact -> facility contact is "
-                + "possible!");
+        logMissingVisitNumbers();
       }
       return encountersVisitNumbers;
     } else {
@@ -316,6 +349,112 @@ public class FhirTools {
     }
   }
 
+  /**
+   * Same as {@link #getVisitNumberIdentifiers(Set, List)}, but works on compact {@link IdSet}s. The
+   * visit numbers are registered in the dictionary of the given encounter id set.
+   *
+   * @param positiveEncounterIds The ids of the encounters whose visit numbers are wanted.
+   * @param miiEncounters All encounters of the dataset.
+   * @return An {@link IdSet} with the visit numbers or <code>null</code> if no encounter got an
+   *     identifier at all.
+   */
+  public static IdSet getVisitNumberIdentifiers(
+      IdSet positiveEncounterIds, List<MiiEncounter> miiEncounters) {
+    if (hasAnyEncounterIdentifier(miiEncounters)) {
+      IdSet encountersVisitNumbers = new IdSet(positiveEncounterIds.getDictionary());
+      for (MiiEncounter encounter : miiEncounters) {
+        if (positiveEncounterIds.contains(encounter.getId())
+            && encounter.hasVisitNumberIdentifierValue()) {
+          encountersVisitNumbers.add(encounter.getVisitNumberIdentifierValue());
+        }
+      }
+      if (encountersVisitNumbers.isEmpty()) {
+        logMissingVisitNumbers();
+      }
+      return encountersVisitNumbers;
+    } else {
+      return null;
+    }
+  }
+
+  /**
+   * Same as {@link #getVisitNumberIdentifiers(Set, List)}, but the visit numbers of the positive
+   * encounters are looked up in an {@link EncounterIndex} instead of scanning all encounters.
+   */
+  public static Set<String> getVisitNumberIdentifiers(
+      Set<String> positiveEncounterIds, EncounterIndex encounterIndex) {
+    if (hasAnyEncounterIdentifier(
+        encounterIndex.size(), encounterIndex.getEncountersWithIdentifierCount())) {
+      Set<String> encountersVisitNumbers = encounterIndex.getVisitNumbers(positiveEncounterIds);
+      if (encountersVisitNumbers.isEmpty()) {
+        logMissingVisitNumbers();
+      }
+      return encountersVisitNumbers;
+    } else {
+      return null;
+    }
+  }
+
+  private static boolean hasAnyEncounterIdentifier(List<MiiEncounter> miiEncounters) {
+    long encountersWithIdentifier =
+        ParallelismPolicy.getDefault()
+            .apply(
+                miiEncounters,
+                stream -> stream.filter(Encounter::hasIdentifier).count(),
+                Long::sum);
+    return hasAnyEncounterIdentifier(miiEncounters.size(), encountersWithIdentifier);
+  }
+
+  private static boolean hasAnyEncounterIdentifier(
+      long encounterCount, long encountersWithIdentifier) {
+    if (encountersWithIdentifier != encounterCount) {
+      log.warn(
+          "Found: {} encounter resources but only {} are using the 'Aufnahmenummer' slice.",
+          encounterCount,
+          encountersWithIdentifier);
+    }
+    return encountersWithIdentifier > 0;
+  }
+
+  private static void logMissingVisitNumbers() {
+    log.error(
+        "Not a single encounter with an identifier of slice type 'Aufnahmenummer' was found. "
+            + "No hierarchical determination from supply contact -> facility contact is "
+            + "possible!");
+  }
+
+  /**
+   * Lazy variant of {@link #getOfficialIdentifiers(Set, List)} without the plausibility logging.
+   *
+   * @param miiEncounters A stream of encounters.
+   * @param positiveEncounterIds The ids of the encounters whose identifiers are wanted.
+   * @return A lazy stream of the distinct, non-null official identifier values.
+   */
+  public static Stream<String> officialIdentifiers(
+      Stream<MiiEncounter> miiEncounters, Set<String> positiveEncounterIds) {
+    return miiEncounters
+        .filter(x -> positiveEncounterIds.contains(x.getId()))
+        .map(MiiEncounter::getOfficialIdentifierValue)
+        .filter(Objects::nonNull)
+        .distinct();
+  }
+
+  /**
+   * Lazy variant of {@link #getVisitNumberIdentifiers(Set, List)} without the plausibility logging.
+   *
+   * @param miiEncounters A stream of encounters.
+   * @param positiveEncounterIds The ids of the encounters whose visit numbers are wanted.
+   * @return A lazy stream of the distinct visit numbers.
+   */
+  public static Stream<String> visitNumberIdentifiers(
+      Stream<MiiEncounter> miiEncounters, Set<String> positiveEncounterIds) {
+    return miiEncounters
+        .filter(x -> positiveEncounterIds.contains(x.getId()))
+        .filter(MiiEncounter::hasVisitNumberIdentifierValue)
+        .map(MiiEncounter::getVisitNumberIdentifierValue)
+        .distinct();
+  }
+
   /**
    * Filters a list of UkbEncounter objects based on their official identifier values and adds a
    * given extension to each filtered encounter.
@@ -329,10 +468,130 @@ public class FhirTools {
    */
   public static Set<MiiEncounter> flagEncountersByIdentifierValue(
       Set<String> visitNumberIdentifierValues, List<MiiEncounter> miiEncounters, Extension flag) {
-    return miiEncounters.stream()
-        .filter(x -> visitNumberIdentifierValues.contains(x.getVisitNumberIdentifierValue()))
-        .peek(x -> x.addExtension(flag))
-        .collect(Collectors.toSet());
+    return flagEncounters(visitNumberIdentifierValues::contains, miiEncounters, flag);
+  }
+
+  /**
+   * Same as {@link #flagEncountersByIdentifierValue(Set, List, Extension)}, but the encounters are
+   * looked up per identifier value in an {@link EncounterIndex} instead of scanning all encounters.
+   */
+  public static Set<MiiEncounter> flagEncountersByIdentifierValue(
+      Set<String> visitNumberIdentifierValues, EncounterIndex encounterIndex, Extension flag) {
+    Set<MiiEncounter> flagged = new HashSet<>();
+    for (String visitNumber : visitNumberIdentifierValues) {
+      for (MiiEncounter encounter : encounterIndex.getByVisitNumber(visitNumber)) {
+        encounter.addExtension(flag);
+        flagged.add(encounter);
+      }
+    }
+    return flagged;
+  }
+
+  /**
+   * Same as {@link #flagEncountersByIdentifierValue(Set, List, Extension)}, but the flag is set in
+   * the {@link EncounterFlags} side table instead of being added as extension to the encounters, so
+   * the (shared) resources stay untouched and the encounters can be checked in parallel.
+   *
+   * @param visitNumberIdentifierValues The visit numbers of the encounters that get flagged.
+   * @param miiEncounters The encounters to check.
+   * @param encounterFlags The side table; encounters that are not part of it are skipped.
+   * @param flag The name of the flag, e.g. the url of the corresponding extension.
+   * @return The number of encounters that got newly flagged, i.e. without encounters that are
+   *     unknown to the side table or were already flagged (e.g. duplicates in the list).
+   */
+  public static long flagEncountersByIdentifierValue(
+      Set<String> visitNumberIdentifierValues,
+      List<MiiEncounter> miiEncounters,
+      EncounterFlags encounterFlags,
+      String flag) {
+    LongAdder flagged = new LongAdder();
+    ParallelismPolicy.getDefault()
+        .forEach(
+            miiEncounters,
+            x -> {
+              if (visitNumberIdentifierValues.contains(x.getVisitNumberIdentifierValue())
+                  && encounterFlags.set(flag, x)) {
+                flagged.increment();
+              }
+            });
+    return flagged.sum();
+  }
+
+  /**
+   * Same as {@link #flagEncountersByIdentifierValue(Set, List, EncounterFlags, String)}, but the
+   * encounters are looked up per visit number in an {@link EncounterIndex}. Encounters that are not
+   * part of the side table are skipped.
+   *
+   * @return The number of encounters that got newly flagged.
+   */
+  public static long flagEncountersByIdentifierValue(
+      Set<String> visitNumberIdentifierValues,
+      EncounterIndex encounterIndex,
+      EncounterFlags encounterFlags,
+      String flag) {
+    long count = 0;
+    for (String visitNumber : visitNumberIdentifierValues) {
+      for (MiiEncounter encounter : encounterIndex.getByVisitNumber(visitNumber)) {
+        if (encounterFlags.set(flag, encounter)) {
+          count++;
+        }
+      }
+    }
+    return count;
+  }
+
+  /**
+   * Same as {@link #flagEncountersByIdentifierValue(Set, List, Extension)}, but the identifier
+   * values are given as a compact {@link IdSet}.
+   */
+  public static Set<MiiEncounter> flagEncountersByIdentifierValue(
+      IdSet visitNumberIdentifierValues, List<MiiEncounter> miiEncounters, Extension flag) {
+    return flagEncounters(visitNumberIdentifierValues::contains, miiEncounters, flag);
+  }
+
+  /** Shared traversal of the extension-flagging tools; the encounters are flagged in order. */
+  private static Set<MiiEncounter> flagEncounters(
+      Predicate<String> isFlaggedVisitNumber, List<MiiEncounter> miiEncounters, Extension flag) {
+    Set<MiiEncounter> flagged = new HashSet<>();
+    miiEncounters.forEach(
+        x -> {
+          if (isFlaggedVisitNumber.test(x.getVisitNumberIdentifierValue())) {
+            x.addExtension(flag);
+            flagged.add(x);
+          }
+        });
+    return flagged;
+  }
+
+  /**
+   * Approximate distinct-patient count per ward: every encounter feeds its patient id into the
+   * {@link HyperLogLog} sketch of each referenced location.
+   *
+   * @param miiEncounters The encounters to inspect.
+   * @param precision The precision of the sketches, see {@link HyperLogLog#HyperLogLog(int)}.
+   * @return A sketch per location id ({@link Reference#getIdBase()} of the location reference).
+   */
+  public static Map<String, HyperLogLog> sketchPatientIdsByLocation(
+      Collection<MiiEncounter> miiEncounters, int precision) {
+    return ParallelismPolicy.getDefault()
+        .apply(
+            miiEncounters,
+            stream ->
+                stream.collect(
+                    HashMap::new,
+                    (Map<String, HyperLogLog> sketches, MiiEncounter encounter) -> {
+                      for (EncounterLocationComponent location : encounter.getLocation()) {
+                        String locationId =
+                            location.hasLocation() ? location.getLocation().getIdBase() : null;
+                        if (locationId != null) {
+                          sketches
+                              .computeIfAbsent(locationId, k -> new HyperLogLog(precision))
+                              .add(encounter.getPatientId());
+                        }
+                      }
+                    },
+                    HyperLogLog::mergeAll),
+            HyperLogLog::mergeAll);
   }
 
   public static MedicationAdministrationDosageComponent getMedicationAdministrationDosageComponent(
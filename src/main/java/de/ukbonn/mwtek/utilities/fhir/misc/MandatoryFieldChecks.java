@@ -0,0 +1,121 @@
+/*
+ * Copyright (C) 2021 University Hospital Bonn - All Rights Reserved You may use, distribute and
+ * modify this code under the GPL 3 license. THERE IS NO WARRANTY FOR THE PROGRAM, TO THE EXTENT
+ * PERMITTED BY APPLICABLE LAW. EXCEPT WHEN OTHERWISE STATED IN WRITING THE COPYRIGHT HOLDERS AND/OR
+ * OTHER PARTIES PROVIDE THE PROGRAM “AS IS” WITHOUT WARRANTY OF ANY KIND, EITHER EXPRESSED OR
+ * IMPLIED, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE. THE ENTIRE RISK AS TO THE QUALITY AND PERFORMANCE OF THE PROGRAM IS WITH
+ * YOU. SHOULD THE PROGRAM PROVE DEFECTIVE, YOU ASSUME THE COST OF ALL NECESSARY SERVICING, REPAIR
+ * OR CORRECTION. IN NO EVENT UNLESS REQUIRED BY APPLICABLE LAW OR AGREED TO IN WRITING WILL ANY
+ * COPYRIGHT HOLDER, OR ANY OTHER PARTY WHO MODIFIES AND/OR CONVEYS THE PROGRAM AS PERMITTED ABOVE,
+ * BE LIABLE TO YOU FOR DAMAGES, INCLUDING ANY GENERAL, SPECIAL, INCIDENTAL OR CONSEQUENTIAL DAMAGES
+ * ARISING OUT OF THE USE OR INABILITY TO USE THE PROGRAM (INCLUDING BUT NOT LIMITED TO LOSS OF DATA
+ * OR DATA BEING RENDERED INACCURATE OR LOSSES SUSTAINED BY YOU OR THIRD PARTIES OR A FAILURE OF THE
+ * PROGRAM TO OPERATE WITH ANY OTHER PROGRAMS), EVEN IF SUCH HOLDER OR OTHER PARTY HAS BEEN ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGES. You should have received a copy of the GPL 3 license with *
+ * this file. If not, visit http://www.gnu.de/documents/gpl-3.0.en.html
+ */
+
+package de.ukbonn.mwtek.utilities.fhir.misc;
+
+import java.util.List;
+import java.util.function.Predicate;
+import org.hl7.fhir.r4.model.Condition;
+import org.hl7.fhir.r4.model.Consent;
+import org.hl7.fhir.r4.model.Encounter;
+import org.hl7.fhir.r4.model.Location;
+import org.hl7.fhir.r4.model.Observation;
+import org.hl7.fhir.r4.model.Patient;
+import org.hl7.fhir.r4.model.Procedure;
+
+/**
+ * The mandatory field checks of the {@link ResourceConverter}, as named predicates so that they can
+ * be evaluated without converting (e.g. by a data quality profiler).
+ *
+ * <p>The predicates keep the semantics and the order of the original checks, so the same field is
+ * reported: lists only have to be non-empty (like {@link
+ * de.ukbonn.mwtek.utilities.ExceptionTools#checkNullOrEmpty(String, java.util.Collection)}), even
+ * if their elements are empty. Single elements are read via the {@code hasX()} accessors where this
+ * doesn't change the result, so evaluating them mostly avoids the auto create mechanism of hapi
+ * fhir.
+ */
+public class MandatoryFieldChecks {
+
+  /**
+   * A single mandatory field check.
+   *
+   * @param name the field name, used as message of the {@link IllegalArgumentException}
+   * @param isPresent whether the field is filled in the given resource
+   * @param <T> the resource type
+   */
+  public record FieldCheck<T>(String name, Predicate<? super T> isPresent) {
+
+    /**
+     * @throws IllegalArgumentException with the field name as message if the field is missing
+     */
+    public void require(T resource) throws IllegalArgumentException {
+      if (!isPresent.test(resource)) {
+        throw new IllegalArgumentException(name);
+      }
+    }
+  }
+
+  public static final List<FieldCheck<Encounter>> ENCOUNTER =
+      List.of(
+          new FieldCheck<>("Period", e -> e.hasPeriod() && e.getPeriod().getStart() != null),
+          new FieldCheck<>("Class", e -> e.hasClass_() && e.getClass_().getCode() != null));
+
+  public static final List<FieldCheck<Patient>> PATIENT =
+      List.of(
+          new FieldCheck<>("identifier", p -> !p.getIdentifier().isEmpty()),
+          new FieldCheck<>("name", p -> !p.getName().isEmpty()),
+          new FieldCheck<>("gender", p -> p.getGender() != null),
+          new FieldCheck<>("birthdate", p -> p.getBirthDate() != null));
+
+  public static final List<FieldCheck<Observation>> OBSERVATION =
+      List.of(
+          new FieldCheck<>(
+              "patient", o -> o.hasSubject() && o.getSubject().getReference() != null));
+
+  public static final List<FieldCheck<Procedure>> PROCEDURE =
+      List.of(
+          new FieldCheck<>("patientId", p -> p.hasSubject() && p.getSubject().hasReference()),
+          new FieldCheck<>("status", p -> p.getStatus() != null),
+          // Like the original check; getCode() auto creates the element if it is missing
+          new FieldCheck<>("code", p -> p.getCode() != null),
+          new FieldCheck<>("performed", p -> p.getPerformed() != null));
+
+  public static final List<FieldCheck<Condition>> CONDITION =
+      List.of(new FieldCheck<>("recordedDate", c -> c.getRecordedDate() != null));
+
+  public static final List<FieldCheck<Location>> LOCATION =
+      List.of(new FieldCheck<>("Identifier", l -> !l.getIdentifier().isEmpty()));
+
+  public static final List<FieldCheck<Consent>> CONSENT =
+      List.of(new FieldCheck<>("policy", c -> !c.getPolicy().isEmpty()));
+
+  // can't be instantiated
+  private MandatoryFieldChecks() {}
+
+  /**
+   * Runs all checks in the given order.
+   *
+   * @throws IllegalArgumentException with the name of the first missing field as message
+   */
+  public static <T> void requireAll(List<FieldCheck<T>> checks, T resource)
+      throws IllegalArgumentException {
+    for (FieldCheck<T> check : checks) {
+      check.require(resource);
+    }
+  }
+
+  /** Whether the given resource passes all checks. */
+  public static <T> boolean isComplete(List<FieldCheck<T>> checks, T resource) {
+    for (FieldCheck<T> check : checks) {
+      if (!check.isPresent().test(resource)) {
+        return false;
+      }
+    }
+    return true;
+  }
+}
@@ -0,0 +1,211 @@
+/*
+ * Copyright (C) 2021 University Hospital Bonn - All Rights Reserved You may use, distribute and
+ * modify this code under the GPL 3 license. THERE IS NO WARRANTY FOR THE PROGRAM, TO THE EXTENT
+ * PERMITTED BY APPLICABLE LAW. EXCEPT WHEN OTHERWISE STATED IN WRITING THE COPYRIGHT HOLDERS AND/OR
+ * OTHER PARTIES PROVIDE THE PROGRAM “AS IS” WITHOUT WARRANTY OF ANY KIND, EITHER EXPRESSED OR
+ * IMPLIED, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE. THE ENTIRE RISK AS TO THE QUALITY AND PERFORMANCE OF THE PROGRAM IS WITH
+ * YOU. SHOULD THE PROGRAM PROVE DEFECTIVE, YOU ASSUME THE COST OF ALL NECESSARY SERVICING, REPAIR
+ * OR CORRECTION. IN NO EVENT UNLESS REQUIRED BY APPLICABLE LAW OR AGREED TO IN WRITING WILL ANY
+ * COPYRIGHT HOLDER, OR ANY OTHER PARTY WHO MODIFIES AND/OR CONVEYS THE PROGRAM AS PERMITTED ABOVE,
+ * BE LIABLE TO YOU FOR DAMAGES, INCLUDING ANY GENERAL, SPECIAL, INCIDENTAL OR CONSEQUENTIAL DAMAGES
+ * ARISING OUT OF THE USE OR INABILITY TO USE THE PROGRAM (INCLUDING BUT NOT LIMITED TO LOSS OF DATA
+ * OR DATA BEING RENDERED INACCURATE OR LOSSES SUSTAINED BY YOU OR THIRD PARTIES OR A FAILURE OF THE
+ * PROGRAM TO OPERATE WITH ANY OTHER PROGRAMS), EVEN IF SUCH HOLDER OR OTHER PARTY HAS BEEN ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGES. You should have received a copy of the GPL 3 license with *
+ * this file. If not, visit http://www.gnu.de/documents/gpl-3.0.en.html
+ */
+package de.ukbonn.mwtek.utilities.fhir.misc;
+
+import de.ukbonn.mwtek.utilities.generic.collections.LruCache;
+import java.lang.ref.WeakReference;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Opt-in result cache for repeated code-set lookups of the {@code *Tools} classes (e.g. several
+ * dashboard indicators that call {@link FhirConditionTools#getConditionsByIcdCodes(Collection,
+ * Collection)} with the same code list in one run).
+ *
+ * <p>The cache is disabled by default and is switched on with {@link #enable(int)}. Entries are
+ * keyed by the identity of the queried collection, its size, its first and last element (for
+ * lists), the cache generation, the query type, the code set (order and duplicates don't matter)
+ * and optional filter values. A changed size or changed boundary elements therefore miss the cache
+ * automatically. Changes that keep them (e.g. replacing an element in the middle of a list) must be
+ * announced with {@link #invalidate()}, which starts a new generation.
+ *
+ * <p>Callers get a copy of the cached set on every call, so they may modify it as before.
+ */
+@Slf4j
+public class QueryResultCache {
+
+  private static final AtomicLong generation = new AtomicLong();
+  private static volatile LruCache<Key, Set<?>> cache;
+
+  /**
+   * Enables the cache or replaces it with an empty one of the given size.
+   *
+   * @param maxEntries the maximal number of cached query results
+   */
+  public static void enable(int maxEntries) {
+    cache = new LruCache<>(maxEntries);
+    log.debug("Query result cache enabled with up to {} entries", maxEntries);
+  }
+
+  /** Disables the cache and drops all entries. */
+  public static void disable() {
+    cache = null;
+  }
+
+  /** Whether the cache is enabled. */
+  public static boolean isEnabled() {
+    return cache != null;
+  }
+
+  /**
+   * Drops all entries and starts a new generation. Needs to be called if a queried collection
+   * changed in a way that keeps its size and its first and last element.
+   */
+  public static void invalidate() {
+    generation.incrementAndGet();
+    LruCache<Key, Set<?>> current = cache;
+    if (current != null) {
+      current.invalidateAll();
+    }
+  }
+
+  /** The current cache generation, which is part of every key. */
+  public static long getGeneration() {
+    return generation.get();
+  }
+
+  /** Number of cache hits since the cache was enabled. */
+  public static long getHitCount() {
+    LruCache<Key, Set<?>> current = cache;
+    return current != null ? current.getHitCount() : 0;
+  }
+
+  /** Number of cache misses since the cache was enabled. */
+  public static long getMissCount() {
+    LruCache<Key, Set<?>> current = cache;
+    return current != null ? current.getMissCount() : 0;
+  }
+
+  /** Number of entries evicted because the cache was full. */
+  public static long getEvictionCount() {
+    LruCache<Key, Set<?>> current = cache;
+    return current != null ? current.getEvictionCount() : 0;
+  }
+
+  /** Current number of cached query results. */
+  public static int size() {
+    LruCache<Key, Set<?>> current = cache;
+    return current != null ? current.size() : 0;
+  }
+
+  /**
+   * Returns the cached result of the query or runs and caches it. If the cache is disabled, the
+   * query simply runs.
+   *
+   * @param dataset the queried collection
+   * @param queryType the name of the query, e.g. the tool method name
+   * @param codes the queried codes
+   * @param filters further arguments of the query that influence the result; may be {@code null}
+   * @param query computes the result
+   * @return a modifiable copy of the (cached) result
+   */
+  @SuppressWarnings("unchecked")
+  public static <T> Set<T> getOrCompute(
+      Collection<?> dataset,
+      String queryType,
+      Collection<String> codes,
+      Object filters,
+      Supplier<Set<T>> query) {
+    LruCache<Key, Set<?>> current = cache;
+    if (current == null || dataset == null || codes == null) {
+      return query.get();
+    }
+    Key key = new Key(dataset, generation.get(), queryType, new HashSet<>(codes), filters);
+    Set<T> result = (Set<T>) current.computeIfAbsent(key, k -> new HashSet<>(query.get()));
+    return new HashSet<>(result);
+  }
+
+  /**
+   * Cache key. The dataset is only weakly referenced, so cached entries don't keep large resource
+   * collections alive.
+   */
+  private static final class Key {
+
+    private final WeakReference<Collection<?>> dataset;
+    private final int datasetIdentity;
+    private final int size;
+    private final WeakReference<?> first;
+    private final WeakReference<?> last;
+    private final long generation;
+    private final String queryType;
+    private final Set<String> codes;
+    private final Object filters;
+    private final int hash;
+
+    private Key(
+        Collection<?> dataset,
+        long generation,
+        String queryType,
+        Set<String> codes,
+        Object filters) {
+      this.dataset = new WeakReference<>(dataset);
+      this.datasetIdentity = System.identityHashCode(dataset);
+      this.size = dataset.size();
+      if (dataset instanceof List<?> list && !list.isEmpty()) {
+        this.first = new WeakReference<>(list.get(0));
+        this.last = new WeakReference<>(list.get(list.size() - 1));
+      } else {
+        this.first = null;
+        this.last = null;
+      }
+      this.generation = generation;
+      this.queryType = queryType;
+      this.codes = codes;
+      this.filters = filters;
+      this.hash = Objects.hash(datasetIdentity, size, generation, queryType, codes, filters);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (this == o) {
+        return true;
+      }
+      if (!(o instanceof Key other)) {
+        return false;
+      }
+      Collection<?> referent = dataset.get();
+      return referent != null
+          && referent == other.dataset.get()
+          && size == other.size
+          && generation == other.generation
+          && sameReferent(first, other.first)
+          && sameReferent(last, other.last)
+          && Objects.equals(queryType, other.queryType)
+          && codes.equals(other.codes)
+          && Objects.equals(filters, other.filters);
+    }
+
+    @Override
+    public int hashCode() {
+      return hash;
+    }
+
+    private static boolean sameReferent(WeakReference<?> a, WeakReference<?> b) {
+      if (a == null || b == null) {
+        return a == b;
+      }
+      return a.get() == b.get();
+    }
+  }
+}
@@ -96,9 +96,7 @@ public class ResourceConverter {
     MiiContactHealthFacility res = new MiiContactHealthFacility();
 
     if (check) {
-      // e.getClass_() and e.getPeriod() got an auto create mechanism by default if class is empty.
-      ExceptionTools.checkNull("Period", e.getPeriod().getStart());
-      ExceptionTools.checkNull("Class", e.getClass_().getCode());
+      MandatoryFieldChecks.requireAll(MandatoryFieldChecks.ENCOUNTER, e);
     }
 
     res.setIdentifier(e.getIdentifier());
@@ -147,10 +145,7 @@ public class ResourceConverter {
     MiiPatient res = new MiiPatient();
 
     if (check) {
-      ExceptionTools.checkNullOrEmpty("identifier", p.getIdentifier());
-      ExceptionTools.checkNullOrEmpty("name", p.getName());
-      ExceptionTools.checkNull("gender", p.getGender());
-      ExceptionTools.checkNull("birthdate", p.getBirthDate());
+      MandatoryFieldChecks.requireAll(MandatoryFieldChecks.PATIENT, p);
       ExceptionTools.checkNull("address", p.getAddress());
     }
 
@@ -182,7 +177,7 @@ public class ResourceConverter {
 
     if (check) {
       // CHECK Patient = Subject
-      ExceptionTools.checkNull("patient", o.getSubject().getReference());
+      MandatoryFieldChecks.requireAll(MandatoryFieldChecks.OBSERVATION, o);
       ExceptionTools.checkNullOrEmpty(
           "patient.Identifier", o.getSubject().getIdentifier().toString());
     }
@@ -226,10 +221,7 @@ public class ResourceConverter {
 
     if (check) {
       // CHECK Ref = ID
-      ExceptionTools.checkNullOrEmpty("patientId", p.getSubject().getReference());
-      ExceptionTools.checkNull("status", p.getStatus());
-      ExceptionTools.checkNull("code", p.getCode());
-      ExceptionTools.checkNull("performed", p.getPerformed());
+      MandatoryFieldChecks.requireAll(MandatoryFieldChecks.PROCEDURE, p);
     }
 
     res.setIdentifier(p.getIdentifier());
@@ -279,7 +271,7 @@ public class ResourceConverter {
       // ExceptionTools.checkNullOrEmpty("patientId", c.getSubject().getReference());
       ExceptionTools.checkNull("clinicalStatus", c.getClinicalStatus());
       ExceptionTools.checkNull("code", c.getCode());
-      ExceptionTools.checkNull("recordedDate", c.getRecordedDate());
+      MandatoryFieldChecks.requireAll(MandatoryFieldChecks.CONDITION, c);
     }
 
     res.setIdentifier(c.getIdentifier());
@@ -314,7 +306,7 @@ public class ResourceConverter {
     MiiLocation res = new MiiLocation();
 
     if (check) {
-      ExceptionTools.checkNullOrEmpty("Identifier", l.getIdentifier());
+      MandatoryFieldChecks.requireAll(MandatoryFieldChecks.LOCATION, l);
       ExceptionTools.checkNull("PhysicalType", l.getPhysicalType());
     }
 
@@ -382,7 +374,7 @@ public class ResourceConverter {
     if (check) {
       //   ExceptionTools.checkNullOrEmpty("Identifier", consent.getIdentifier());
       ExceptionTools.checkNull("patient", consent.getPatient());
-      ExceptionTools.checkNullOrEmpty("policy", consent.getPolicy());
+      MandatoryFieldChecks.requireAll(MandatoryFieldChecks.CONSENT, consent);
     }
     res.setPatient(consent.getPatient());
     res.setId(consent.getId());
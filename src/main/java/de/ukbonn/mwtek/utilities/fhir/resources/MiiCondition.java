@@ -17,6 +17,8 @@
  */
 package de.ukbonn.mwtek.utilities.fhir.resources;
 
+import static de.ukbonn.mwtek.utilities.enums.TerminologySystems.ICD;
+
 import ca.uhn.fhir.model.api.annotation.ResourceDef;
 import de.ukbonn.mwtek.utilities.Compare;
 import de.ukbonn.mwtek.utilities.ExceptionTools;
@@ -24,14 +26,18 @@ import de.ukbonn.mwtek.utilities.fhir.interfaces.CaseIdentifierValueProvider;
 import de.ukbonn.mwtek.utilities.fhir.interfaces.MiiContactHealthFacilityProvider;
 import de.ukbonn.mwtek.utilities.fhir.interfaces.MiiPatientProvider;
 import de.ukbonn.mwtek.utilities.fhir.interfaces.PatientIdentifierValueProvider;
+import de.ukbonn.mwtek.utilities.fhir.misc.FhirConditionTools;
 import de.ukbonn.mwtek.utilities.fhir.misc.FhirTools;
 import de.ukbonn.mwtek.utilities.fhir.misc.FieldAlreadyInitializedException;
 import de.ukbonn.mwtek.utilities.fhir.misc.MandatoryFieldNotInitializedException;
 import de.ukbonn.mwtek.utilities.fhir.misc.OptionalFieldNotAvailableException;
 import de.ukbonn.mwtek.utilities.fhir.misc.StaticValueProvider;
+import de.ukbonn.mwtek.utilities.generic.time.SortedTimeTools;
+import java.util.Collection;
 import java.util.Date;
 import lombok.extern.slf4j.Slf4j;
 import org.hl7.fhir.r4.model.CodeableConcept;
+import org.hl7.fhir.r4.model.Coding;
 import org.hl7.fhir.r4.model.Condition;
 import org.hl7.fhir.r4.model.Reference;
 
@@ -268,4 +274,75 @@ public class MiiCondition extends Condition
   public boolean isMiiContactHealthFacilityInitialized() {
     return (this.encounter != null);
   }
+
+  /**
+   * @return The code of the first ICD coding or <code>null</code> if there is none.
+   */
+  public String getPrimaryIcdCode() {
+    Coding coding = getFirstIcdCoding();
+    return coding != null ? coding.getCode() : null;
+  }
+
+  /**
+   * @return The diagnosis reliability of the first ICD coding or <code>null</code> if there is
+   *     none.
+   */
+  public String getPrimaryDiagnosisReliability() {
+    Coding coding = getFirstIcdCoding();
+    return coding != null ? FhirConditionTools.getDiagnosisReliability(coding) : null;
+  }
+
+  /**
+   * Checks whether any ICD coding of the condition uses one of the given codes.
+   *
+   * @param icdCodes The ICD codes to look for.
+   */
+  public boolean hasIcdCode(Collection<String> icdCodes) {
+    if (this.hasCode()) {
+      for (Coding coding : this.getCode().getCoding()) {
+        if (ICD.equals(coding.getSystem()) && icdCodes.contains(coding.getCode())) {
+          return true;
+        }
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Checks whether any ICD coding of the condition uses one of the given codes and carries the
+   * given diagnosis reliability ("Diagnosesicherheit").
+   *
+   * @param icdCodes The ICD codes to look for.
+   * @param reliability The reliability code (e.g. {@code "G"}).
+   */
+  public boolean hasIcdCodeWithReliability(Collection<String> icdCodes, String reliability) {
+    if (this.hasCode()) {
+      for (Coding coding : this.getCode().getCoding()) {
+        if (ICD.equals(coding.getSystem())
+            && icdCodes.contains(coding.getCode())
+            && reliability.equals(FhirConditionTools.getDiagnosisReliability(coding))) {
+          return true;
+        }
+      }
+    }
+    return false;
+  }
+
+  /**
+   * @return The recorded date as epoch millis or {@link SortedTimeTools#NO_TIME} if it is unset.
+   */
+  public long getRecordedDateMillis() {
+    return this.hasRecordedDate() ? this.getRecordedDate().getTime() : SortedTimeTools.NO_TIME;
+  }
+
+  private Coding getFirstIcdCoding() {
+    if (this.hasCode()) {
+      for (Coding coding : this.getCode().getCoding()) {
+        if (ICD.equals(coding.getSystem())) {
+          return coding;
+        }
+      }
+    }
+    return null;
+  }
 }
@@ -28,6 +28,8 @@ import static de.ukbonn.mwtek.utilities.fhir.mapping.kdscase.valuesets.KdsEncoun
 import static de.ukbonn.mwtek.utilities.fhir.mapping.kdscase.valuesets.KdsEncounterFixedValues.CASETYPE_POSTSTATIONARY;
 import static de.ukbonn.mwtek.utilities.fhir.mapping.kdscase.valuesets.KdsEncounterFixedValues.CASETYPE_PRESTATIONARY;
 import static de.ukbonn.mwtek.utilities.fhir.mapping.kdscase.valuesets.KdsEncounterFixedValues.DEATH_CODE;
+import static de.ukbonn.mwtek.utilities.fhir.mapping.kdscase.valuesets.KdsEncounterFixedValues.DIAGNOSIS_ROLE_DISCHARGE_CODE;
+import static de.ukbonn.mwtek.utilities.fhir.mapping.kdscase.valuesets.KdsEncounterFixedValues.DIAGNOSIS_ROLE_SYSTEM;
 import static de.ukbonn.mwtek.utilities.fhir.mapping.kdscase.valuesets.KdsEncounterFixedValues.DISCHARGE_DISPOSITION_EXT_URL;
 import static de.ukbonn.mwtek.utilities.fhir.mapping.kdscase.valuesets.KdsEncounterFixedValues.DISCHARGE_DISPOSITION_FIRST_AND_SECOND_POS_EXT_URL;
 import static de.ukbonn.mwtek.utilities.fhir.mapping.kdscase.valuesets.KdsEncounterFixedValues.DISCHARGE_DISPOSITION_FIRST_AND_SECOND_POS_SYSTEM;
@@ -44,6 +46,7 @@ import de.ukbonn.mwtek.utilities.enums.EncounterContactLevel;
 import de.ukbonn.mwtek.utilities.fhir.interfaces.CaseIdentifierValueProvider;
 import de.ukbonn.mwtek.utilities.fhir.interfaces.MiiPatientProvider;
 import de.ukbonn.mwtek.utilities.fhir.interfaces.PatientIdentifierValueProvider;
+import de.ukbonn.mwtek.utilities.fhir.mapping.kdscase.valuesets.KdsEncounterFixedValues;
 import de.ukbonn.mwtek.utilities.fhir.misc.FhirTools;
 import de.ukbonn.mwtek.utilities.fhir.misc.FieldAlreadyInitializedException;
 import de.ukbonn.mwtek.utilities.fhir.misc.MandatoryFieldNotInitializedException;
@@ -334,11 +337,40 @@ public class MiiEncounter extends Encounter
     }
 
     // Check if any type in the encounter matches the specified contact level code.
-    return encounter.getType().stream()
-        .flatMap(x -> x.getCoding().stream())
-        .filter(Coding::hasSystem)
-        .filter(x -> x.getSystem().equals(EncounterContactLevel.SYSTEM))
-        .anyMatch(contactLevelType -> contactLevelType.getCode().equals(contactLevelCode));
+    for (CodeableConcept type : encounter.getType()) {
+      for (Coding coding : type.getCoding()) {
+        if (coding.hasSystem()
+            && coding.getSystem().equals(EncounterContactLevel.SYSTEM)
+            && coding.getCode().equals(contactLevelCode)) {
+          return true;
+        }
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Same as comparing {@link #getContactType(List)} of the encounter type with the given value, but
+   * without building the concatenated string.
+   */
+  private boolean isContactTypeEqualTo(String contactType) {
+    if (!this.hasType()) {
+      return false;
+    }
+    int offset = 0;
+    for (CodeableConcept type : this.getType()) {
+      for (Coding coding : type.getCoding()) {
+        if (coding.hasSystem() && coding.getSystem().equals(CASETYPE_CONTACT_ART_SYSTEM)) {
+          // StringBuilder.append(null) appends "null"
+          String code = String.valueOf(coding.getCode());
+          if (!contactType.startsWith(code, offset)) {
+            return false;
+          }
+          offset += code.length();
+        }
+      }
+    }
+    return offset == contactType.length();
   }
 
   /**
@@ -347,8 +379,7 @@ public class MiiEncounter extends Encounter
    * @return <code>True</code> if the case type equals "prestationary".
    */
   public boolean isCaseTypePreStationary() {
-    String contactType = getContactType(this.getType());
-    return contactType != null && contactType.equals(CASETYPE_PRESTATIONARY);
+    return isContactTypeEqualTo(CASETYPE_PRESTATIONARY);
   }
 
   /**
@@ -357,8 +388,7 @@ public class MiiEncounter extends Encounter
    * @return <code>True</code> if the case type equals "intensivstationaer".
    */
   public boolean isCaseTypeIntensiveStationary() {
-    String contactType = getContactType(this.getType());
-    return contactType != null && contactType.equals(CASETYPE_INTENSIVESTATIONARY);
+    return isContactTypeEqualTo(CASETYPE_INTENSIVESTATIONARY);
   }
 
   /**
@@ -367,8 +397,7 @@ public class MiiEncounter extends Encounter
    * @return <code>True</code> if the case type equals "prestationary".
    */
   public boolean isCaseTypePostStationary() {
-    String contactType = getContactType(this.getType());
-    return contactType != null && contactType.equals(CASETYPE_POSTSTATIONARY);
+    return isContactTypeEqualTo(CASETYPE_POSTSTATIONARY);
   }
 
   /**
@@ -422,15 +451,20 @@ public class MiiEncounter extends Encounter
    *     "teilstationär"
    */
   public boolean isSemiStationary() {
-    return !this.getType().stream()
-        .filter(
-            x ->
-                x.hasCoding(CASETYPE_CONTACT_ART_SYSTEM, CASETYPE_PARTSTATIONARY)
-                    || x.hasCoding(CASETYPE_CONTACT_ART_SYSTEM, CASETYPE_PARTSTATIONARY_DAY_CLINIC)
-                    || x.hasCoding(
-                        CASETYPE_CONTACT_ART_SYSTEM, CASETYPE_PARTSTATIONARY_NIGHT_CLINIC))
-        .toList()
-        .isEmpty();
+    if (this.hasType()) {
+      for (CodeableConcept type : this.getType()) {
+        for (Coding coding : type.getCoding()) {
+          if (coding.hasSystem()
+              && coding.getSystem().equals(CASETYPE_CONTACT_ART_SYSTEM)
+              && (CASETYPE_PARTSTATIONARY.equals(coding.getCode())
+                  || CASETYPE_PARTSTATIONARY_DAY_CLINIC.equals(coding.getCode())
+                  || CASETYPE_PARTSTATIONARY_NIGHT_CLINIC.equals(coding.getCode()))) {
+            return true;
+          }
+        }
+      }
+    }
+    return false;
   }
 
   /**
@@ -485,10 +519,13 @@ public class MiiEncounter extends Encounter
    *     ("07") was found
    */
   public boolean isPatientDeceased() {
+    // hasHospitalization() avoids the auto creation of an empty component
+    if (!this.hasHospitalization()) {
+      return false;
+    }
     Encounter.EncounterHospitalizationComponent hospComp = this.getHospitalization();
     // check if encounter resource got a discharge disposition with a certain extension url
-    if (hospComp != null
-        && hospComp.hasDischargeDisposition()
+    if (hospComp.hasDischargeDisposition()
         && hospComp.getDischargeDisposition().hasExtension(DISCHARGE_DISPOSITION_EXT_URL)) {
       Extension extDischargeDisp =
           hospComp.getDischargeDisposition().getExtensionByUrl(DISCHARGE_DISPOSITION_EXT_URL);
@@ -523,8 +560,9 @@ public class MiiEncounter extends Encounter
   /**
    * Returns a list of reference IDs for discharge diagnoses from the patient's diagnosis list.
    *
-   * <p>A discharge diagnosis is identified by a {@code use} coding with the system {@code
-   * "http://terminology.hl7.org/CodeSystem/diagnosis-role"} and the code {@code "DD"}.
+   * <p>A discharge diagnosis is identified by a {@code use} coding with the system {@link
+   * KdsEncounterFixedValues#DIAGNOSIS_ROLE_SYSTEM} and the code {@link
+   * KdsEncounterFixedValues#DIAGNOSIS_ROLE_DISCHARGE_CODE} ("DD").
    *
    * @return a list of reference strings to the condition resources marked as discharge diagnoses;
    *     returns an empty list if no such diagnoses are found or if no diagnosis is present.
@@ -534,16 +572,13 @@ public class MiiEncounter extends Encounter
       return Collections.emptyList();
     }
 
-    final String DIAGNOSIS_ROLE_SYSTEM = "http://terminology.hl7.org/CodeSystem/diagnosis-role";
-    final String DISCHARGE_DIAGNOSIS_CODE = "DD";
-
     return this.getDiagnosis().stream()
         .filter(
             dc ->
                 dc.hasUse()
                     && dc.hasCondition()
                     && !dc.getCondition().isEmpty()
-                    && dc.getUse().hasCoding(DIAGNOSIS_ROLE_SYSTEM, DISCHARGE_DIAGNOSIS_CODE))
+                    && dc.getUse().hasCoding(DIAGNOSIS_ROLE_SYSTEM, DIAGNOSIS_ROLE_DISCHARGE_CODE))
         .map(dc -> extractReferenceId(dc.getCondition()))
         .collect(Collectors.toList());
   }
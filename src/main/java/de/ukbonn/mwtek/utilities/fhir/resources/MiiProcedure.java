@@ -17,6 +17,7 @@
  */
 package de.ukbonn.mwtek.utilities.fhir.resources;
 
+import static de.ukbonn.mwtek.utilities.enums.TerminologySystems.OPS;
 import static de.ukbonn.mwtek.utilities.enums.TerminologySystems.SNOMED;
 import static de.ukbonn.mwtek.utilities.fhir.misc.FhirCodingTools.getCodeBySystem;
 import static de.ukbonn.mwtek.utilities.fhir.misc.FhirCodingTools.getCodeOfFirstCoding;
@@ -29,6 +30,7 @@ import de.ukbonn.mwtek.utilities.fhir.interfaces.CaseIdentifierValueProvider;
 import de.ukbonn.mwtek.utilities.fhir.interfaces.MiiContactHealthFacilityProvider;
 import de.ukbonn.mwtek.utilities.fhir.interfaces.MiiPatientProvider;
 import de.ukbonn.mwtek.utilities.fhir.interfaces.PatientIdentifierValueProvider;
+import de.ukbonn.mwtek.utilities.fhir.misc.FhirProcedureTools;
 import de.ukbonn.mwtek.utilities.fhir.misc.FhirTools;
 import de.ukbonn.mwtek.utilities.fhir.misc.FieldAlreadyInitializedException;
 import de.ukbonn.mwtek.utilities.fhir.misc.MandatoryFieldNotInitializedException;
@@ -301,6 +303,37 @@ public class MiiProcedure extends Procedure
     return false;
   }
 
+  /**
+   * @return The code of the first coding (independent of its system) or <code>null</code>.
+   */
+  public String getFirstCodingCode() {
+    return this.hasCode() && this.getCode().hasCoding()
+        ? getCodeOfFirstCoding(this.getCode().getCoding())
+        : null;
+  }
+
+  /**
+   * @return The code of the first {@link TerminologySystems#SNOMED} coding or <code>null</code>.
+   */
+  public String getSnomedCode() {
+    return this.hasCode() ? getCodeBySystem(this.getCode().getCoding(), SNOMED) : null;
+  }
+
+  /**
+   * @return The code of the first {@link TerminologySystems#OPS} coding or <code>null</code>.
+   */
+  public String getOpsCode() {
+    return this.hasCode() ? getCodeBySystem(this.getCode().getCoding(), OPS) : null;
+  }
+
+  /**
+   * @return The start of the performed element as epoch millis, see {@link
+   *     FhirProcedureTools#getPerformedStart(Procedure)}.
+   */
+  public long getPerformedStartMillis() {
+    return FhirProcedureTools.getPerformedStart(this);
+  }
+
   public boolean isInProgress() {
     return this.hasStatus() && this.getStatus() == ProcedureStatus.INPROGRESS;
   }
@@ -0,0 +1,171 @@
+/*
+ * Copyright (C) 2021 University Hospital Bonn - All Rights Reserved You may use, distribute and
+ * modify this code under the GPL 3 license. THERE IS NO WARRANTY FOR THE PROGRAM, TO THE EXTENT
+ * PERMITTED BY APPLICABLE LAW. EXCEPT WHEN OTHERWISE STATED IN WRITING THE COPYRIGHT HOLDERS AND/OR
+ * OTHER PARTIES PROVIDE THE PROGRAM “AS IS” WITHOUT WARRANTY OF ANY KIND, EITHER EXPRESSED OR
+ * IMPLIED, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE. THE ENTIRE RISK AS TO THE QUALITY AND PERFORMANCE OF THE PROGRAM IS WITH
+ * YOU. SHOULD THE PROGRAM PROVE DEFECTIVE, YOU ASSUME THE COST OF ALL NECESSARY SERVICING, REPAIR
+ * OR CORRECTION. IN NO EVENT UNLESS REQUIRED BY APPLICABLE LAW OR AGREED TO IN WRITING WILL ANY
+ * COPYRIGHT HOLDER, OR ANY OTHER PARTY WHO MODIFIES AND/OR CONVEYS THE PROGRAM AS PERMITTED ABOVE,
+ * BE LIABLE TO YOU FOR DAMAGES, INCLUDING ANY GENERAL, SPECIAL, INCIDENTAL OR CONSEQUENTIAL DAMAGES
+ * ARISING OUT OF THE USE OR INABILITY TO USE THE PROGRAM (INCLUDING BUT NOT LIMITED TO LOSS OF DATA
+ * OR DATA BEING RENDERED INACCURATE OR LOSSES SUSTAINED BY YOU OR THIRD PARTIES OR A FAILURE OF THE
+ * PROGRAM TO OPERATE WITH ANY OTHER PROGRAMS), EVEN IF SUCH HOLDER OR OTHER PARTY HAS BEEN ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGES. You should have received a copy of the GPL 3 license with *
+ * this file. If not, visit http://www.gnu.de/documents/gpl-3.0.en.html
+ */
+
+package de.ukbonn.mwtek.utilities.generic.collections;
+
+import java.util.BitSet;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Fixed size bitset that can be modified by several threads at the same time.
+ *
+ * <p>The bits are stored in an {@link AtomicLongArray}; setting and clearing a bit is a
+ * compare-and-set loop on its word, so concurrent updates of different bits in the same word don't
+ * get lost. Reads of single bits are always up to date, aggregate reads like {@link #cardinality()}
+ * are not atomic snapshots while other threads keep writing.
+ */
+public class ConcurrentBitSet {
+
+  private final AtomicLongArray words;
+  private final int size;
+
+  /**
+   * @param size the number of bits; must not be negative
+   */
+  public ConcurrentBitSet(int size) {
+    if (size < 0) {
+      throw new IllegalArgumentException("size must not be negative: " + size);
+    }
+    this.size = size;
+    this.words = new AtomicLongArray((size + 63) >>> 6);
+  }
+
+  /** The number of bits of this set. */
+  public int size() {
+    return size;
+  }
+
+  /**
+   * Sets the given bit.
+   *
+   * @param index the bit index
+   * @return {@code true} if the bit was not set before
+   * @throws IndexOutOfBoundsException if the index is outside of {@code [0, size)}
+   */
+  public boolean set(int index) {
+    checkIndex(index);
+    int word = index >>> 6;
+    long mask = 1L << index;
+    long current;
+    do {
+      current = words.get(word);
+      if ((current & mask) != 0) {
+        return false;
+      }
+    } while (!words.compareAndSet(word, current, current | mask));
+    return true;
+  }
+
+  /**
+   * Clears the given bit.
+   *
+   * @param index the bit index
+   * @return {@code true} if the bit was set before
+   * @throws IndexOutOfBoundsException if the index is outside of {@code [0, size)}
+   */
+  public boolean clear(int index) {
+    checkIndex(index);
+    int word = index >>> 6;
+    long mask = 1L << index;
+    long current;
+    do {
+      current = words.get(word);
+      if ((current & mask) == 0) {
+        return false;
+      }
+    } while (!words.compareAndSet(word, current, current & ~mask));
+    return true;
+  }
+
+  /**
+   * @param index the bit index
+   * @return whether the bit is set
+   * @throws IndexOutOfBoundsException if the index is outside of {@code [0, size)}
+   */
+  public boolean get(int index) {
+    checkIndex(index);
+    return (words.get(index >>> 6) & (1L << index)) != 0;
+  }
+
+  /** The number of set bits. */
+  public int cardinality() {
+    int count = 0;
+    for (int i = 0; i < words.length(); i++) {
+      count += Long.bitCount(words.get(i));
+    }
+    return count;
+  }
+
+  /** Whether no bit is set. */
+  public boolean isEmpty() {
+    for (int i = 0; i < words.length(); i++) {
+      if (words.get(i) != 0) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * @param fromIndex the first bit index to check
+   * @return the index of the first set bit at or after {@code fromIndex} or -1 if there is none
+   */
+  public int nextSetBit(int fromIndex) {
+    if (fromIndex < 0) {
+      throw new IndexOutOfBoundsException("fromIndex < 0: " + fromIndex);
+    }
+    int word = fromIndex >>> 6;
+    if (word >= words.length()) {
+      return -1;
+    }
+    long bits = words.get(word) & (-1L << fromIndex);
+    while (true) {
+      if (bits != 0) {
+        return (word << 6) + Long.numberOfTrailingZeros(bits);
+      }
+      if (++word == words.length()) {
+        return -1;
+      }
+      bits = words.get(word);
+    }
+  }
+
+  /** Clears all bits. */
+  public void clear() {
+    for (int i = 0; i < words.length(); i++) {
+      words.set(i, 0);
+    }
+  }
+
+  /**
+   * @return a copy of the current bits as a (not thread-safe) {@link BitSet}
+   */
+  public BitSet toBitSet() {
+    long[] copy = new long[words.length()];
+    for (int i = 0; i < copy.length; i++) {
+      copy[i] = words.get(i);
+    }
+    return BitSet.valueOf(copy);
+  }
+
+  private void checkIndex(int index) {
+    if (index < 0 || index >= size) {
+      throw new IndexOutOfBoundsException("Index " + index + " out of bounds for size " + size);
+    }
+  }
+}
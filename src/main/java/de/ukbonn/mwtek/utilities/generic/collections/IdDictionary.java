@@ -0,0 +1,79 @@
+/*
+ * Copyright (C) 2021 University Hospital Bonn - All Rights Reserved You may use, distribute and
+ * modify this code under the GPL 3 license. THERE IS NO WARRANTY FOR THE PROGRAM, TO THE EXTENT
+ * PERMITTED BY APPLICABLE LAW. EXCEPT WHEN OTHERWISE STATED IN WRITING THE COPYRIGHT HOLDERS AND/OR
+ * OTHER PARTIES PROVIDE THE PROGRAM “AS IS” WITHOUT WARRANTY OF ANY KIND, EITHER EXPRESSED OR
+ * IMPLIED, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE. THE ENTIRE RISK AS TO THE QUALITY AND PERFORMANCE OF THE PROGRAM IS WITH
+ * YOU. SHOULD THE PROGRAM PROVE DEFECTIVE, YOU ASSUME THE COST OF ALL NECESSARY SERVICING, REPAIR
+ * OR CORRECTION. IN NO EVENT UNLESS REQUIRED BY APPLICABLE LAW OR AGREED TO IN WRITING WILL ANY
+ * COPYRIGHT HOLDER, OR ANY OTHER PARTY WHO MODIFIES AND/OR CONVEYS THE PROGRAM AS PERMITTED ABOVE,
+ * BE LIABLE TO YOU FOR DAMAGES, INCLUDING ANY GENERAL, SPECIAL, INCIDENTAL OR CONSEQUENTIAL DAMAGES
+ * ARISING OUT OF THE USE OR INABILITY TO USE THE PROGRAM (INCLUDING BUT NOT LIMITED TO LOSS OF DATA
+ * OR DATA BEING RENDERED INACCURATE OR LOSSES SUSTAINED BY YOU OR THIRD PARTIES OR A FAILURE OF THE
+ * PROGRAM TO OPERATE WITH ANY OTHER PROGRAMS), EVEN IF SUCH HOLDER OR OTHER PARTY HAS BEEN ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGES. You should have received a copy of the GPL 3 license with *
+ * this file. If not, visit http://www.gnu.de/documents/gpl-3.0.en.html
+ */
+package de.ukbonn.mwtek.utilities.generic.collections;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Thread-safe dictionary that assigns a dense {@code int} ordinal to every distinct string id (e.g.
+ * case or patient ids) of a dataset.
+ *
+ * <p>Ordinals are handed out in the order the ids are first seen, starting at {@code 0}, and never
+ * change. They are the bit positions of the {@link IdSet}s created with this dictionary, so one
+ * dictionary should be shared by all id sets that are combined with each other.
+ */
+public class IdDictionary {
+
+  private final ConcurrentHashMap<String, Integer> ordinals = new ConcurrentHashMap<>();
+  private final List<String> ids = new ArrayList<>();
+
+  /**
+   * Returns the ordinal of the given id and registers it if it is unknown yet.
+   *
+   * @param id the id; must not be {@code null}
+   * @return the ordinal of the id
+   */
+  public int intern(String id) {
+    Integer ordinal = ordinals.get(id);
+    return ordinal != null ? ordinal : ordinals.computeIfAbsent(id, this::register);
+  }
+
+  /**
+   * Returns the ordinal of the given id without registering it.
+   *
+   * @param id the id; may be {@code null}
+   * @return the ordinal or {@code -1} if the id is unknown
+   */
+  public int getOrdinal(String id) {
+    Integer ordinal = id != null ? ordinals.get(id) : null;
+    return ordinal != null ? ordinal : -1;
+  }
+
+  /**
+   * Returns the id that belongs to the given ordinal.
+   *
+   * @param ordinal an ordinal returned by {@link #intern(String)}
+   * @return the id
+   * @throws IndexOutOfBoundsException if the ordinal was never handed out
+   */
+  public synchronized String getId(int ordinal) {
+    return ids.get(ordinal);
+  }
+
+  /** Number of registered ids. */
+  public synchronized int size() {
+    return ids.size();
+  }
+
+  private synchronized Integer register(String id) {
+    ids.add(id);
+    return ids.size() - 1;
+  }
+}
@@ -0,0 +1,194 @@
+/*
+ * Copyright (C) 2021 University Hospital Bonn - All Rights Reserved You may use, distribute and
+ * modify this code under the GPL 3 license. THERE IS NO WARRANTY FOR THE PROGRAM, TO THE EXTENT
+ * PERMITTED BY APPLICABLE LAW. EXCEPT WHEN OTHERWISE STATED IN WRITING THE COPYRIGHT HOLDERS AND/OR
+ * OTHER PARTIES PROVIDE THE PROGRAM “AS IS” WITHOUT WARRANTY OF ANY KIND, EITHER EXPRESSED OR
+ * IMPLIED, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE. THE ENTIRE RISK AS TO THE QUALITY AND PERFORMANCE OF THE PROGRAM IS WITH
+ * YOU. SHOULD THE PROGRAM PROVE DEFECTIVE, YOU ASSUME THE COST OF ALL NECESSARY SERVICING, REPAIR
+ * OR CORRECTION. IN NO EVENT UNLESS REQUIRED BY APPLICABLE LAW OR AGREED TO IN WRITING WILL ANY
+ * COPYRIGHT HOLDER, OR ANY OTHER PARTY WHO MODIFIES AND/OR CONVEYS THE PROGRAM AS PERMITTED ABOVE,
+ * BE LIABLE TO YOU FOR DAMAGES, INCLUDING ANY GENERAL, SPECIAL, INCIDENTAL OR CONSEQUENTIAL DAMAGES
+ * ARISING OUT OF THE USE OR INABILITY TO USE THE PROGRAM (INCLUDING BUT NOT LIMITED TO LOSS OF DATA
+ * OR DATA BEING RENDERED INACCURATE OR LOSSES SUSTAINED BY YOU OR THIRD PARTIES OR A FAILURE OF THE
+ * PROGRAM TO OPERATE WITH ANY OTHER PROGRAMS), EVEN IF SUCH HOLDER OR OTHER PARTY HAS BEEN ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGES. You should have received a copy of the GPL 3 license with *
+ * this file. If not, visit http://www.gnu.de/documents/gpl-3.0.en.html
+ */
+package de.ukbonn.mwtek.utilities.generic.collections;
+
+import de.ukbonn.mwtek.utilities.ExceptionTools;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.stream.Stream;
+
+/**
+ * Compact set of string ids (e.g. case or patient ids) as a bitmap over the ordinals of an {@link
+ * IdDictionary}.
+ *
+ * <p>Every id costs one bit instead of a hash set entry, and union, intersection and difference are
+ * word-wise bit operations. This makes cohort building (e.g. "cases with diagnosis A and procedure
+ * B but not C") cheap even for millions of ids. Only sets that share the same dictionary can be
+ * combined.
+ *
+ * <p>The set operations return new instances. An {@code IdSet} is not thread-safe while ids are
+ * being added.
+ */
+public class IdSet {
+
+  private final IdDictionary dictionary;
+  private final BitSet bits;
+
+  /**
+   * Creates an empty set.
+   *
+   * @param dictionary the dictionary that maps the ids to bit positions; must not be {@code null}
+   */
+  public IdSet(IdDictionary dictionary) {
+    this(ExceptionTools.checkNull("dictionary", dictionary), new BitSet());
+  }
+
+  private IdSet(IdDictionary dictionary, BitSet bits) {
+    this.dictionary = dictionary;
+    this.bits = bits;
+  }
+
+  /**
+   * Creates a set with the given ids.
+   *
+   * @param dictionary the dictionary that maps the ids to bit positions; must not be {@code null}
+   * @param ids the ids; {@code null} entries are skipped
+   * @return the new set
+   */
+  public static IdSet of(IdDictionary dictionary, Collection<String> ids) {
+    IdSet result = new IdSet(dictionary);
+    if (ids != null) {
+      ids.forEach(result::add);
+    }
+    return result;
+  }
+
+  /**
+   * Adds an id to the set.
+   *
+   * @param id the id; {@code null} is ignored
+   * @return this set
+   */
+  public IdSet add(String id) {
+    if (id != null) {
+      bits.set(dictionary.intern(id));
+    }
+    return this;
+  }
+
+  /**
+   * Checks whether the id is part of the set.
+   *
+   * @param id the id; may be {@code null}
+   * @return {@code true} if the set contains the id
+   */
+  public boolean contains(String id) {
+    int ordinal = dictionary.getOrdinal(id);
+    return ordinal >= 0 && bits.get(ordinal);
+  }
+
+  /** Number of ids in the set. */
+  public int cardinality() {
+    return bits.cardinality();
+  }
+
+  /** Whether the set contains no id. */
+  public boolean isEmpty() {
+    return bits.isEmpty();
+  }
+
+  /** The dictionary that backs this set. */
+  public IdDictionary getDictionary() {
+    return dictionary;
+  }
+
+  /**
+   * Returns a new set with all ids that are in this set or in the other one.
+   *
+   * @param other a set with the same dictionary
+   * @return the union of both sets
+   */
+  public IdSet union(IdSet other) {
+    BitSet result = (BitSet) bits.clone();
+    result.or(checkCompatible(other).bits);
+    return new IdSet(dictionary, result);
+  }
+
+  /**
+   * Returns a new set with all ids that are in this set and in the other one.
+   *
+   * @param other a set with the same dictionary
+   * @return the intersection of both sets
+   */
+  public IdSet intersect(IdSet other) {
+    BitSet result = (BitSet) bits.clone();
+    result.and(checkCompatible(other).bits);
+    return new IdSet(dictionary, result);
+  }
+
+  /**
+   * Returns a new set with all ids of this set that are not in the other one.
+   *
+   * @param other a set with the same dictionary
+   * @return the difference of both sets
+   */
+  public IdSet difference(IdSet other) {
+    BitSet result = (BitSet) bits.clone();
+    result.andNot(checkCompatible(other).bits);
+    return new IdSet(dictionary, result);
+  }
+
+  /**
+   * Counts the ids that are in this set and in the other one.
+   *
+   * @param other a set with the same dictionary
+   * @return the cardinality of the intersection
+   */
+  public int intersectionCardinality(IdSet other) {
+    BitSet result = (BitSet) bits.clone();
+    result.and(checkCompatible(other).bits);
+    return result.cardinality();
+  }
+
+  /** The ids of this set, in ordinal order. */
+  public Stream<String> stream() {
+    return bits.stream().mapToObj(dictionary::getId);
+  }
+
+  /** Copies the ids of this set into a regular {@link Set}. */
+  public Set<String> toSet() {
+    Set<String> result = new HashSet<>(cardinality() * 2);
+    bits.stream().forEach(ordinal -> result.add(dictionary.getId(ordinal)));
+    return result;
+  }
+
+  @Override
+  public boolean equals(Object o) {
+    return o instanceof IdSet other && dictionary == other.dictionary && bits.equals(other.bits);
+  }
+
+  @Override
+  public int hashCode() {
+    return bits.hashCode();
+  }
+
+  @Override
+  public String toString() {
+    return "IdSet{cardinality=" + cardinality() + "}";
+  }
+
+  private IdSet checkCompatible(IdSet other) {
+    ExceptionTools.checkNull("other", other);
+    if (other.dictionary != dictionary) {
+      throw new IllegalArgumentException("IdSets with different dictionaries can't be combined");
+    }
+    return other;
+  }
+}
@@ -0,0 +1,251 @@
+/*
+ * Copyright (C) 2021 University Hospital Bonn - All Rights Reserved You may use, distribute and
+ * modify this code under the GPL 3 license. THERE IS NO WARRANTY FOR THE PROGRAM, TO THE EXTENT
+ * PERMITTED BY APPLICABLE LAW. EXCEPT WHEN OTHERWISE STATED IN WRITING THE COPYRIGHT HOLDERS AND/OR
+ * OTHER PARTIES PROVIDE THE PROGRAM “AS IS” WITHOUT WARRANTY OF ANY KIND, EITHER EXPRESSED OR
+ * IMPLIED, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE. THE ENTIRE RISK AS TO THE QUALITY AND PERFORMANCE OF THE PROGRAM IS WITH
+ * YOU. SHOULD THE PROGRAM PROVE DEFECTIVE, YOU ASSUME THE COST OF ALL NECESSARY SERVICING, REPAIR
+ * OR CORRECTION. IN NO EVENT UNLESS REQUIRED BY APPLICABLE LAW OR AGREED TO IN WRITING WILL ANY
+ * COPYRIGHT HOLDER, OR ANY OTHER PARTY WHO MODIFIES AND/OR CONVEYS THE PROGRAM AS PERMITTED ABOVE,
+ * BE LIABLE TO YOU FOR DAMAGES, INCLUDING ANY GENERAL, SPECIAL, INCIDENTAL OR CONSEQUENTIAL DAMAGES
+ * ARISING OUT OF THE USE OR INABILITY TO USE THE PROGRAM (INCLUDING BUT NOT LIMITED TO LOSS OF DATA
+ * OR DATA BEING RENDERED INACCURATE OR LOSSES SUSTAINED BY YOU OR THIRD PARTIES OR A FAILURE OF THE
+ * PROGRAM TO OPERATE WITH ANY OTHER PROGRAMS), EVEN IF SUCH HOLDER OR OTHER PARTY HAS BEEN ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGES. You should have received a copy of the GPL 3 license with *
+ * this file. If not, visit http://www.gnu.de/documents/gpl-3.0.en.html
+ */
+package de.ukbonn.mwtek.utilities.generic.collections;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.List;
+import java.util.function.Consumer;
+import java.util.function.ToLongFunction;
+
+/**
+ * Static interval tree over closed {@code long} intervals (e.g. epoch millis).
+ *
+ * <p>The tree is built once from a collection of items and is immutable afterwards. Internally the
+ * intervals are kept in three flat arrays sorted by start; the binary tree is implicit in the array
+ * positions and every node stores the maximum end of its subtree. An overlap query therefore runs
+ * in {@code O(log n + m)} for {@code m} hits without allocating tree nodes.
+ *
+ * @param <T> the type of the items stored in the tree
+ */
+public class IntervalTree<T> {
+
+  /** Subtrees up to this level are scanned linearly instead of being traversed. */
+  private static final int LINEAR_SCAN_LEVEL = 3;
+
+  private final long[] starts;
+  private final long[] ends;
+  private final long[] maxEnds;
+  private final Object[] items;
+  private final int maxLevel;
+
+  /**
+   * Builds the tree. Items whose end lies before their start are ignored.
+   *
+   * @param items the items to store; must not be {@code null}
+   * @param startExtractor extracts the (inclusive) interval start of an item
+   * @param endExtractor extracts the (inclusive) interval end of an item
+   */
+  public IntervalTree(
+      Collection<? extends T> items,
+      ToLongFunction<? super T> startExtractor,
+      ToLongFunction<? super T> endExtractor) {
+    List<Entry> entries = new ArrayList<>(items.size());
+    for (T item : items) {
+      long start = startExtractor.applyAsLong(item);
+      long end = endExtractor.applyAsLong(item);
+      if (end >= start) {
+        entries.add(new Entry(start, end, item));
+      }
+    }
+    entries.sort(Comparator.comparingLong(Entry::start));
+
+    int size = entries.size();
+    this.starts = new long[size];
+    this.ends = new long[size];
+    this.maxEnds = new long[size];
+    this.items = new Object[size];
+    for (int i = 0; i < size; i++) {
+      Entry entry = entries.get(i);
+      starts[i] = entry.start();
+      ends[i] = entry.end();
+      this.items[i] = entry.item();
+    }
+    this.maxLevel = index();
+  }
+
+  /** Number of intervals stored in the tree. */
+  public int size() {
+    return items.length;
+  }
+
+  /** Whether the tree holds no interval at all. */
+  public boolean isEmpty() {
+    return items.length == 0;
+  }
+
+  /**
+   * Returns all items whose interval overlaps the closed interval {@code [from, to]}.
+   *
+   * @param from the lower bound of the query (inclusive)
+   * @param to the upper bound of the query (inclusive)
+   * @return the overlapping items in ascending order of their interval start
+   */
+  public List<T> query(long from, long to) {
+    List<T> result = new ArrayList<>();
+    query(from, to, result::add);
+    return result;
+  }
+
+  /**
+   * Passes every item whose interval overlaps the closed interval {@code [from, to]} to the given
+   * consumer.
+   *
+   * @param from the lower bound of the query (inclusive)
+   * @param to the upper bound of the query (inclusive)
+   * @param consumer receives the overlapping items
+   */
+  @SuppressWarnings("unchecked")
+  public void query(long from, long to, Consumer<? super T> consumer) {
+    int size = items.length;
+    if (size == 0 || to < from) {
+      return;
+    }
+    // Each stack frame holds the node position, its level and whether the left subtree is done
+    int[] nodes = new int[64];
+    int[] levels = new int[64];
+    boolean[] leftDone = new boolean[64];
+    int top = 0;
+    nodes[top] = (1 << maxLevel) - 1;
+    levels[top] = maxLevel;
+    leftDone[top++] = false;
+    while (top > 0) {
+      top--;
+      int node = nodes[top];
+      int level = levels[top];
+      if (level <= LINEAR_SCAN_LEVEL) {
+        int first = node >> level << level;
+        int last = Math.min(first + (1 << (level + 1)) - 1, size);
+        for (int i = first; i < last && starts[i] <= to; i++) {
+          if (ends[i] >= from) {
+            consumer.accept((T) items[i]);
+          }
+        }
+      } else if (!leftDone[top]) {
+        int left = node - (1 << (level - 1));
+        leftDone[top++] = true;
+        if (left >= size || maxEnds[left] >= from) {
+          nodes[top] = left;
+          levels[top] = level - 1;
+          leftDone[top++] = false;
+        }
+      } else if (node < size && starts[node] <= to) {
+        if (ends[node] >= from) {
+          consumer.accept((T) items[node]);
+        }
+        nodes[top] = node + (1 << (level - 1));
+        levels[top] = level - 1;
+        leftDone[top++] = false;
+      }
+    }
+  }
+
+  /**
+   * Returns all items whose interval contains the given point.
+   *
+   * @param point the point in time
+   * @return the items containing the point
+   */
+  public List<T> stab(long point) {
+    return query(point, point);
+  }
+
+  /**
+   * Counts the items whose interval overlaps the closed interval {@code [from, to]}. Same traversal
+   * as {@link #query(long, long, Consumer)}, but without collecting the hits.
+   *
+   * @param from the lower bound of the query (inclusive)
+   * @param to the upper bound of the query (inclusive)
+   * @return the number of overlapping items
+   */
+  public int count(long from, long to) {
+    if (items.length == 0 || to < from) {
+      return 0;
+    }
+    return count((1 << maxLevel) - 1, maxLevel, from, to);
+  }
+
+  private int count(int node, int level, long from, long to) {
+    int size = items.length;
+    int count = 0;
+    if (level <= LINEAR_SCAN_LEVEL) {
+      int first = node >> level << level;
+      int last = Math.min(first + (1 << (level + 1)) - 1, size);
+      for (int i = first; i < last && starts[i] <= to; i++) {
+        if (ends[i] >= from) {
+          count++;
+        }
+      }
+      return count;
+    }
+    int half = 1 << (level - 1);
+    int left = node - half;
+    if (left >= size || maxEnds[left] >= from) {
+      count += count(left, level - 1, from, to);
+    }
+    if (node < size && starts[node] <= to) {
+      if (ends[node] >= from) {
+        count++;
+      }
+      count += count(node + half, level - 1, from, to);
+    }
+    return count;
+  }
+
+  /**
+   * Computes the subtree maxima of the implicit tree. A node at position {@code i} has level {@code
+   * k} if the {@code k} lowest bits of {@code i} are set; its children are {@code i - 2^(k - 1)}
+   * and {@code i + 2^(k - 1)}.
+   *
+   * @return the level of the root node
+   */
+  private int index() {
+    int size = items.length;
+    if (size == 0) {
+      return 0;
+    }
+    int lastNode = 0;
+    long lastMax = 0;
+    for (int i = 0; i < size; i += 2) {
+      lastNode = i;
+      lastMax = maxEnds[i] = ends[i];
+    }
+    for (int i = 1; i < size; i += 2) {
+      maxEnds[i] = ends[i];
+    }
+    int level = 1;
+    for (; 1 << level <= size; level++) {
+      int half = 1 << (level - 1);
+      int first = (half << 1) - 1;
+      int step = half << 2;
+      for (int i = first; i < size; i += step) {
+        long leftMax = maxEnds[i - half];
+        long rightMax = i + half < size ? maxEnds[i + half] : lastMax;
+        maxEnds[i] = Math.max(ends[i], Math.max(leftMax, rightMax));
+      }
+      lastNode = ((lastNode >> level) & 1) != 0 ? lastNode - half : lastNode + half;
+      if (lastNode < size && maxEnds[lastNode] > lastMax) {
+        lastMax = maxEnds[lastNode];
+      }
+    }
+    return level - 1;
+  }
+
+  private record Entry(long start, long end, Object item) {}
+}
@@ -20,9 +20,12 @@ package de.ukbonn.mwtek.utilities.generic.collections;
 
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 /**
  * Class with auxiliary methods for list operations.
@@ -114,4 +117,21 @@ public class ListTools {
     }
     return result;
   }
+
+  /**
+   * Returns a sequential stream over the iterable. Collections are streamed directly, other
+   * iterables through their spliterator, so nothing is copied.
+   *
+   * @param iterable the source; {@code null} results in an empty stream
+   * @return a lazy stream over the elements
+   */
+  public static <T> Stream<T> stream(Iterable<T> iterable) {
+    if (iterable == null) {
+      return Stream.empty();
+    }
+    if (iterable instanceof Collection<T> collection) {
+      return collection.stream();
+    }
+    return StreamSupport.stream(iterable.spliterator(), false);
+  }
 }
@@ -0,0 +1,155 @@
+/*
+ * Copyright (C) 2021 University Hospital Bonn - All Rights Reserved You may use, distribute and
+ * modify this code under the GPL 3 license. THERE IS NO WARRANTY FOR THE PROGRAM, TO THE EXTENT
+ * PERMITTED BY APPLICABLE LAW. EXCEPT WHEN OTHERWISE STATED IN WRITING THE COPYRIGHT HOLDERS AND/OR
+ * OTHER PARTIES PROVIDE THE PROGRAM “AS IS” WITHOUT WARRANTY OF ANY KIND, EITHER EXPRESSED OR
+ * IMPLIED, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE. THE ENTIRE RISK AS TO THE QUALITY AND PERFORMANCE OF THE PROGRAM IS WITH
+ * YOU. SHOULD THE PROGRAM PROVE DEFECTIVE, YOU ASSUME THE COST OF ALL NECESSARY SERVICING, REPAIR
+ * OR CORRECTION. IN NO EVENT UNLESS REQUIRED BY APPLICABLE LAW OR AGREED TO IN WRITING WILL ANY
+ * COPYRIGHT HOLDER, OR ANY OTHER PARTY WHO MODIFIES AND/OR CONVEYS THE PROGRAM AS PERMITTED ABOVE,
+ * BE LIABLE TO YOU FOR DAMAGES, INCLUDING ANY GENERAL, SPECIAL, INCIDENTAL OR CONSEQUENTIAL DAMAGES
+ * ARISING OUT OF THE USE OR INABILITY TO USE THE PROGRAM (INCLUDING BUT NOT LIMITED TO LOSS OF DATA
+ * OR DATA BEING RENDERED INACCURATE OR LOSSES SUSTAINED BY YOU OR THIRD PARTIES OR A FAILURE OF THE
+ * PROGRAM TO OPERATE WITH ANY OTHER PROGRAMS), EVEN IF SUCH HOLDER OR OTHER PARTY HAS BEEN ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGES. You should have received a copy of the GPL 3 license with *
+ * this file. If not, visit http://www.gnu.de/documents/gpl-3.0.en.html
+ */
+package de.ukbonn.mwtek.utilities.generic.collections;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+
+/**
+ * Thread-safe, size-bounded cache that evicts the least recently used entry.
+ *
+ * <p>Lookups and insertions are synchronized on the cache, but {@link #computeIfAbsent(Object,
+ * Function)} runs the (possibly expensive) computation outside of the lock. Two threads that miss
+ * the same key at the same time may therefore both compute the value; the later one wins. Hits,
+ * misses and evictions are counted with {@link LongAdder}s.
+ *
+ * @param <K> the key type; must implement {@code equals} and {@code hashCode}
+ * @param <V> the value type
+ */
+public class LruCache<K, V> {
+
+  private final int maxEntries;
+  private final LinkedHashMap<K, V> entries;
+  private final LongAdder hits = new LongAdder();
+  private final LongAdder misses = new LongAdder();
+  private final LongAdder evictions = new LongAdder();
+
+  /**
+   * Creates an empty cache.
+   *
+   * @param maxEntries the maximal number of entries; must be positive
+   */
+  public LruCache(int maxEntries) {
+    if (maxEntries < 1) {
+      throw new IllegalArgumentException("The maximal number of entries must be positive");
+    }
+    this.maxEntries = maxEntries;
+    this.entries =
+        new LinkedHashMap<>(16, 0.75f, true) {
+          @Override
+          protected boolean removeEldestEntry(Map.Entry<K, V> eldest) {
+            if (size() > LruCache.this.maxEntries) {
+              evictions.increment();
+              return true;
+            }
+            return false;
+          }
+        };
+  }
+
+  /**
+   * Returns the cached value and marks it as recently used.
+   *
+   * @return the value or {@code null} if the key is not cached
+   */
+  public V get(K key) {
+    V value;
+    synchronized (this) {
+      value = entries.get(key);
+    }
+    (value != null ? hits : misses).increment();
+    return value;
+  }
+
+  /** Caches the value, possibly evicting the least recently used entry. */
+  public synchronized void put(K key, V value) {
+    entries.put(key, value);
+  }
+
+  /**
+   * Returns the cached value or computes, caches and returns it.
+   *
+   * @param key the key
+   * @param mappingFunction computes the value for a missing key; a {@code null} result is not
+   *     cached
+   */
+  public V computeIfAbsent(K key, Function<? super K, ? extends V> mappingFunction) {
+    V value = get(key);
+    if (value == null) {
+      value = mappingFunction.apply(key);
+      if (value != null) {
+        put(key, value);
+      }
+    }
+    return value;
+  }
+
+  /** Removes all entries. The statistics are kept. */
+  public synchronized void invalidateAll() {
+    entries.clear();
+  }
+
+  /** Current number of entries. */
+  public synchronized int size() {
+    return entries.size();
+  }
+
+  /** The maximal number of entries. */
+  public int getMaxEntries() {
+    return maxEntries;
+  }
+
+  /** Number of lookups that found a value. */
+  public long getHitCount() {
+    return hits.sum();
+  }
+
+  /** Number of lookups that found no value. */
+  public long getMissCount() {
+    return misses.sum();
+  }
+
+  /** Number of entries that were dropped because the cache was full. */
+  public long getEvictionCount() {
+    return evictions.sum();
+  }
+
+  /** Share of the lookups that found a value, or {@code 0} if there was no lookup yet. */
+  public double getHitRate() {
+    long hitCount = getHitCount();
+    long total = hitCount + getMissCount();
+    return total == 0 ? 0 : (double) hitCount / total;
+  }
+
+  @Override
+  public String toString() {
+    return "LruCache{size="
+        + size()
+        + ", maxEntries="
+        + maxEntries
+        + ", hits="
+        + getHitCount()
+        + ", misses="
+        + getMissCount()
+        + ", evictions="
+        + getEvictionCount()
+        + "}";
+  }
+}
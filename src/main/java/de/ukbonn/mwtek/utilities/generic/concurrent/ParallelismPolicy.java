@@ -0,0 +1,270 @@
+/*
+ * Copyright (C) 2021 University Hospital Bonn - All Rights Reserved You may use, distribute and
+ * modify this code under the GPL 3 license. THERE IS NO WARRANTY FOR THE PROGRAM, TO THE EXTENT
+ * PERMITTED BY APPLICABLE LAW. EXCEPT WHEN OTHERWISE STATED IN WRITING THE COPYRIGHT HOLDERS AND/OR
+ * OTHER PARTIES PROVIDE THE PROGRAM “AS IS” WITHOUT WARRANTY OF ANY KIND, EITHER EXPRESSED OR
+ * IMPLIED, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE. THE ENTIRE RISK AS TO THE QUALITY AND PERFORMANCE OF THE PROGRAM IS WITH
+ * YOU. SHOULD THE PROGRAM PROVE DEFECTIVE, YOU ASSUME THE COST OF ALL NECESSARY SERVICING, REPAIR
+ * OR CORRECTION. IN NO EVENT UNLESS REQUIRED BY APPLICABLE LAW OR AGREED TO IN WRITING WILL ANY
+ * COPYRIGHT HOLDER, OR ANY OTHER PARTY WHO MODIFIES AND/OR CONVEYS THE PROGRAM AS PERMITTED ABOVE,
+ * BE LIABLE TO YOU FOR DAMAGES, INCLUDING ANY GENERAL, SPECIAL, INCIDENTAL OR CONSEQUENTIAL DAMAGES
+ * ARISING OUT OF THE USE OR INABILITY TO USE THE PROGRAM (INCLUDING BUT NOT LIMITED TO LOSS OF DATA
+ * OR DATA BEING RENDERED INACCURATE OR LOSSES SUSTAINED BY YOU OR THIRD PARTIES OR A FAILURE OF THE
+ * PROGRAM TO OPERATE WITH ANY OTHER PROGRAMS), EVEN IF SUCH HOLDER OR OTHER PARTY HAS BEEN ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGES. You should have received a copy of the GPL 3 license with *
+ * this file. If not, visit http://www.gnu.de/documents/gpl-3.0.en.html
+ */
+package de.ukbonn.mwtek.utilities.generic.concurrent;
+
+import de.ukbonn.mwtek.utilities.ExceptionTools;
+import de.ukbonn.mwtek.utilities.generic.collections.ListTools;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.function.BinaryOperator;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.Predicate;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Library-wide policy that decides how the bulk operations of the {@code *Tools} classes and
+ * indexes are parallelized.
+ *
+ * <p>By default, parallel work runs on the common fork-join pool, as {@code parallelStream()} does.
+ * Inputs smaller than the sequential threshold are processed sequentially, because the overhead of
+ * splitting is larger than the gain. Applications that do not want to share the common pool with
+ * request handling can install a policy with a dedicated {@link ForkJoinPool} or with virtual
+ * threads via {@link #setDefault(ParallelismPolicy)}:
+ *
+ * <pre>{@code
+ * ParallelismPolicy.setDefault(ParallelismPolicy.dedicatedPool(new ForkJoinPool(4), 5_000));
+ * }</pre>
+ */
+@Slf4j
+@Getter
+public class ParallelismPolicy {
+
+  /** The execution modes a policy can use for inputs above the sequential threshold. */
+  public enum Mode {
+    /** Everything runs in the calling thread. */
+    SEQUENTIAL,
+    /** Parallel streams on {@link ForkJoinPool#commonPool()}. */
+    COMMON_POOL,
+    /** Parallel streams inside a dedicated {@link ForkJoinPool}. */
+    DEDICATED_POOL,
+    /** The input is split into chunks and every chunk is processed in its own virtual thread. */
+    VIRTUAL_THREADS
+  }
+
+  /** Inputs with fewer elements than this are processed sequentially by default. */
+  public static final int DEFAULT_SEQUENTIAL_THRESHOLD = 2_000;
+
+  private static volatile ParallelismPolicy defaultPolicy =
+      commonPool(DEFAULT_SEQUENTIAL_THRESHOLD);
+
+  private final Mode mode;
+  private final ForkJoinPool pool;
+  private final int sequentialThreshold;
+
+  private ParallelismPolicy(Mode mode, ForkJoinPool pool, int sequentialThreshold) {
+    if (sequentialThreshold < 0) {
+      throw new IllegalArgumentException("sequentialThreshold must not be negative");
+    }
+    this.mode = mode;
+    this.pool = pool;
+    this.sequentialThreshold = sequentialThreshold;
+  }
+
+  /** A policy that never parallelizes. */
+  public static ParallelismPolicy sequential() {
+    return new ParallelismPolicy(Mode.SEQUENTIAL, null, 0);
+  }
+
+  /**
+   * A policy that uses parallel streams on the common fork-join pool.
+   *
+   * @param sequentialThreshold inputs smaller than this are processed sequentially
+   */
+  public static ParallelismPolicy commonPool(int sequentialThreshold) {
+    return new ParallelismPolicy(Mode.COMMON_POOL, null, sequentialThreshold);
+  }
+
+  /**
+   * A policy that runs parallel streams inside the given pool instead of the common pool. The pool
+   * is owned by the caller and is not shut down by this class.
+   *
+   * @param pool the pool to run parallel work in; must not be {@code null}
+   * @param sequentialThreshold inputs smaller than this are processed sequentially
+   */
+  public static ParallelismPolicy dedicatedPool(ForkJoinPool pool, int sequentialThreshold) {
+    ExceptionTools.checkNull("pool", pool);
+    return new ParallelismPolicy(Mode.DEDICATED_POOL, pool, sequentialThreshold);
+  }
+
+  /**
+   * A policy that splits the input into chunks of at least {@code sequentialThreshold} elements and
+   * processes every chunk in its own virtual thread.
+   *
+   * @param sequentialThreshold inputs smaller than this are processed sequentially; also the
+   *     minimum chunk size
+   */
+  public static ParallelismPolicy virtualThreads(int sequentialThreshold) {
+    return new ParallelismPolicy(Mode.VIRTUAL_THREADS, null, sequentialThreshold);
+  }
+
+  /** The policy that is used by all library methods. */
+  public static ParallelismPolicy getDefault() {
+    return defaultPolicy;
+  }
+
+  /**
+   * Replaces the policy that is used by all library methods.
+   *
+   * @param policy the new policy; must not be {@code null}
+   */
+  public static void setDefault(ParallelismPolicy policy) {
+    defaultPolicy = ExceptionTools.checkNull("policy", policy);
+    log.debug(
+        "Parallelism policy set to {} (sequential threshold: {})",
+        policy.mode,
+        policy.sequentialThreshold);
+  }
+
+  /**
+   * Whether an input of the given size is processed in parallel under this policy.
+   *
+   * @param size the number of elements
+   * @return {@code true} if the work is split, {@code false} if it runs in the calling thread
+   */
+  public boolean isParallel(int size) {
+    return mode != Mode.SEQUENTIAL && size >= Math.max(sequentialThreshold, 2);
+  }
+
+  /**
+   * Applies a stream pipeline to the given input according to this policy.
+   *
+   * <p>In the stream based modes the pipeline gets a (parallel) stream over the whole input. In
+   * {@link Mode#VIRTUAL_THREADS} it is applied to every chunk separately and the partial results
+   * are merged in encounter order with the given combiner.
+   *
+   * @param input the input; must not be {@code null}
+   * @param pipeline the pipeline, e.g. {@code s -> s.filter(p).collect(Collectors.toSet())}
+   * @param combiner merges two partial results; only used in {@link Mode#VIRTUAL_THREADS}
+   * @param <T> the element type
+   * @param <R> the result type
+   * @return the result of the pipeline
+   */
+  public <T, R> R apply(
+      Collection<T> input, Function<Stream<T>, R> pipeline, BinaryOperator<R> combiner) {
+    if (!isParallel(input.size())) {
+      return pipeline.apply(input.stream());
+    }
+    return switch (mode) {
+      case DEDICATED_POOL -> pool.submit(() -> pipeline.apply(input.parallelStream())).join();
+      case VIRTUAL_THREADS -> applyInVirtualThreads(input, pipeline, combiner);
+      default -> pipeline.apply(input.parallelStream());
+    };
+  }
+
+  /**
+   * Collects all elements of the input that match the filter into a set.
+   *
+   * @param input the input; must not be {@code null}
+   * @param filter the filter
+   * @param <T> the element type
+   * @return a mutable set with the matching elements
+   */
+  public <T> Set<T> filterToSet(Collection<T> input, Predicate<? super T> filter) {
+    return apply(
+        input,
+        stream -> stream.filter(filter).collect(Collectors.toCollection(HashSet::new)),
+        (left, right) -> {
+          left.addAll(right);
+          return left;
+        });
+  }
+
+  /**
+   * Collects all elements of the input that match the filter into a list, preserving the order of
+   * the input.
+   *
+   * @param input the input; must not be {@code null}
+   * @param filter the filter
+   * @param <T> the element type
+   * @return an unmodifiable list with the matching elements
+   */
+  public <T> List<T> filterToList(Collection<T> input, Predicate<? super T> filter) {
+    return Collections.unmodifiableList(
+        apply(
+            input,
+            stream -> stream.filter(filter).collect(Collectors.toCollection(ArrayList::new)),
+            (left, right) -> {
+              left.addAll(right);
+              return left;
+            }));
+  }
+
+  /**
+   * Passes every element of the input to the given action, e.g. to set flags or to fill concurrent
+   * counters. In the parallel modes the action is called from several threads in no particular
+   * order, so it has to be thread-safe.
+   *
+   * @param input the input; must not be {@code null}
+   * @param action the action
+   * @param <T> the element type
+   */
+  public <T> void forEach(Collection<T> input, Consumer<? super T> action) {
+    ExceptionTools.checkNull("action", action);
+    apply(
+        input,
+        stream -> {
+          stream.forEach(action);
+          return null;
+        },
+        (left, right) -> null);
+  }
+
+  private <T, R> R applyInVirtualThreads(
+      Collection<T> input, Function<Stream<T>, R> pipeline, BinaryOperator<R> combiner) {
+    ExceptionTools.checkNull("combiner", combiner);
+    List<T> list = input instanceof List<T> l ? l : new ArrayList<>(input);
+    // Aim for a few chunks per core, but never for chunks below the threshold
+    int chunkSize =
+        Math.max(
+            Math.max(sequentialThreshold, 1),
+            list.size() / (Runtime.getRuntime().availableProcessors() * 4) + 1);
+    List<Future<R>> futures = new ArrayList<>();
+    try (ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor()) {
+      for (List<T> chunk : ListTools.splitList(list, chunkSize)) {
+        futures.add(executor.submit(() -> pipeline.apply(chunk.stream())));
+      }
+      R result = null;
+      for (Future<R> future : futures) {
+        R partial = future.get();
+        result = result == null ? partial : combiner.apply(result, partial);
+      }
+      return result;
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IllegalStateException("Interrupted while waiting for virtual threads", e);
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof RuntimeException runtimeException) {
+        throw runtimeException;
+      }
+      throw new IllegalStateException(e.getCause());
+    }
+  }
+}
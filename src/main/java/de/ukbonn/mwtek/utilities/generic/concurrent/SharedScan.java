@@ -0,0 +1,221 @@
+/*
+ * Copyright (C) 2021 University Hospital Bonn - All Rights Reserved You may use, distribute and
+ * modify this code under the GPL 3 license. THERE IS NO WARRANTY FOR THE PROGRAM, TO THE EXTENT
+ * PERMITTED BY APPLICABLE LAW. EXCEPT WHEN OTHERWISE STATED IN WRITING THE COPYRIGHT HOLDERS AND/OR
+ * OTHER PARTIES PROVIDE THE PROGRAM “AS IS” WITHOUT WARRANTY OF ANY KIND, EITHER EXPRESSED OR
+ * IMPLIED, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE. THE ENTIRE RISK AS TO THE QUALITY AND PERFORMANCE OF THE PROGRAM IS WITH
+ * YOU. SHOULD THE PROGRAM PROVE DEFECTIVE, YOU ASSUME THE COST OF ALL NECESSARY SERVICING, REPAIR
+ * OR CORRECTION. IN NO EVENT UNLESS REQUIRED BY APPLICABLE LAW OR AGREED TO IN WRITING WILL ANY
+ * COPYRIGHT HOLDER, OR ANY OTHER PARTY WHO MODIFIES AND/OR CONVEYS THE PROGRAM AS PERMITTED ABOVE,
+ * BE LIABLE TO YOU FOR DAMAGES, INCLUDING ANY GENERAL, SPECIAL, INCIDENTAL OR CONSEQUENTIAL DAMAGES
+ * ARISING OUT OF THE USE OR INABILITY TO USE THE PROGRAM (INCLUDING BUT NOT LIMITED TO LOSS OF DATA
+ * OR DATA BEING RENDERED INACCURATE OR LOSSES SUSTAINED BY YOU OR THIRD PARTIES OR A FAILURE OF THE
+ * PROGRAM TO OPERATE WITH ANY OTHER PROGRAMS), EVEN IF SUCH HOLDER OR OTHER PARTY HAS BEEN ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGES. You should have received a copy of the GPL 3 license with *
+ * this file. If not, visit http://www.gnu.de/documents/gpl-3.0.en.html
+ */
+package de.ukbonn.mwtek.utilities.generic.concurrent;
+
+import de.ukbonn.mwtek.utilities.ExceptionTools;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.function.BiConsumer;
+import java.util.function.BinaryOperator;
+import java.util.function.Function;
+import java.util.function.Predicate;
+import java.util.function.Supplier;
+import java.util.stream.Collector;
+
+/**
+ * Runs several independent analyses in a single pass over a resource collection.
+ *
+ * <p>Every consumer (e.g. a dashboard indicator) registers a filter and a {@link Collector} and
+ * gets a {@link Handle} back. {@link #run()} then traverses the collection once, in parallel chunks
+ * according to the default {@link ParallelismPolicy}, and feeds every element to all consumers
+ * while it is still in the CPU cache. Afterward, the results are available via {@link
+ * Handle#get()}.
+ *
+ * <pre>{@code
+ * SharedScan<MiiCondition> scan = new SharedScan<>(conditions);
+ * Handle<Set<String>> covidCases =
+ *     scan.register(c -> c.hasIcdCode(covidCodes), mapping(MiiCondition::getCaseId, toSet()));
+ * Handle<Long> confirmed =
+ *     scan.register(c -> "G".equals(c.getPrimaryDiagnosisReliability()), counting());
+ * scan.run();
+ * }</pre>
+ *
+ * <p>A scan runs only once; consumers can't be registered after it ran. The collectors need to be
+ * usable with parallel streams, as all collectors of {@link java.util.stream.Collectors} are.
+ *
+ * @param <T> the element type
+ */
+public class SharedScan<T> {
+
+  private final Collection<T> input;
+  private final List<Consumer<T, ?, ?>> consumers = new ArrayList<>();
+  private volatile boolean done;
+
+  /**
+   * Creates a scan over the given collection.
+   *
+   * @param input the collection to traverse; must not be {@code null}
+   */
+  public SharedScan(Collection<T> input) {
+    this.input = ExceptionTools.checkNull("input", input);
+  }
+
+  /**
+   * Registers a consumer that is fed with all elements.
+   *
+   * @param collector accumulates the elements
+   * @return the handle that gives access to the result after {@link #run()}
+   */
+  public <R> Handle<R> register(Collector<? super T, ?, R> collector) {
+    return register(x -> true, collector);
+  }
+
+  /**
+   * Registers a consumer that is fed with the elements that match the filter.
+   *
+   * @param filter selects the elements for this consumer
+   * @param collector accumulates the selected elements
+   * @return the handle that gives access to the result after {@link #run()}
+   * @throws IllegalStateException if the scan already ran
+   */
+  public synchronized <A, R> Handle<R> register(
+      Predicate<? super T> filter, Collector<? super T, A, R> collector) {
+    ExceptionTools.checkNull("filter", filter);
+    ExceptionTools.checkNull("collector", collector);
+    if (done) {
+      throw new IllegalStateException("Consumers can't be registered after the scan ran");
+    }
+    Consumer<T, A, R> consumer = new Consumer<>(filter, collector);
+    consumers.add(consumer);
+    return consumer.handle;
+  }
+
+  /** Number of registered consumers. */
+  public synchronized int getConsumerCount() {
+    return consumers.size();
+  }
+
+  /**
+   * Traverses the collection once and feeds all consumers.
+   *
+   * @throws IllegalStateException if the scan already ran
+   */
+  public synchronized void run() {
+    if (done) {
+      throw new IllegalStateException("The scan already ran");
+    }
+    done = true;
+    if (consumers.isEmpty()) {
+      return;
+    }
+    Object[] containers =
+        ParallelismPolicy.getDefault()
+            .apply(
+                input,
+                stream -> stream.collect(this::newContainers, this::accumulate, this::combine),
+                (left, right) -> {
+                  combine(left, right);
+                  return left;
+                });
+    for (int i = 0; i < consumers.size(); i++) {
+      consumers.get(i).finish(containers[i]);
+    }
+  }
+
+  private Object[] newContainers() {
+    Object[] containers = new Object[consumers.size()];
+    for (int i = 0; i < containers.length; i++) {
+      containers[i] = consumers.get(i).supplier.get();
+    }
+    return containers;
+  }
+
+  private void accumulate(Object[] containers, T element) {
+    for (int i = 0; i < containers.length; i++) {
+      consumers.get(i).accumulate(containers[i], element);
+    }
+  }
+
+  private void combine(Object[] left, Object[] right) {
+    for (int i = 0; i < left.length; i++) {
+      left[i] = consumers.get(i).combine(left[i], right[i]);
+    }
+  }
+
+  /**
+   * Access to the result of a registered consumer.
+   *
+   * @param <R> the result type
+   */
+  public static class Handle<R> {
+
+    private volatile boolean available;
+    private R result;
+
+    private Handle() {}
+
+    /**
+     * The result of the consumer.
+     *
+     * @throws IllegalStateException if the scan didn't run yet
+     */
+    public R get() {
+      if (!available) {
+        throw new IllegalStateException("The scan didn't run yet");
+      }
+      return result;
+    }
+
+    /** Whether the scan ran and the result is available. */
+    public boolean isAvailable() {
+      return available;
+    }
+
+    private void complete(R result) {
+      this.result = result;
+      this.available = true;
+    }
+  }
+
+  private static class Consumer<T, A, R> {
+
+    private final Predicate<? super T> filter;
+    private final Supplier<A> supplier;
+    private final BiConsumer<A, ? super T> accumulator;
+    private final BinaryOperator<A> combiner;
+    private final Function<A, R> finisher;
+    private final Handle<R> handle = new Handle<>();
+
+    private Consumer(Predicate<? super T> filter, Collector<? super T, A, R> collector) {
+      this.filter = filter;
+      // The collector functions are resolved once instead of per element
+      this.supplier = collector.supplier();
+      this.accumulator = collector.accumulator();
+      this.combiner = collector.combiner();
+      this.finisher = collector.finisher();
+    }
+
+    @SuppressWarnings("unchecked")
+    private void accumulate(Object container, T element) {
+      if (filter.test(element)) {
+        accumulator.accept((A) container, element);
+      }
+    }
+
+    @SuppressWarnings("unchecked")
+    private Object combine(Object left, Object right) {
+      return combiner.apply((A) left, (A) right);
+    }
+
+    @SuppressWarnings("unchecked")
+    private void finish(Object container) {
+      handle.complete(finisher.apply((A) container));
+    }
+  }
+}
@@ -0,0 +1,278 @@
+/*
+ * Copyright (C) 2021 University Hospital Bonn - All Rights Reserved You may use, distribute and
+ * modify this code under the GPL 3 license. THERE IS NO WARRANTY FOR THE PROGRAM, TO THE EXTENT
+ * PERMITTED BY APPLICABLE LAW. EXCEPT WHEN OTHERWISE STATED IN WRITING THE COPYRIGHT HOLDERS AND/OR
+ * OTHER PARTIES PROVIDE THE PROGRAM “AS IS” WITHOUT WARRANTY OF ANY KIND, EITHER EXPRESSED OR
+ * IMPLIED, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE. THE ENTIRE RISK AS TO THE QUALITY AND PERFORMANCE OF THE PROGRAM IS WITH
+ * YOU. SHOULD THE PROGRAM PROVE DEFECTIVE, YOU ASSUME THE COST OF ALL NECESSARY SERVICING, REPAIR
+ * OR CORRECTION. IN NO EVENT UNLESS REQUIRED BY APPLICABLE LAW OR AGREED TO IN WRITING WILL ANY
+ * COPYRIGHT HOLDER, OR ANY OTHER PARTY WHO MODIFIES AND/OR CONVEYS THE PROGRAM AS PERMITTED ABOVE,
+ * BE LIABLE TO YOU FOR DAMAGES, INCLUDING ANY GENERAL, SPECIAL, INCIDENTAL OR CONSEQUENTIAL DAMAGES
+ * ARISING OUT OF THE USE OR INABILITY TO USE THE PROGRAM (INCLUDING BUT NOT LIMITED TO LOSS OF DATA
+ * OR DATA BEING RENDERED INACCURATE OR LOSSES SUSTAINED BY YOU OR THIRD PARTIES OR A FAILURE OF THE
+ * PROGRAM TO OPERATE WITH ANY OTHER PROGRAMS), EVEN IF SUCH HOLDER OR OTHER PARTY HAS BEEN ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGES. You should have received a copy of the GPL 3 license with *
+ * this file. If not, visit http://www.gnu.de/documents/gpl-3.0.en.html
+ */
+package de.ukbonn.mwtek.utilities.generic.sketch;
+
+import de.ukbonn.mwtek.utilities.ExceptionTools;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.Function;
+import java.util.stream.Collector;
+
+/**
+ * HyperLogLog sketch that estimates the number of distinct strings (e.g. patient or case ids) with
+ * a fixed, small amount of memory.
+ *
+ * <p>A sketch with precision {@code p} uses {@code 2^p} one-byte registers and has a relative
+ * standard error of about {@code 1.04 / sqrt(2^p)}, e.g. 16 KiB and 0.8% for {@code p = 14}. Small
+ * cardinalities are corrected with linear counting, so they are (nearly) exact.
+ *
+ * <p>Sketches with the same precision can be merged, which gives the sketch of the union of both
+ * inputs. This makes them suitable for partial results of parallel streams or of several data
+ * shards. A single sketch is not thread-safe; use {@link #collector(int)} for parallel streams.
+ */
+public class HyperLogLog {
+
+  /** Smallest supported precision. */
+  public static final int MIN_PRECISION = 4;
+
+  /** Largest supported precision. */
+  public static final int MAX_PRECISION = 18;
+
+  /** Precision with a relative standard error of about 0.8%. */
+  public static final int DEFAULT_PRECISION = 14;
+
+  private final int precision;
+  private final byte[] registers;
+
+  /**
+   * Creates an empty sketch.
+   *
+   * @param precision number of index bits, between {@link #MIN_PRECISION} and {@link
+   *     #MAX_PRECISION}
+   * @throws IllegalArgumentException if the precision is out of range
+   */
+  public HyperLogLog(int precision) {
+    if (precision < MIN_PRECISION || precision > MAX_PRECISION) {
+      throw new IllegalArgumentException(
+          "The precision must be between "
+              + MIN_PRECISION
+              + " and "
+              + MAX_PRECISION
+              + " but was "
+              + precision);
+    }
+    this.precision = precision;
+    this.registers = new byte[1 << precision];
+  }
+
+  /**
+   * Creates an empty sketch with the smallest precision that meets the given relative standard
+   * error.
+   *
+   * @param relativeError e.g. {@code 0.01} for 1%
+   * @throws IllegalArgumentException if the error can't be met with {@link #MAX_PRECISION}
+   */
+  public static HyperLogLog withRelativeError(double relativeError) {
+    if (!(relativeError > 0)) {
+      throw new IllegalArgumentException("The relative error must be positive");
+    }
+    double registerCount = Math.pow(1.04 / relativeError, 2);
+    int precision = Math.max(MIN_PRECISION, 64 - Long.numberOfLeadingZeros((long) registerCount));
+    return new HyperLogLog(precision);
+  }
+
+  /**
+   * Collector that feeds all stream elements into one sketch; usable with parallel streams.
+   *
+   * @param precision the precision of the sketch
+   */
+  public static Collector<String, ?, HyperLogLog> collector(int precision) {
+    return Collector.of(
+        () -> new HyperLogLog(precision),
+        HyperLogLog::add,
+        HyperLogLog::merge,
+        Collector.Characteristics.UNORDERED);
+  }
+
+  /**
+   * Collector that feeds the ids of the stream elements into one sketch per key; usable with
+   * parallel streams. Elements with a {@code null} key are skipped.
+   *
+   * @param keyFunction e.g. the ICD code, the day or the ward of an element
+   * @param idFunction e.g. the patient id of an element
+   * @param precision the precision of the sketches
+   */
+  public static <T, K> Collector<T, ?, Map<K, HyperLogLog>> groupingBy(
+      Function<? super T, ? extends K> keyFunction,
+      Function<? super T, String> idFunction,
+      int precision) {
+    return Collector.of(
+        HashMap::new,
+        (Map<K, HyperLogLog> map, T element) -> {
+          K key = keyFunction.apply(element);
+          if (key != null) {
+            map.computeIfAbsent(key, k -> new HyperLogLog(precision))
+                .add(idFunction.apply(element));
+          }
+        },
+        HyperLogLog::mergeAll,
+        Collector.Characteristics.UNORDERED);
+  }
+
+  /**
+   * Merges the sketches of the second map into the ones of the first map with the same key.
+   *
+   * @return the first map
+   */
+  public static <K> Map<K, HyperLogLog> mergeAll(
+      Map<K, HyperLogLog> target, Map<K, HyperLogLog> source) {
+    source.forEach((key, sketch) -> target.merge(key, sketch, HyperLogLog::merge));
+    return target;
+  }
+
+  /**
+   * Adds a value to the sketch.
+   *
+   * @param value the value; {@code null} is ignored
+   * @return this sketch
+   */
+  public HyperLogLog add(String value) {
+    if (value != null) {
+      addHash(hash(value));
+    }
+    return this;
+  }
+
+  /**
+   * Adds an already hashed value. The hash must be uniformly distributed over all 64 bits.
+   *
+   * @return this sketch
+   */
+  public HyperLogLog addHash(long hash) {
+    int index = (int) (hash >>> (64 - precision));
+    // The guard bit limits the rank to 64 - precision + 1
+    long remaining = (hash << precision) | (1L << (precision - 1));
+    byte rank = (byte) (Long.numberOfLeadingZeros(remaining) + 1);
+    if (rank > registers[index]) {
+      registers[index] = rank;
+    }
+    return this;
+  }
+
+  /**
+   * Merges the other sketch into this one.
+   *
+   * @param other a sketch with the same precision
+   * @return this sketch, which now represents the union of both inputs
+   * @throws IllegalArgumentException if the precisions differ
+   */
+  public HyperLogLog merge(HyperLogLog other) {
+    ExceptionTools.checkNull("other", other);
+    if (other.precision != precision) {
+      throw new IllegalArgumentException(
+          "Sketches with different precisions can't be merged: "
+              + precision
+              + " != "
+              + other.precision);
+    }
+    for (int i = 0; i < registers.length; i++) {
+      if (other.registers[i] > registers[i]) {
+        registers[i] = other.registers[i];
+      }
+    }
+    return this;
+  }
+
+  /** Estimated number of distinct values that were added. */
+  public long estimate() {
+    int m = registers.length;
+    double sum = 0;
+    int zeros = 0;
+    for (byte register : registers) {
+      sum += Double.longBitsToDouble((1023L - register) << 52);
+      if (register == 0) {
+        zeros++;
+      }
+    }
+    double estimate = alpha(m) * m * m / sum;
+    if (estimate <= 2.5 * m && zeros > 0) {
+      // Linear counting is more precise for small cardinalities
+      estimate = m * Math.log((double) m / zeros);
+    }
+    return Math.round(estimate);
+  }
+
+  /** The precision (number of index bits) of the sketch. */
+  public int getPrecision() {
+    return precision;
+  }
+
+  /** The expected relative standard error of {@link #estimate()}. */
+  public double getRelativeError() {
+    return 1.04 / Math.sqrt(registers.length);
+  }
+
+  /** Whether nothing was added to the sketch yet. */
+  public boolean isEmpty() {
+    for (byte register : registers) {
+      if (register != 0) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /** Creates an independent copy of this sketch. */
+  public HyperLogLog copy() {
+    HyperLogLog copy = new HyperLogLog(precision);
+    System.arraycopy(registers, 0, copy.registers, 0, registers.length);
+    return copy;
+  }
+
+  @Override
+  public boolean equals(Object o) {
+    return o instanceof HyperLogLog other
+        && precision == other.precision
+        && Arrays.equals(registers, other.registers);
+  }
+
+  @Override
+  public int hashCode() {
+    return Arrays.hashCode(registers);
+  }
+
+  @Override
+  public String toString() {
+    return "HyperLogLog{precision=" + precision + ", estimate=" + estimate() + "}";
+  }
+
+  private static double alpha(int m) {
+    return switch (m) {
+      case 16 -> 0.673;
+      case 32 -> 0.697;
+      case 64 -> 0.709;
+      default -> 0.7213 / (1 + 1.079 / m);
+    };
+  }
+
+  /** 64-bit FNV-1a over the UTF-16 chars, followed by the MurmurHash3 finalizer. */
+  static long hash(String value) {
+    long h = 0xcbf29ce484222325L;
+    for (int i = 0; i < value.length(); i++) {
+      h ^= value.charAt(i);
+      h *= 0x100000001b3L;
+    }
+    h ^= h >>> 33;
+    h *= 0xff51afd7ed558ccdL;
+    h ^= h >>> 33;
+    h *= 0xc4ceb9fe1a85ec53L;
+    h ^= h >>> 33;
+    return h;
+  }
+}
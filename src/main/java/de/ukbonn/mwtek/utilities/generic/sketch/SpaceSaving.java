@@ -0,0 +1,270 @@
+/*
+ * Copyright (C) 2021 University Hospital Bonn - All Rights Reserved You may use, distribute and
+ * modify this code under the GPL 3 license. THERE IS NO WARRANTY FOR THE PROGRAM, TO THE EXTENT
+ * PERMITTED BY APPLICABLE LAW. EXCEPT WHEN OTHERWISE STATED IN WRITING THE COPYRIGHT HOLDERS AND/OR
+ * OTHER PARTIES PROVIDE THE PROGRAM “AS IS” WITHOUT WARRANTY OF ANY KIND, EITHER EXPRESSED OR
+ * IMPLIED, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE. THE ENTIRE RISK AS TO THE QUALITY AND PERFORMANCE OF THE PROGRAM IS WITH
+ * YOU. SHOULD THE PROGRAM PROVE DEFECTIVE, YOU ASSUME THE COST OF ALL NECESSARY SERVICING, REPAIR
+ * OR CORRECTION. IN NO EVENT UNLESS REQUIRED BY APPLICABLE LAW OR AGREED TO IN WRITING WILL ANY
+ * COPYRIGHT HOLDER, OR ANY OTHER PARTY WHO MODIFIES AND/OR CONVEYS THE PROGRAM AS PERMITTED ABOVE,
+ * BE LIABLE TO YOU FOR DAMAGES, INCLUDING ANY GENERAL, SPECIAL, INCIDENTAL OR CONSEQUENTIAL DAMAGES
+ * ARISING OUT OF THE USE OR INABILITY TO USE THE PROGRAM (INCLUDING BUT NOT LIMITED TO LOSS OF DATA
+ * OR DATA BEING RENDERED INACCURATE OR LOSSES SUSTAINED BY YOU OR THIRD PARTIES OR A FAILURE OF THE
+ * PROGRAM TO OPERATE WITH ANY OTHER PROGRAMS), EVEN IF SUCH HOLDER OR OTHER PARTY HAS BEEN ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGES. You should have received a copy of the GPL 3 license with *
+ * this file. If not, visit http://www.gnu.de/documents/gpl-3.0.en.html
+ */
+package de.ukbonn.mwtek.utilities.generic.sketch;
+
+import de.ukbonn.mwtek.utilities.ExceptionTools;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.function.Function;
+import java.util.stream.Collector;
+
+/**
+ * Streaming heavy-hitters summary ("Space-Saving" by Metwally et al.) that finds the most frequent
+ * items (e.g. ICD or OPS codes) of a stream with bounded memory.
+ *
+ * <p>The summary keeps at most {@code capacity} counters. An unseen item replaces the counter with
+ * the smallest count and inherits that count as its overestimation error. Every item whose real
+ * frequency exceeds {@code totalCount / capacity} is guaranteed to be in the summary, and each
+ * reported count overestimates the real one by at most its {@link HeavyHitter#error()}.
+ *
+ * <p>Summaries with the same capacity can be merged (e.g. partial results of parallel streams or of
+ * several data shards). A single summary is not thread-safe; use {@link #collector(int)} for
+ * parallel streams.
+ *
+ * @param <T> the item type; must implement {@code equals} and {@code hashCode}
+ */
+public class SpaceSaving<T> {
+
+  /**
+   * An item of the summary.
+   *
+   * @param item the item
+   * @param count the upper bound of the real frequency
+   * @param error the maximal overestimation; {@code count - error} is a lower bound
+   */
+  public record HeavyHitter<T>(T item, long count, long error) {}
+
+  private static final Comparator<Counter<?>> ORDER =
+      Comparator.<Counter<?>>comparingLong(c -> c.count).thenComparingLong(c -> c.sequence);
+
+  private final int capacity;
+  private final Map<T, Counter<T>> counters = new HashMap<>();
+  private final TreeSet<Counter<T>> byCount = new TreeSet<>(ORDER);
+  private long totalCount;
+  private long sequence;
+
+  /**
+   * Creates an empty summary.
+   *
+   * @param capacity the maximal number of counters; a few times the number of wanted top items
+   *     gives accurate results
+   */
+  public SpaceSaving(int capacity) {
+    if (capacity < 1) {
+      throw new IllegalArgumentException("The capacity must be positive but was " + capacity);
+    }
+    this.capacity = capacity;
+  }
+
+  /**
+   * Collector that feeds all stream elements into one summary; usable with parallel streams.
+   *
+   * @param capacity the capacity of the summary
+   */
+  public static <T> Collector<T, ?, SpaceSaving<T>> collector(int capacity) {
+    return Collector.of(
+        () -> new SpaceSaving<T>(capacity),
+        SpaceSaving::add,
+        SpaceSaving::merge,
+        Collector.Characteristics.UNORDERED);
+  }
+
+  /**
+   * Collector that feeds the items of the stream elements into one summary per key (e.g. per month
+   * or ward); usable with parallel streams. Elements with a {@code null} key are skipped.
+   *
+   * @param keyFunction the window or group of an element
+   * @param itemFunction the counted item of an element, e.g. its code
+   * @param capacity the capacity of the summaries
+   */
+  public static <E, K, T> Collector<E, ?, Map<K, SpaceSaving<T>>> groupingBy(
+      Function<? super E, ? extends K> keyFunction,
+      Function<? super E, ? extends T> itemFunction,
+      int capacity) {
+    return Collector.of(
+        HashMap::new,
+        (Map<K, SpaceSaving<T>> map, E element) -> {
+          K key = keyFunction.apply(element);
+          if (key != null) {
+            map.computeIfAbsent(key, k -> new SpaceSaving<>(capacity))
+                .add(itemFunction.apply(element));
+          }
+        },
+        SpaceSaving::mergeAll,
+        Collector.Characteristics.UNORDERED);
+  }
+
+  /**
+   * Merges the summaries of the second map into the ones of the first map with the same key.
+   *
+   * @return the first map
+   */
+  public static <K, T> Map<K, SpaceSaving<T>> mergeAll(
+      Map<K, SpaceSaving<T>> target, Map<K, SpaceSaving<T>> source) {
+    source.forEach((key, summary) -> target.merge(key, summary, SpaceSaving::merge));
+    return target;
+  }
+
+  /**
+   * Counts one occurrence of the item.
+   *
+   * @param item the item; {@code null} is ignored
+   * @return this summary
+   */
+  public SpaceSaving<T> add(T item) {
+    return add(item, 1);
+  }
+
+  /**
+   * Counts several occurrences of the item.
+   *
+   * @param item the item; {@code null} is ignored
+   * @param count the number of occurrences; must not be negative
+   * @return this summary
+   */
+  public SpaceSaving<T> add(T item, long count) {
+    if (count < 0) {
+      throw new IllegalArgumentException("The count must not be negative");
+    }
+    if (item == null || count == 0) {
+      return this;
+    }
+    totalCount += count;
+    Counter<T> counter = counters.get(item);
+    if (counter != null) {
+      increment(counter, count);
+    } else if (counters.size() < capacity) {
+      insert(item, count, 0);
+    } else {
+      // Replace the smallest counter, whose count becomes the error of the new item
+      Counter<T> smallest = byCount.pollFirst();
+      counters.remove(smallest.item);
+      insert(item, smallest.count + count, smallest.count);
+    }
+    return this;
+  }
+
+  /**
+   * Merges the other summary into this one. Items that are missing in one of the summaries are
+   * assumed to have that summary's smallest count (or zero, if it was not full), which keeps the
+   * error bounds valid.
+   *
+   * @param other a summary with the same capacity
+   * @return this summary
+   * @throws IllegalArgumentException if the capacities differ
+   */
+  public SpaceSaving<T> merge(SpaceSaving<T> other) {
+    ExceptionTools.checkNull("other", other);
+    if (other.capacity != capacity) {
+      throw new IllegalArgumentException(
+          "Summaries with different capacities can't be merged: "
+              + capacity
+              + " != "
+              + other.capacity);
+    }
+    long minThis = counters.size() < capacity ? 0 : byCount.first().count;
+    long minOther = other.counters.size() < other.capacity ? 0 : other.byCount.first().count;
+    Map<T, long[]> merged = new HashMap<>();
+    counters.forEach(
+        (item, c) -> merged.put(item, new long[] {c.count + minOther, c.error + minOther}));
+    other.counters.forEach(
+        (item, c) -> {
+          long[] entry = merged.get(item);
+          if (entry == null) {
+            merged.put(item, new long[] {c.count + minThis, c.error + minThis});
+          } else {
+            // Present in both, so the assumed minimum of the other summary is replaced by the
+            // real counter
+            entry[0] += c.count - minOther;
+            entry[1] += c.error - minOther;
+          }
+        });
+    List<Map.Entry<T, long[]>> entries = new ArrayList<>(merged.entrySet());
+    entries.sort((a, b) -> Long.compare(b.getValue()[0], a.getValue()[0]));
+    counters.clear();
+    byCount.clear();
+    for (int i = 0; i < Math.min(capacity, entries.size()); i++) {
+      Map.Entry<T, long[]> entry = entries.get(i);
+      insert(entry.getKey(), entry.getValue()[0], entry.getValue()[1]);
+    }
+    totalCount += other.totalCount;
+    return this;
+  }
+
+  /**
+   * Returns the most frequent items, by descending count.
+   *
+   * @param k the maximal number of items to return
+   */
+  public List<HeavyHitter<T>> topK(int k) {
+    List<HeavyHitter<T>> result = new ArrayList<>(Math.min(k, counters.size()));
+    for (Counter<T> counter : byCount.descendingSet()) {
+      if (result.size() >= k) {
+        break;
+      }
+      result.add(new HeavyHitter<>(counter.item, counter.count, counter.error));
+    }
+    return result;
+  }
+
+  /** Number of counted occurrences of all items. */
+  public long getTotalCount() {
+    return totalCount;
+  }
+
+  /** The maximal number of counters. */
+  public int getCapacity() {
+    return capacity;
+  }
+
+  @Override
+  public String toString() {
+    return "SpaceSaving{capacity=" + capacity + ", totalCount=" + totalCount + "}";
+  }
+
+  private void insert(T item, long count, long error) {
+    Counter<T> counter = new Counter<>(item, count, error, sequence++);
+    counters.put(item, counter);
+    byCount.add(counter);
+  }
+
+  private void increment(Counter<T> counter, long count) {
+    byCount.remove(counter);
+    counter.count += count;
+    byCount.add(counter);
+  }
+
+  private static class Counter<T> {
+
+    private final T item;
+    private final long sequence;
+    private final long error;
+    private long count;
+
+    private Counter(T item, long count, long error, long sequence) {
+      this.item = item;
+      this.count = count;
+      this.error = error;
+      this.sequence = sequence;
+    }
+  }
+}
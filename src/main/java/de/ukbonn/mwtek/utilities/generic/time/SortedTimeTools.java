@@ -0,0 +1,90 @@
+/*
+ * Copyright (C) 2021 University Hospital Bonn - All Rights Reserved You may use, distribute and
+ * modify this code under the GPL 3 license. THERE IS NO WARRANTY FOR THE PROGRAM, TO THE EXTENT
+ * PERMITTED BY APPLICABLE LAW. EXCEPT WHEN OTHERWISE STATED IN WRITING THE COPYRIGHT HOLDERS AND/OR
+ * OTHER PARTIES PROVIDE THE PROGRAM “AS IS” WITHOUT WARRANTY OF ANY KIND, EITHER EXPRESSED OR
+ * IMPLIED, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE. THE ENTIRE RISK AS TO THE QUALITY AND PERFORMANCE OF THE PROGRAM IS WITH
+ * YOU. SHOULD THE PROGRAM PROVE DEFECTIVE, YOU ASSUME THE COST OF ALL NECESSARY SERVICING, REPAIR
+ * OR CORRECTION. IN NO EVENT UNLESS REQUIRED BY APPLICABLE LAW OR AGREED TO IN WRITING WILL ANY
+ * COPYRIGHT HOLDER, OR ANY OTHER PARTY WHO MODIFIES AND/OR CONVEYS THE PROGRAM AS PERMITTED ABOVE,
+ * BE LIABLE TO YOU FOR DAMAGES, INCLUDING ANY GENERAL, SPECIAL, INCIDENTAL OR CONSEQUENTIAL DAMAGES
+ * ARISING OUT OF THE USE OR INABILITY TO USE THE PROGRAM (INCLUDING BUT NOT LIMITED TO LOSS OF DATA
+ * OR DATA BEING RENDERED INACCURATE OR LOSSES SUSTAINED BY YOU OR THIRD PARTIES OR A FAILURE OF THE
+ * PROGRAM TO OPERATE WITH ANY OTHER PROGRAMS), EVEN IF SUCH HOLDER OR OTHER PARTY HAS BEEN ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGES. You should have received a copy of the GPL 3 license with *
+ * this file. If not, visit http://www.gnu.de/documents/gpl-3.0.en.html
+ */
+
+package de.ukbonn.mwtek.utilities.generic.time;
+
+/**
+ * Binary searches on ascending sorted {@code long} arrays of points in time (e.g. epoch millis) and
+ * the marker for a missing point in time, as used by the time based indexes.
+ */
+public class SortedTimeTools {
+
+  /**
+   * Marks a missing point in time, e.g. a condition without recorded date or a procedure without
+   * usable {@code performed[x]}. It is smaller than every real timestamp.
+   */
+  public static final long NO_TIME = Long.MIN_VALUE;
+
+  /**
+   * Index of the first element {@code >= value}.
+   *
+   * @param sorted the ascending sorted times
+   * @param value the searched time
+   * @return the index or {@code sorted.length} if all elements are smaller
+   */
+  public static int lowerBound(long[] sorted, long value) {
+    return lowerBound(sorted, 0, sorted.length, value);
+  }
+
+  /**
+   * Index of the first element {@code >= value} within {@code [from, to)}.
+   *
+   * @param sorted the ascending sorted times
+   * @param from the first index of the range (inclusive)
+   * @param to the last index of the range (exclusive)
+   * @param value the searched time
+   * @return the index or {@code to} if all elements of the range are smaller
+   */
+  public static int lowerBound(long[] sorted, int from, int to, long value) {
+    int low = from;
+    int high = to;
+    while (low < high) {
+      int mid = (low + high) >>> 1;
+      if (sorted[mid] < value) {
+        low = mid + 1;
+      } else {
+        high = mid;
+      }
+    }
+    return low;
+  }
+
+  /**
+   * Index of the first element {@code > value}.
+   *
+   * @param sorted the ascending sorted times
+   * @param value the searched time
+   * @return the index or {@code sorted.length} if no element is greater
+   */
+  public static int upperBound(long[] sorted, long value) {
+    return upperBound(sorted, 0, sorted.length, value);
+  }
+
+  /**
+   * Index of the first element {@code > value} within {@code [from, to)}.
+   *
+   * @param sorted the ascending sorted times
+   * @param from the first index of the range (inclusive)
+   * @param to the last index of the range (exclusive)
+   * @param value the searched time
+   * @return the index or {@code to} if no element of the range is greater
+   */
+  public static int upperBound(long[] sorted, int from, int to, long value) {
+    return value == Long.MAX_VALUE ? to : lowerBound(sorted, from, to, value + 1);
+  }
+}
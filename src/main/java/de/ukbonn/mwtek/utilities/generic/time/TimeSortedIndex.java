@@ -0,0 +1,140 @@
+/*
+ * Copyright (C) 2021 University Hospital Bonn - All Rights Reserved You may use, distribute and
+ * modify this code under the GPL 3 license. THERE IS NO WARRANTY FOR THE PROGRAM, TO THE EXTENT
+ * PERMITTED BY APPLICABLE LAW. EXCEPT WHEN OTHERWISE STATED IN WRITING THE COPYRIGHT HOLDERS AND/OR
+ * OTHER PARTIES PROVIDE THE PROGRAM “AS IS” WITHOUT WARRANTY OF ANY KIND, EITHER EXPRESSED OR
+ * IMPLIED, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE. THE ENTIRE RISK AS TO THE QUALITY AND PERFORMANCE OF THE PROGRAM IS WITH
+ * YOU. SHOULD THE PROGRAM PROVE DEFECTIVE, YOU ASSUME THE COST OF ALL NECESSARY SERVICING, REPAIR
+ * OR CORRECTION. IN NO EVENT UNLESS REQUIRED BY APPLICABLE LAW OR AGREED TO IN WRITING WILL ANY
+ * COPYRIGHT HOLDER, OR ANY OTHER PARTY WHO MODIFIES AND/OR CONVEYS THE PROGRAM AS PERMITTED ABOVE,
+ * BE LIABLE TO YOU FOR DAMAGES, INCLUDING ANY GENERAL, SPECIAL, INCIDENTAL OR CONSEQUENTIAL DAMAGES
+ * ARISING OUT OF THE USE OR INABILITY TO USE THE PROGRAM (INCLUDING BUT NOT LIMITED TO LOSS OF DATA
+ * OR DATA BEING RENDERED INACCURATE OR LOSSES SUSTAINED BY YOU OR THIRD PARTIES OR A FAILURE OF THE
+ * PROGRAM TO OPERATE WITH ANY OTHER PROGRAMS), EVEN IF SUCH HOLDER OR OTHER PARTY HAS BEEN ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGES. You should have received a copy of the GPL 3 license with *
+ * this file. If not, visit http://www.gnu.de/documents/gpl-3.0.en.html
+ */
+package de.ukbonn.mwtek.utilities.generic.time;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.List;
+import java.util.function.ToLongFunction;
+
+/**
+ * Immutable view of a collection, sorted by a timestamp key (epoch millis) that is extracted once
+ * per item.
+ *
+ * <p>The keys are kept in a primitive {@code long[]} next to the sorted items. Time range queries
+ * are therefore two binary searches and return a sublist view of the sorted items, without any
+ * {@link Date} comparison or copying. This is meant for time series that query the same collection
+ * with many moving reference dates.
+ *
+ * @param <T> the type of the indexed items
+ */
+public class TimeSortedIndex<T> {
+
+  private final long[] keys;
+  private final List<T> items;
+
+  /**
+   * Sorts the given items by their key. Items with the key {@link SortedTimeTools#NO_TIME} are
+   * skipped, items with the same key keep their relative order.
+   *
+   * @param items the items to index; may be {@code null}
+   * @param keyExtractor returns the timestamp of an item in epoch millis or {@link
+   *     SortedTimeTools#NO_TIME}
+   */
+  public TimeSortedIndex(Collection<T> items, ToLongFunction<? super T> keyExtractor) {
+    List<Entry<T>> entries = new ArrayList<>(items != null ? items.size() : 0);
+    if (items != null) {
+      for (T item : items) {
+        long key = keyExtractor.applyAsLong(item);
+        if (key != SortedTimeTools.NO_TIME) {
+          entries.add(new Entry<>(key, item));
+        }
+      }
+    }
+    entries.sort(Comparator.comparingLong(Entry::key));
+
+    this.keys = new long[entries.size()];
+    List<T> sortedItems = new ArrayList<>(entries.size());
+    for (int i = 0; i < keys.length; i++) {
+      keys[i] = entries.get(i).key();
+      sortedItems.add(entries.get(i).item());
+    }
+    this.items = Collections.unmodifiableList(sortedItems);
+  }
+
+  /** Number of indexed items (i.e. items with a timestamp). */
+  public int size() {
+    return keys.length;
+  }
+
+  /** All indexed items in ascending order of their timestamp. */
+  public List<T> getItems() {
+    return items;
+  }
+
+  /**
+   * Returns all items with a timestamp strictly after the given reference date.
+   *
+   * @param referenceDate the reference date; must not be {@code null}
+   * @return an unmodifiable view of the matching items in ascending order of their timestamp
+   */
+  public List<T> after(Date referenceDate) {
+    return after(referenceDate.getTime());
+  }
+
+  /**
+   * Returns all items with a timestamp strictly after the given epoch millis.
+   *
+   * @param referenceMillis the reference time in epoch millis
+   * @return an unmodifiable view of the matching items in ascending order of their timestamp
+   */
+  public List<T> after(long referenceMillis) {
+    return items.subList(SortedTimeTools.upperBound(keys, referenceMillis), keys.length);
+  }
+
+  /**
+   * Returns all items with a timestamp within {@code [from, to]}.
+   *
+   * @param from the lower bound (inclusive); {@code null} for an open range
+   * @param to the upper bound (inclusive); {@code null} for an open range
+   * @return an unmodifiable view of the matching items in ascending order of their timestamp
+   */
+  public List<T> between(Date from, Date to) {
+    return between(
+        from != null ? from.getTime() : SortedTimeTools.NO_TIME + 1,
+        to != null ? to.getTime() : Long.MAX_VALUE);
+  }
+
+  /**
+   * Returns all items with a timestamp within {@code [fromMillis, toMillis]}.
+   *
+   * @param fromMillis the lower bound in epoch millis (inclusive)
+   * @param toMillis the upper bound in epoch millis (inclusive)
+   * @return an unmodifiable view of the matching items in ascending order of their timestamp
+   */
+  public List<T> between(long fromMillis, long toMillis) {
+    int from = SortedTimeTools.lowerBound(keys, fromMillis);
+    int to = SortedTimeTools.upperBound(keys, toMillis);
+    return from < to ? items.subList(from, to) : Collections.emptyList();
+  }
+
+  /**
+   * Counts the items with a timestamp strictly after the given epoch millis.
+   *
+   * @param referenceMillis the reference time in epoch millis
+   * @return the number of matching items
+   */
+  public int countAfter(long referenceMillis) {
+    return keys.length - SortedTimeTools.upperBound(keys, referenceMillis);
+  }
+
+  private record Entry<T>(long key, T item) {}
+}